@@ -0,0 +1,25 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always attached, so every run
+ * reports the allocation rate and bytes allocated per operation alongside the
+ * throughput. Takes the same arguments as the standard JMH runner, for example
+ * a regular expression of the benchmarks to run.
+ *
+ */
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+	}
+}
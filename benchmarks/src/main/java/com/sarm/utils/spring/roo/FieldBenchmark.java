@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sarm.utils.xml.XMLDOMHelper;
+
+/**
+ * Measures the per field work of the generator: reading a field element,
+ * mapping its type, converting its name and writing its roo command
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldBenchmark
+{
+	private final static String SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"http://www.example.org/bench\" xmlns:tns=\"http://www.example.org/bench\">"
+			+ "<xs:complexType name=\"Account\"><xs:sequence>"
+			+ "<xs:element name=\"code\" minOccurs=\"1\" maxOccurs=\"1\">"
+			+ "<xs:annotation><xs:documentation>The account code</xs:documentation></xs:annotation>"
+			+ "<xs:simpleType><xs:restriction base=\"xs:string\"><xs:minLength value=\"2\"/><xs:maxLength value=\"16\"/><xs:pattern value=\"[A-Z0-9]+\"/></xs:restriction></xs:simpleType>"
+			+ "</xs:element>"
+			+ "<xs:element name=\"balance\" type=\"xs:decimal\"/>"
+			+ "</xs:sequence></xs:complexType></xs:schema>";
+
+	private final static String[] TYPES = new String[]
+	{ "xs:string", "int", "xs:dateTime", "xs:boolean", "decimal", "xs:unknownType", "tns:Account" };
+
+	private final static String[] NAMES = new String[]
+	{ "firstName", "order", "date-of-birth", "table", "accountCode" };
+
+	private RooScriptGenerator generator;
+
+	private SchemaContext ctx;
+
+	private Node element;
+
+	private RooField field;
+
+	private Set<String> unknownTypes = new TreeSet<String>();
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		generator = new RooScriptGenerator();
+
+		Document schema = DocumentHelper.parseText(SCHEMA);
+		ctx = new SchemaContext();
+		ctx.srcSchema = schema;
+		ctx.xsdNsPrefix = "xs";
+		ctx.targetNsPrefix = "tns";
+		element = XMLDOMHelper.selectSingleNode(schema.getRootElement(), "xs:complexType/xs:sequence/xs:element[@name='code']");
+
+		field = generator.xsdElementToRooField(ctx, element);
+		field.owningEntity = "org.example.bench.Account";
+	}
+
+	@Benchmark
+	public RooField xsdElementToRooField()
+	{
+		return generator.xsdElementToRooField(ctx, element);
+	}
+
+	@Benchmark
+	public void mapXsdTypeToRooType(Blackhole blackhole)
+	{
+		for (String type : TYPES)
+		{
+			blackhole.consume(generator.mapXsdTypeToRooType(type, "xs", unknownTypes));
+		}
+	}
+
+	@Benchmark
+	public void convertReservedWords(Blackhole blackhole)
+	{
+		for (String name : NAMES)
+		{
+			blackhole.consume(generator.convertReservedWords(name));
+		}
+	}
+
+	@Benchmark
+	public String rooFieldToString()
+	{
+		return field.toString();
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sarm.utils.xml.SyntheticSchemaGenerator;
+import com.sarm.utils.xml.XMLDOMHelper;
+
+/**
+ * Measures reading and generating whole synthetic schemas of growing size
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratorBenchmark
+{
+	@Param({ "10", "100", "1000", "10000" })
+	int entities;
+
+	@Param({ "10" })
+	int fieldsPerEntity;
+
+	private File xsdFile;
+
+	private File scriptFile;
+
+	private RooScriptGenerator generator;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		xsdFile = File.createTempFile("benchmark-" + entities + "-", ".xsd");
+		xsdFile.deleteOnExit();
+
+		SyntheticSchemaGenerator schemaGenerator = new SyntheticSchemaGenerator();
+		schemaGenerator.setEntities(entities);
+		schemaGenerator.setFieldsPerEntity(fieldsPerEntity);
+		schemaGenerator.write(xsdFile);
+		scriptFile = File.createTempFile("benchmark-" + entities + "-", ".roo");
+		scriptFile.deleteOnExit();
+		RooScriptGenerator.updateScriptFile(scriptFile).deleteOnExit();
+
+		generator = new RooScriptGenerator();
+	}
+
+	@Benchmark
+	public Document readFile() throws Exception
+	{
+		return XMLDOMHelper.readFile(xsdFile.getAbsolutePath());
+	}
+
+	@Benchmark
+	public RooModel readModel() throws Exception
+	{
+		return generator.readModel(xsdFile);
+	}
+
+	@Benchmark
+	public File generateScript() throws Exception
+	{
+		generator.generateScript(xsdFile, scriptFile);
+		return scriptFile;
+	}
+}
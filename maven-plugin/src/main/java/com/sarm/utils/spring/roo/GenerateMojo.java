@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import com.sarm.utils.spring.roo.RooScriptGenerator.DATATBASE_TYPE;
+import com.sarm.utils.spring.roo.RooScriptGenerator.MODULE_SPLIT;
+import com.sarm.utils.spring.roo.RooScriptGenerator.OUTPUT;
+
+/**
+ * Generates a roo script, and its update script, for every XSD found by the
+ * given directory or glob pattern as a batch run of the generator does.
+ *
+ * The scripts are only generated again once an XSD, a schema it includes or
+ * imports or the settings have changed since the last build, which is
+ * checked against a {@link ScriptCache} in the build directory by the
+ * timestamps of the files then, for the files that have been touched, by
+ * their content. So an incremental build of a reactor leaves every up to date
+ * script, and the roo run it would trigger, alone.
+ *
+ * The settings left unset keep the generator's defaults.
+ *
+ * The generator's progress is logged through slf4j, which Maven routes to
+ * the build log along with the plugin's own.
+ *
+ */
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
+public class GenerateMojo extends AbstractMojo
+{
+	/**
+	 * The directory, or glob pattern (e.g. <code>src/main/xsd/**&#47;*.xsd</code>),
+	 * of the XSDs to generate
+	 */
+	@Parameter(property = "roo.schemas", defaultValue = "${basedir}/src/main/xsd")
+	private String schemas;
+
+	/**
+	 * The directory the scripts are written to, at the same relative path as
+	 * their XSD. With the {@link OUTPUT#JPA_SOURCE} output it is the root of
+	 * the source tree, which is added to the compile sources of the project
+	 */
+	@Parameter(property = "roo.outputDirectory", defaultValue = "${project.build.directory}/generated-sources/roo")
+	private File outputDirectory;
+
+	/**
+	 * The directory of the cache recording the inputs each script was last
+	 * generated from
+	 */
+	@Parameter(property = "roo.cacheDirectory", defaultValue = "${project.build.directory}/roo-script-cache")
+	private File cacheDirectory;
+
+	/**
+	 * The number of schemas generated at once, or 0 for as many as there are
+	 * processors
+	 */
+	@Parameter(property = "roo.threads", defaultValue = "0")
+	private int threads;
+
+	/**
+	 * Skips generating the scripts
+	 */
+	@Parameter(property = "roo.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Parameter(property = "roo.databaseType")
+	private DATATBASE_TYPE databaseType;
+
+	@Parameter(property = "roo.activeRecord")
+	private Boolean activeRecordStyle;
+
+	@Parameter(property = "roo.jsonOnly")
+	private Boolean jsonOnly;
+
+	@Parameter(property = "roo.webTier")
+	private Boolean generateWebTier;
+
+	@Parameter(property = "roo.seleniumTests")
+	private Boolean generateSeleniumTests;
+
+	@Parameter(property = "roo.minimise")
+	private Boolean minimiseCommands;
+
+	@Parameter(property = "roo.templates")
+	private File templates;
+
+	@Parameter(property = "roo.typeMappings")
+	private File typeMappings;
+
+	@Parameter(property = "roo.schemaCatalog")
+	private File schemaCatalog;
+
+	@Parameter(property = "roo.output")
+	private OUTPUT output;
+
+	@Parameter(property = "roo.modules")
+	private MODULE_SPLIT moduleSplit;
+
+	@Parameter(property = "roo.moduleSize")
+	private Integer moduleSize;
+
+	@Parameter(defaultValue = "${project}", readonly = true, required = true)
+	private MavenProject project;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException
+	{
+		if (skip)
+		{
+			getLog().info("Skipping roo script generation");
+			return;
+		}
+
+		// A relative location is taken relative to the project, wherever the
+		// reactor was started from
+		String schemas = new File(this.schemas).isAbsolute() ? this.schemas : new File(project.getBasedir(), this.schemas).getPath();
+
+		RooScriptGenerator generator = new RooScriptGenerator();
+		BatchResult result;
+		try
+		{
+			if (generator.findSchemas(schemas).isEmpty())
+			{
+				getLog().info("No XSDs found in " + schemas);
+				return;
+			}
+
+			configure(generator);
+			generator.setScriptCache(new ScriptCache(cacheDirectory));
+			result = generator.generateScripts(schemas, outputDirectory, threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		}
+		catch (Exception e)
+		{
+			throw new MojoExecutionException("Failed to generate roo scripts for " + schemas, e);
+		}
+
+		getLog().info(generator.getScriptCache().toString());
+		if (!result.isSuccessful())
+		{
+			for (Map.Entry<File, Throwable> failure : result.getFailures().entrySet())
+			{
+				getLog().error("Failed to generate roo script for " + failure.getKey(), failure.getValue());
+			}
+			throw new MojoFailureException(result.toString());
+		}
+
+		if (generator.getOutput() == OUTPUT.JPA_SOURCE)
+		{
+			project.addCompileSourceRoot(outputDirectory.getPath());
+		}
+	}
+
+	/**
+	 * Applies the settings that have been set to the generator
+	 *
+	 * @param generator
+	 * @throws Exception
+	 */
+	private void configure(RooScriptGenerator generator) throws Exception
+	{
+		if (databaseType != null)
+		{
+			generator.setDatabaseType(databaseType);
+		}
+		if (activeRecordStyle != null)
+		{
+			generator.setActiveRecordStyle(activeRecordStyle);
+		}
+		if (jsonOnly != null)
+		{
+			generator.setJsonOnly(jsonOnly);
+		}
+		if (generateWebTier != null)
+		{
+			generator.setGenerateWebTier(generateWebTier);
+		}
+		if (generateSeleniumTests != null)
+		{
+			generator.setGenerateSeleniumTests(generateSeleniumTests);
+		}
+		if (minimiseCommands != null)
+		{
+			generator.setMinimiseCommands(minimiseCommands);
+		}
+		if (templates != null)
+		{
+			generator.setCommandTemplates(generator.getCommandTemplates().overriddenBy(templates));
+		}
+		if (typeMappings != null)
+		{
+			generator.setTypeMapping(generator.getTypeMapping().overriddenBy(typeMappings));
+		}
+		if (schemaCatalog != null)
+		{
+			generator.setSchemaCatalog(SchemaCatalog.read(schemaCatalog));
+		}
+		if (output != null)
+		{
+			generator.setOutput(output);
+		}
+		if (moduleSplit != null)
+		{
+			generator.setModuleSplit(moduleSplit);
+		}
+		if (moduleSize != null)
+		{
+			generator.setModuleSize(moduleSize);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of generating roo scripts for a batch of XSD files. A failure
+ * to generate one schema is recorded here rather than aborting the rest of
+ * the batch.
+ *
+ */
+public class BatchResult
+{
+	/**
+	 * The generated roo script of each schema that succeeded, keyed by schema
+	 */
+	private final Map<File, File> generated = new LinkedHashMap<File, File>();
+
+	/**
+	 * The cause of failure of each schema that failed, keyed by schema
+	 */
+	private final Map<File, Throwable> failures = new LinkedHashMap<File, Throwable>();
+
+	void addGenerated(File xsdFile, File scriptFile)
+	{
+		generated.put(xsdFile, scriptFile);
+	}
+
+	void addFailure(File xsdFile, Throwable cause)
+	{
+		failures.put(xsdFile, cause);
+	}
+
+	/**
+	 * @return the generated roo script of each schema that succeeded, keyed by
+	 *         schema
+	 */
+	public Map<File, File> getGenerated()
+	{
+		return Collections.unmodifiableMap(generated);
+	}
+
+	/**
+	 * @return the cause of failure of each schema that failed, keyed by schema
+	 */
+	public Map<File, Throwable> getFailures()
+	{
+		return Collections.unmodifiableMap(failures);
+	}
+
+	/**
+	 * @return true if every schema in the batch generated successfully
+	 */
+	public boolean isSuccessful()
+	{
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Writes a line per schema stating whether it was generated or why it
+	 * failed
+	 *
+	 * @param summaryFile
+	 * @throws IOException
+	 */
+	public void writeSummary(File summaryFile) throws IOException
+	{
+		PrintStream summary = new PrintStream(summaryFile);
+		try
+		{
+			summary.println("# " + this);
+			for (Map.Entry<File, File> entry : generated.entrySet())
+			{
+				summary.println("OK     " + entry.getKey() + " -> " + entry.getValue());
+			}
+			for (Map.Entry<File, Throwable> entry : failures.entrySet())
+			{
+				summary.println("FAILED " + entry.getKey() + " : " + entry.getValue());
+			}
+		}
+		finally
+		{
+			summary.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Generated " + generated.size() + " of " + (generated.size() + failures.size()) + " schemas, " + failures.size() + " failed";
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the commands of a script that roo would only spend time on to fail
+ * or to repeat, working on the whole list of lines once it has been written.
+ * Each command runs for seconds in roo, so every one removed counts. Only
+ * commands that leave the model roo builds unchanged are removed.
+ *
+ * <ul>
+ * <li>A command identical to one earlier in the same module is a duplicate.</li>
+ * <li>An entity, repository or field command for a type or field already
+ * created in the module is subsumed by the first, as roo refuses to create it
+ * again.</li>
+ * </ul>
+ *
+ * A line may hold several lines, such as a command headed by its comment. A
+ * line is dropped along with its comments once every command in it is
+ * removed. Lines that are not commands are kept as they are.
+ *
+ */
+class CommandMinimiser
+{
+	private final static String FOCUS = "module focus ";
+
+	private final static String CREATE_MODULE = "module create ";
+
+	private final static String ROOT_MODULE = "~";
+
+	/**
+	 * Minimises the lines of a script in place
+	 *
+	 * @param lines
+	 * @return what was removed
+	 */
+	Report minimise(List<String> lines)
+	{
+		Report report = new Report();
+		String module = ROOT_MODULE;
+		Set<String> commands = new HashSet<String>();
+		Set<String> created = new HashSet<String>();
+
+		List<String> kept = new ArrayList<String>(lines.size());
+		for (String line : lines)
+		{
+			String[] parts = line.split(ScriptSink.LINE_ENDING, -1);
+			List<String> keptParts = new ArrayList<String>(parts.length);
+			int lineCommands = 0;
+			int removedCommands = 0;
+			for (String part : parts)
+			{
+				String command = part.trim();
+				boolean removed = false;
+				if (command.length() > 0 && !command.startsWith("#"))
+				{
+					lineCommands++;
+					report.commands++;
+
+					if (command.startsWith(FOCUS) || command.startsWith(CREATE_MODULE))
+					{
+						// Commands are only repeated within a module
+						String name = option(command, "--moduleName");
+						module = name == null ? ROOT_MODULE : name;
+					}
+					else if (!commands.add(module + " " + command))
+					{
+						report.duplicates++;
+						removed = true;
+					}
+					else if (!creates(command, module, created))
+					{
+						report.subsumed++;
+						removed = true;
+					}
+				}
+
+				if (removed)
+				{
+					removedCommands++;
+				}
+				else
+				{
+					keptParts.add(part);
+				}
+			}
+
+			if (removedCommands == 0)
+			{
+				kept.add(line);
+			}
+			else if (removedCommands < lineCommands)
+			{
+				StringBuilder keptLine = new StringBuilder(line.length());
+				for (int i = 0; i < keptParts.size(); i++)
+				{
+					if (i > 0)
+					{
+						keptLine.append(ScriptSink.LINE_ENDING);
+					}
+					keptLine.append(keptParts.get(i));
+				}
+				kept.add(keptLine.toString());
+			}
+		}
+
+		lines.clear();
+		lines.addAll(kept);
+		return report;
+	}
+
+	/**
+	 * Records what a command creates
+	 *
+	 * @return false if it has already been created in the module
+	 */
+	private static boolean creates(String command, String module, Set<String> created)
+	{
+		String type = null;
+		if (command.startsWith("entity "))
+		{
+			type = option(command, "--class");
+		}
+		else if (command.startsWith("repository "))
+		{
+			type = option(command, "--interface");
+		}
+		else if (command.startsWith("field "))
+		{
+			String fieldName = option(command, "--fieldName");
+			String owner = option(command, "--class");
+			type = fieldName == null || owner == null ? null : owner + "." + fieldName;
+		}
+		return type == null || created.add(module + " " + type);
+	}
+
+	/**
+	 * @param command
+	 * @param name
+	 * @return the value of the option, or null if the command does not have it
+	 */
+	static String option(String command, String name)
+	{
+		String[] words = command.split("\\s+");
+		for (int i = 0; i < words.length - 1; i++)
+		{
+			if (words[i].equals(name))
+			{
+				return words[i + 1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The number of commands seen and removed, by the reason they were removed
+	 */
+	static class Report
+	{
+		int commands;
+
+		int duplicates;
+
+		int subsumed;
+
+		/**
+		 * Adds the counts of another report to this one
+		 *
+		 * @param report
+		 */
+		void add(Report report)
+		{
+			commands += report.commands;
+			duplicates += report.duplicates;
+			subsumed += report.subsumed;
+		}
+
+		/**
+		 * @return the number of commands removed
+		 */
+		int getRemoved()
+		{
+			return duplicates + subsumed;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Removed " + getRemoved() + " of " + commands + " commands: " + duplicates + " duplicate, " + subsumed + " subsumed";
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The templates the roo commands are rendered from. Each template is compiled
+ * once in to its literal text and its <code>%%TAG%%</code> slots, and is then
+ * rendered straight in to a buffer without rescanning the template.
+ *
+ * Templates can be overridden from a properties file keyed by the template
+ * names, e.g. to add roo options:
+ *
+ * <code>
+ * entity=entity jpa --class %%PACKAGE%%%%ENTITY%% --activeRecord %%ACTIVE_RECORD%% --testAutomatically --serializable
+ * </code>
+ *
+ * An override may only use the tags of the template it replaces. Instances are
+ * immutable so may be shared between threads.
+ *
+ */
+public class CommandTemplates
+{
+	public final static String ENTITY = "entity";
+	public final static String REPOSITORY = "repository";
+	public final static String SELENIUM_TEST = "seleniumTest";
+	public final static String MANY_TO_MANY = "manyToMany";
+	public final static String MANY_TO_ONE = "manyToOne";
+	public final static String ONE_TO_MANY = "oneToMany";
+	public final static String ONE_TO_ONE = "oneToOne";
+	public final static String REFERENCE = "reference";
+
+	private final static Pattern TAG = Pattern.compile("%%[A-Z_]+%%");
+
+	private final Map<String, Template> templates;
+
+	/**
+	 * The overridden templates, by name
+	 */
+	private final Map<String, String> overrides;
+
+	/**
+	 * @param defaults
+	 *            the default template of each name
+	 */
+	CommandTemplates(Map<String, String> defaults)
+	{
+		this(compile(defaults), new TreeMap<String, String>());
+	}
+
+	private CommandTemplates(Map<String, Template> templates, Map<String, String> overrides)
+	{
+		this.templates = templates;
+		this.overrides = overrides;
+	}
+
+	private static Map<String, Template> compile(Map<String, String> templates)
+	{
+		Map<String, Template> compiled = new HashMap<String, Template>();
+		for (Map.Entry<String, String> template : templates.entrySet())
+		{
+			compiled.put(template.getKey(), new Template(template.getValue()));
+		}
+		return compiled;
+	}
+
+	/**
+	 * Reads template overrides from a properties file
+	 *
+	 * @param propertiesFile
+	 * @return these templates with the ones in the file replaced
+	 * @throws IOException
+	 *             if the file cannot be read, or names an unknown template or
+	 *             uses a tag its template does not have
+	 */
+	public CommandTemplates overriddenBy(File propertiesFile) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(propertiesFile);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Map<String, Template> overridden = new HashMap<String, Template>(templates);
+		Map<String, String> overriddenText = new TreeMap<String, String>(overrides);
+		for (String name : properties.stringPropertyNames())
+		{
+			Template original = templates.get(name);
+			if (original == null)
+			{
+				throw new IOException("Unknown roo command template " + name + " in " + propertiesFile + ", valid templates are " + new TreeMap<String, Template>(templates).keySet());
+			}
+
+			String text = properties.getProperty(name).trim();
+			Template template = new Template(text);
+			if (!original.tags.containsAll(template.tags))
+			{
+				Set<String> unknown = new LinkedHashSet<String>(template.tags);
+				unknown.removeAll(original.tags);
+				throw new IOException("Roo command template " + name + " in " + propertiesFile + " uses " + unknown + ", valid tags are " + original.tags);
+			}
+			overridden.put(name, template);
+			overriddenText.put(name, text);
+		}
+		return new CommandTemplates(overridden, overriddenText);
+	}
+
+	/**
+	 * @return the text of each overridden template, by name
+	 */
+	public Map<String, String> getOverrides()
+	{
+		return Collections.unmodifiableMap(overrides);
+	}
+
+	/**
+	 * @param name
+	 * @return the template of the given name
+	 */
+	Template get(String name)
+	{
+		Template template = templates.get(name);
+		if (template == null)
+		{
+			throw new IllegalArgumentException("Unknown roo command template " + name);
+		}
+		return template;
+	}
+
+	/**
+	 * A template compiled in to alternating literals and tags
+	 */
+	static final class Template
+	{
+		/**
+		 * The literal text before each tag, and after the last one
+		 */
+		private final String[] literals;
+
+		/**
+		 * The tag of each slot
+		 */
+		private final String[] slots;
+
+		/**
+		 * The distinct tags of the template
+		 */
+		private final Set<String> tags = new LinkedHashSet<String>();
+
+		Template(String template)
+		{
+			List<String> literalList = new ArrayList<String>();
+			List<String> slotList = new ArrayList<String>();
+			Matcher matcher = TAG.matcher(template);
+			int literalStart = 0;
+			while (matcher.find())
+			{
+				literalList.add(template.substring(literalStart, matcher.start()));
+				slotList.add(matcher.group());
+				literalStart = matcher.end();
+			}
+			literalList.add(template.substring(literalStart));
+
+			literals = literalList.toArray(new String[literalList.size()]);
+			slots = slotList.toArray(new String[slotList.size()]);
+			tags.addAll(slotList);
+		}
+
+		/**
+		 * Renders the template
+		 *
+		 * @param out
+		 *            the buffer to render in to
+		 * @param tagValues
+		 *            each tag followed by its value
+		 * @return the buffer
+		 */
+		StringBuilder render(StringBuilder out, String... tagValues)
+		{
+			for (int i = 0; i < slots.length; i++)
+			{
+				out.append(literals[i]).append(value(slots[i], tagValues));
+			}
+			return out.append(literals[slots.length]);
+		}
+
+		/**
+		 * @param tagValues
+		 *            each tag followed by its value
+		 * @return the rendered template
+		 */
+		String render(String... tagValues)
+		{
+			return render(new StringBuilder(), tagValues).toString();
+		}
+
+		private static String value(String tag, String[] tagValues)
+		{
+			for (int i = 0; i < tagValues.length; i += 2)
+			{
+				if (tagValues[i].equals(tag))
+				{
+					return tagValues[i + 1];
+				}
+			}
+			throw new IllegalArgumentException("No value given for " + tag);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * 
+ */
+package com.sarm.utils.spring.roo;
+
+/**
+ * The raw values read from an XSD element that describe a field, before they
+ * are mapped on to a {@link RooField}. Each value is null if it is not present
+ * in the schema.
+ * 
+ */
+class ElementDescriptor
+{
+	String name;
+
+	String type;
+
+	String minOccurs;
+
+	String maxOccurs;
+
+	String defaultValue;
+
+	/**
+	 * The trimmed text of the first documentation annotation
+	 */
+	String documentation;
+
+	/**
+	 * Whether the element is annotated as a hibernate key
+	 */
+	boolean key;
+
+	/**
+	 * Whether the first XSD documentation annotation has been checked for the
+	 * hibernate key
+	 */
+	boolean keyChecked;
+
+	/**
+	 * The base type of the first restriction or extension, used when no type
+	 * is given
+	 */
+	String base;
+
+	String pattern;
+
+	String minExclusive;
+
+	String minInclusive;
+
+	String maxExclusive;
+
+	String maxInclusive;
+
+	String minLength;
+
+	String maxLength;
+}
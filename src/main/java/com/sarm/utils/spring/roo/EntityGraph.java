@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sarm.utils.spring.roo.RooScriptGenerator.CARDINALITY;
+
+/**
+ * The relationships between the entities of a model, built once so that each
+ * relationship is resolved against the field referring back to it with a
+ * single lookup.
+ *
+ * Each entity is a node and each of its fields whose type is in the target
+ * namespace is an edge to the type it refers to, carrying the cardinality of
+ * the field. Every edge is linked to its reverse, the first field of the
+ * referred entity that refers back to the entity owning the edge.
+ *
+ */
+class EntityGraph
+{
+	/**
+	 * How the field of an edge is mapped
+	 */
+	enum Relationship
+	{
+		MANY_TO_MANY, ONE_TO_MANY, MANY_TO_ONE, ONE_TO_ONE,
+
+		/**
+		 * A single reference with no mapping back
+		 */
+		REFERENCE,
+
+		/**
+		 * A field of a simple type in the target namespace, not a relationship
+		 */
+		SIMPLE
+	}
+
+	/**
+	 * The edges of each entity, in the order of the model's entities and
+	 * their fields
+	 */
+	private final Map<String, List<Edge>> nodes = new LinkedHashMap<String, List<Edge>>();
+
+	private final Map<String, RooEntity> entities = new HashMap<String, RooEntity>();
+
+	/**
+	 * Builds the graph of a model in time linear to its fields
+	 *
+	 * @param model
+	 */
+	EntityGraph(RooModel model)
+	{
+		// The edges between each pair of entities, keyed by the entity they
+		// start at and then the entity they end at
+		Map<String, Map<String, List<Edge>>> edgesBetween = new HashMap<String, Map<String, List<Edge>>>();
+
+		// Fields still prefixed refer to a type outside of this schema so are
+		// not edges
+		for (RooEntity entity : model.entities)
+		{
+			List<Edge> edges = new ArrayList<Edge>();
+			Map<String, List<Edge>> edgesFrom = edgesBetween.get(entity.name);
+			if (edgesFrom == null)
+			{
+				edgesFrom = new HashMap<String, List<Edge>>();
+				edgesBetween.put(entity.name, edgesFrom);
+			}
+
+			for (RooField rooField : entity.fields)
+			{
+				if (!rooField.xsdType.contains(":"))
+				{
+					Edge edge = new Edge(entity.name, rooField);
+					edges.add(edge);
+
+					List<Edge> edgesTo = edgesFrom.get(edge.to);
+					if (edgesTo == null)
+					{
+						edgesTo = new ArrayList<Edge>(1);
+						edgesFrom.put(edge.to, edgesTo);
+					}
+					edgesTo.add(edge);
+				}
+			}
+			nodes.put(entity.name, edges);
+			entities.put(entity.name, entity);
+		}
+
+		for (List<Edge> edges : nodes.values())
+		{
+			for (Edge edge : edges)
+			{
+				Map<String, List<Edge>> edgesFrom = edgesBetween.get(edge.to);
+				List<Edge> reverseEdges = edgesFrom == null ? null : edgesFrom.get(edge.from);
+				if (reverseEdges != null)
+				{
+					// A field of an entity referring to its own type is not
+					// its own reverse
+					for (Edge reverse : reverseEdges)
+					{
+						if (reverse != edge)
+						{
+							edge.reverse = reverse;
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return whether the model has an entity of the given name
+	 */
+	boolean isEntity(String name)
+	{
+		return nodes.containsKey(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the entity of the given name, or null if there is none
+	 */
+	RooEntity getEntity(String name)
+	{
+		return entities.get(name);
+	}
+
+	/**
+	 * @return the names of the entities, in model order
+	 */
+	Collection<String> getEntities()
+	{
+		return nodes.keySet();
+	}
+
+	/**
+	 * @param entity
+	 * @return the edges starting at the entity, in field order
+	 */
+	List<Edge> getEdges(String entity)
+	{
+		return nodes.get(entity);
+	}
+
+	/**
+	 * Works out how an edge is mapped from its cardinality and that of its
+	 * reverse. A collection is many to many if the reverse is also a
+	 * collection, otherwise one to many. A mandatory single reference is many
+	 * to one if the reverse is a collection, one to one if the reverse is also
+	 * mandatory, and otherwise a plain reference, as is any other single
+	 * reference to a complex type.
+	 *
+	 * @param edge
+	 * @param complexTypeNames
+	 *            the names of the complex types of the model
+	 * @return
+	 */
+	Relationship relationship(Edge edge, Set<String> complexTypeNames)
+	{
+		Edge reverse = edge.reverse;
+		if (edge.isMany())
+		{
+			return reverse != null && reverse.isMany() ? Relationship.MANY_TO_MANY : Relationship.ONE_TO_MANY;
+		}
+		else if (edge.field.cardinality == CARDINALITY.MANDATORY && reverse != null && reverse.isMany())
+		{
+			return Relationship.MANY_TO_ONE;
+		}
+		else if (edge.field.cardinality == CARDINALITY.MANDATORY && reverse != null && reverse.field.cardinality == CARDINALITY.MANDATORY)
+		{
+			return Relationship.ONE_TO_ONE;
+		}
+		return isEntity(edge.to) || complexTypeNames.contains(edge.to) ? Relationship.REFERENCE : Relationship.SIMPLE;
+	}
+
+	/**
+	 * A field of an entity referring to a type in the target namespace
+	 */
+	static final class Edge
+	{
+		/**
+		 * The entity owning the field
+		 */
+		final String from;
+
+		/**
+		 * The type the field refers to
+		 */
+		final String to;
+
+		final RooField field;
+
+		/**
+		 * The first field of the referred entity referring back, or null if
+		 * there is none
+		 */
+		Edge reverse;
+
+		/**
+		 * Whether the relationship of this edge has been written, so the
+		 * reverse knows which side owns it
+		 */
+		boolean resolved;
+
+		Edge(String from, RooField field)
+		{
+			this.from = from;
+			this.to = field.xsdType;
+			this.field = field;
+		}
+
+		/**
+		 * @return whether the field holds many of the type it refers to
+		 */
+		boolean isMany()
+		{
+			return field.cardinality == CARDINALITY.UNBOUNDED || field.cardinality == CARDINALITY.ONE_OR_MORE;
+		}
+	}
+}
@@ -0,0 +1,399 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that generates the roo scripts for each XSD posted to
+ * it, so callers do not pay for starting a JVM per schema. The
+ * {@link RooScriptGenerator#scriptOptions()} are given as query parameters,
+ * e.g.
+ *
+ * <code>
+ * curl --data-binary @model.xsd "http://localhost:8080/generate?databaseType=MYSQL&amp;jsonOnly=false"
+ * </code>
+ *
+ * and the response is a JSON object holding the <code>script</code> and the
+ * <code>updateScript</code>.
+ *
+ * Every request is generated by its own generator in its own temporary
+ * directory. The generators share the server's {@link SchemaCache}, so a
+ * schema imported by many posted XSDs is read once, and extract entities on
+ * the one pool every generator shares.
+ *
+ * At most the given number of requests are generated at once and as many
+ * again wait for up to the queue timeout. The rest are turned away with a 503
+ * straight away, so callers back off rather than pile up. A request's XSD is
+ * only read once it may be generated.
+ *
+ */
+public class GenerationServer implements Closeable
+{
+	/**
+	 * The path XSDs are posted to
+	 */
+	public final static String GENERATE_PATH = "/generate";
+
+	/**
+	 * The default time a request waits for a generation slot
+	 */
+	public final static long DEFAULT_QUEUE_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * The largest XSD accepted
+	 */
+	public final static int MAX_SCHEMA_BYTES = 16 * 1024 * 1024;
+
+	private Logger logger = LoggerFactory.getLogger(GenerationServer.class);
+
+	private final HttpServer server;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * A permit for each request that may be generated at once
+	 */
+	private final Semaphore generating;
+
+	private long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+	/**
+	 * The referenced schemas read by any request
+	 */
+	private final SchemaCache schemaCache = new SchemaCache();
+
+	/**
+	 * Binds a server to the loopback address
+	 *
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @param maxConcurrent
+	 *            the number of requests generated at once
+	 * @throws IOException
+	 */
+	public GenerationServer(int port, int maxConcurrent) throws IOException
+	{
+		int permits = Math.max(1, maxConcurrent);
+		generating = new Semaphore(permits, true);
+
+		// Twice as many threads as permits so that waiting requests are queued
+		// on the semaphore, where they time out. The executor queues nothing,
+		// a request finding every thread busy is turned away
+		executor = new ThreadPoolExecutor(permits * 2, permits * 2, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new RejectedExecutionHandler()
+		{
+			@Override
+			public void rejectedExecution(Runnable request, ThreadPoolExecutor executor)
+			{
+				HttpExchange exchange = ((Request) request).exchange;
+				try
+				{
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					respond(exchange, 503, executor.isShutdown() ? "The server is stopping" : "Too many roo scripts are being generated, try again later");
+				}
+				catch (IOException e)
+				{
+					logger.debug("Failed to turn away a request", e);
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		});
+
+		// Requests are handed to the executor by the server's own thread, so
+		// the requests it turns away are answered without waiting for a
+		// thread
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(GENERATE_PATH, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				executor.execute(new Request(exchange));
+			}
+		});
+	}
+
+	/**
+	 * A request waiting for, or being generated by, a thread of the executor
+	 */
+	private class Request implements Runnable
+	{
+		final HttpExchange exchange;
+
+		Request(HttpExchange exchange)
+		{
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				handle(exchange);
+			}
+			catch (IOException e)
+			{
+				logger.debug("Failed to answer a request", e);
+			}
+			finally
+			{
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the queueTimeoutMillis
+	 */
+	public long getQueueTimeoutMillis()
+	{
+		return queueTimeoutMillis;
+	}
+
+	/**
+	 * @param queueTimeoutMillis the queueTimeoutMillis to set
+	 */
+	public void setQueueTimeoutMillis(long queueTimeoutMillis)
+	{
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+
+	/**
+	 * @return the schemaCache
+	 */
+	public SchemaCache getSchemaCache()
+	{
+		return schemaCache;
+	}
+
+	/**
+	 * @return the port the server is bound to
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Starts serving requests in the background
+	 */
+	public void start()
+	{
+		server.start();
+		logger.info("Generating roo scripts on port " + getPort() + ", " + generating.availablePermits() + " at a time");
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		if (!exchange.getRequestMethod().equalsIgnoreCase("POST"))
+		{
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "Post an XSD to generate its roo scripts");
+			return;
+		}
+
+		RooScriptGenerator generator = new RooScriptGenerator();
+		generator.setSchemaCache(schemaCache);
+		try
+		{
+			RooScriptGenerator.configure(generator, new BasicParser().parse(RooScriptGenerator.scriptOptions(), queryArguments(exchange.getRequestURI().getRawQuery())));
+		}
+		catch (ParseException e)
+		{
+			respond(exchange, 400, e.getMessage());
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			respond(exchange, 400, e.getMessage());
+			return;
+		}
+
+		try
+		{
+			if (!generating.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS))
+			{
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "Too many roo scripts are being generated, try again later");
+				return;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, "The server is stopping");
+			return;
+		}
+
+		String json;
+		try
+		{
+			// Only read the XSD once it may be generated, so the waiting
+			// requests hold no more than their connection
+			byte[] schema = readSchema(exchange.getRequestBody());
+			if (schema == null)
+			{
+				respond(exchange, 413, "XSDs over " + MAX_SCHEMA_BYTES + " bytes are not accepted");
+				return;
+			}
+
+			try
+			{
+				json = generate(generator, schema);
+			}
+			catch (Exception e)
+			{
+				logger.warn("Failed to generate roo scripts for a posted XSD", e);
+				respond(exchange, 422, "Failed to generate roo scripts: " + e);
+				return;
+			}
+		}
+		finally
+		{
+			generating.release();
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		send(exchange, 200, json.getBytes("UTF-8"));
+	}
+
+	/**
+	 * Generates the scripts for a schema in a directory of its own
+	 *
+	 * @param generator
+	 * @param schema
+	 * @return the scripts as a JSON object
+	 * @throws Exception
+	 */
+	private String generate(RooScriptGenerator generator, byte[] schema) throws Exception
+	{
+		File dir = Files.createTempDirectory("roo-script-generator").toFile();
+		File xsdFile = new File(dir, "schema.xsd");
+		File scriptFile = new File(dir, "schema.roo");
+		File updateScriptFile = RooScriptGenerator.updateScriptFile(scriptFile);
+		try
+		{
+			Files.write(xsdFile.toPath(), schema);
+			generator.generateScript(xsdFile, scriptFile);
+
+			// The scripts are written in the default charset
+			String script = new String(Files.readAllBytes(scriptFile.toPath()));
+			String updateScript = new String(Files.readAllBytes(updateScriptFile.toPath()));
+			return "{\"script\": " + RunMetrics.quote(script) + ", \"updateScript\": " + RunMetrics.quote(updateScript) + "}";
+		}
+		finally
+		{
+			xsdFile.delete();
+			scriptFile.delete();
+			updateScriptFile.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Turns query parameters in to command line arguments, a parameter
+	 * <code>name=value</code> becoming <code>-name value</code>
+	 *
+	 * @param query
+	 * @return
+	 * @throws UnsupportedEncodingException
+	 */
+	static String[] queryArguments(String query) throws UnsupportedEncodingException
+	{
+		List<String> arguments = new ArrayList<String>();
+		if (query != null)
+		{
+			for (String parameter : query.split("&"))
+			{
+				if (parameter.length() == 0)
+					continue;
+
+				int equals = parameter.indexOf('=');
+				arguments.add("-" + URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8"));
+				if (equals >= 0)
+				{
+					arguments.add(URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+				}
+			}
+		}
+		return arguments.toArray(new String[arguments.size()]);
+	}
+
+	/**
+	 * @param in
+	 * @return the schema, or null if it is too large
+	 * @throws IOException
+	 */
+	private byte[] readSchema(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream schema = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+		{
+			if (schema.size() + read > MAX_SCHEMA_BYTES)
+			{
+				return null;
+			}
+			schema.write(buffer, 0, read);
+		}
+		return schema.toByteArray();
+	}
+
+	private void respond(HttpExchange exchange, int status, String message) throws IOException
+	{
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		send(exchange, status, (message + ScriptSink.LINE_ENDING).getBytes("UTF-8"));
+	}
+
+	private void send(HttpExchange exchange, int status, byte[] body) throws IOException
+	{
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Stops the server, letting the requests being generated finish for up to
+	 * a second
+	 */
+	@Override
+	public void close()
+	{
+		server.stop(1);
+		executor.shutdownNow();
+	}
+}
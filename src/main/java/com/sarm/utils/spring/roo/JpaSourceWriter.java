@@ -0,0 +1,601 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the entities of a model straight to annotated JPA entity classes and
+ * Spring Data repositories, in place of a roo script. The sources are what
+ * roo would generate for the persistence layer without running roo: each
+ * entity with its id and version, its fields with their bean validation
+ * constraints, and its relationships mapped as the roo script would map them.
+ *
+ * A source that is unchanged since it was last written is not written again,
+ * so the classes only recompile when the model changes.
+ *
+ * The sources written for each schema are listed in a manifest in the
+ * {@link #MANIFEST_DIR} of the source tree. A source listed when the schema
+ * was last written that is no longer written, such as that of an entity
+ * removed from the schema, is deleted unless the manifest of another schema
+ * writing to the same tree still lists it. Writes to a tree are made one
+ * schema at a time so the manifests always agree with the sources.
+ *
+ */
+class JpaSourceWriter
+{
+	private final static Logger logger = LoggerFactory.getLogger(JpaSourceWriter.class);
+
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final static String LINE_ENDING = "\n";
+
+	/**
+	 * The directory, in the root of the source tree, of the manifest of the
+	 * sources written for each schema
+	 */
+	final static String MANIFEST_DIR = ".jpa-sources";
+
+	/**
+	 * Held while writing the sources and manifests of any tree
+	 */
+	private final static Object MANIFEST_LOCK = new Object();
+
+	private final RooScriptGenerator generator;
+
+	/**
+	 * @param generator
+	 *            the generator the names of the entities and fields are
+	 *            normalised by
+	 */
+	JpaSourceWriter(RooScriptGenerator generator)
+	{
+		this.generator = generator;
+	}
+
+	/**
+	 * Writes the entity and repository sources of a model, and deletes those
+	 * last written for the schema that no longer are
+	 *
+	 * @param model
+	 * @param sourceDir
+	 *            the root of the source tree
+	 * @param schemaFile
+	 *            the schema the model was read from, which names its manifest
+	 * @param metrics
+	 * @return the sources written or already up to date, in model order
+	 * @throws IOException
+	 */
+	List<File> write(RooModel model, File sourceDir, File schemaFile, RunMetrics metrics) throws IOException
+	{
+		synchronized (MANIFEST_LOCK)
+		{
+			List<File> sources = writeSources(model, sourceDir, metrics);
+			updateManifest(sourceDir, schemaFile, sources);
+			return sources;
+		}
+	}
+
+	private List<File> writeSources(RooModel model, File sourceDir, RunMetrics metrics) throws IOException
+	{
+		List<File> sources = new ArrayList<File>();
+		EntityGraph graph = new EntityGraph(model);
+
+		// The edges are resolved in model order, as the script does, so each
+		// relationship is owned by the same side
+		for (String entityName : graph.getEntities())
+		{
+			RooEntity entity = graph.getEntity(entityName);
+			RunMetrics.Span entitySpan = metrics.entity(RunMetrics.WRITE, entityName);
+			String packageName = RooScriptGenerator.packageOf(entity, model);
+			String className = className(entity);
+
+			File packageDir = new File(sourceDir, packageName.replace('.', File.separatorChar));
+			if (!packageDir.exists() && !packageDir.mkdirs())
+			{
+				throw new IOException("Failed to create the package directory " + packageDir);
+			}
+
+			File entityFile = new File(packageDir, className + ".java");
+			writeIfChanged(entityFile, entitySource(model, graph, entity));
+			sources.add(entityFile);
+
+			File repositoryFile = new File(packageDir, className + "Repository.java");
+			writeIfChanged(repositoryFile, repositorySource(packageName, entity));
+			sources.add(repositoryFile);
+			entitySpan.end();
+		}
+		return sources;
+	}
+
+	/**
+	 * Replaces the manifest of the schema with the given sources, deleting
+	 * the sources it listed that are neither among them nor listed by the
+	 * manifest of another schema
+	 */
+	private static void updateManifest(File sourceDir, File schemaFile, List<File> sources) throws IOException
+	{
+		File manifestDir = new File(sourceDir, MANIFEST_DIR);
+		if (!manifestDir.exists() && !manifestDir.mkdirs())
+		{
+			throw new IOException("Failed to create the manifest directory " + manifestDir);
+		}
+
+		String schemaPath = schemaFile.getCanonicalPath();
+		String schemaName = schemaFile.getName().contains(".") ? schemaFile.getName().substring(0, schemaFile.getName().lastIndexOf('.')) : schemaFile.getName();
+		File manifestFile = new File(manifestDir, schemaName + "-" + Integer.toHexString(schemaPath.hashCode()) + ".txt");
+
+		Set<String> written = new LinkedHashSet<String>();
+		for (File source : sources)
+		{
+			written.add(relativePath(sourceDir, source));
+		}
+
+		Set<String> stale = new TreeSet<String>();
+		if (manifestFile.isFile())
+		{
+			stale.addAll(Files.readAllLines(manifestFile.toPath(), UTF_8));
+			stale.removeAll(written);
+		}
+		File[] manifests = manifestDir.listFiles();
+		for (int i = 0; !stale.isEmpty() && manifests != null && i < manifests.length; i++)
+		{
+			if (!manifests[i].equals(manifestFile) && manifests[i].isFile())
+			{
+				stale.removeAll(Files.readAllLines(manifests[i].toPath(), UTF_8));
+			}
+		}
+
+		for (String path : stale)
+		{
+			File source = new File(sourceDir, path);
+			if (source.isFile() && !source.delete())
+			{
+				throw new IOException("Failed to delete the stale source " + source);
+			}
+			logger.info("Deleted " + source + " as " + schemaFile + " no longer generates it");
+
+			// Remove the packages left empty
+			File dir = source.getParentFile();
+			while (!dir.equals(sourceDir) && dir.delete())
+			{
+				dir = dir.getParentFile();
+			}
+		}
+
+		StringBuilder manifest = new StringBuilder();
+		for (String path : written)
+		{
+			manifest.append(path).append(LINE_ENDING);
+		}
+		writeIfChanged(manifestFile, manifest.toString());
+	}
+
+	/**
+	 * @return the path of a file relative to a directory, separated by '/'
+	 */
+	private static String relativePath(File dir, File file)
+	{
+		return dir.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	/**
+	 * @param entity
+	 * @return the simple name of the class of the entity
+	 */
+	private String className(RooEntity entity)
+	{
+		return generator.convertReservedWords(entity.name);
+	}
+
+	/**
+	 * @return the fully qualified name of the class of an entity
+	 */
+	private String qualifiedName(RooEntity entity, RooModel model)
+	{
+		return RooScriptGenerator.packageOf(entity, model) + className(entity);
+	}
+
+	private String entitySource(RooModel model, EntityGraph graph, RooEntity entity)
+	{
+		String packageName = RooScriptGenerator.packageOf(entity, model);
+		String className = className(entity);
+		Imports imports = new Imports(packageName.substring(0, packageName.length() - 1), className);
+		StringBuilder body = new StringBuilder(4096);
+		List<String[]> accessors = new ArrayList<String[]>();
+		Set<String> fieldNames = new HashSet<String>();
+
+		String entityAnnotation = imports.use("javax.persistence.Entity");
+		if (!entity.compositeUniques.isEmpty())
+		{
+			body.append("@").append(imports.use("javax.persistence.Table")).append("(uniqueConstraints = { ");
+			for (Iterator<List<String>> uniques = entity.compositeUniques.iterator(); uniques.hasNext();)
+			{
+				body.append("@").append(imports.use("javax.persistence.UniqueConstraint")).append("(columnNames = { ");
+				for (Iterator<String> columns = uniques.next().iterator(); columns.hasNext();)
+				{
+					body.append(quote(columns.next())).append(columns.hasNext() ? ", " : "");
+				}
+				body.append(" })").append(uniques.hasNext() ? ", " : "");
+			}
+			body.append(" })").append(LINE_ENDING);
+		}
+
+		// An entity extending another entity of the model inherits its id
+		RooEntity base = null;
+		if (entity.extendsEntity != null && !entity.extendsEntity.equals(""))
+		{
+			base = graph.getEntity(entity.extendsEntity.substring(entity.extendsEntity.indexOf(':') + 1));
+			if (base == null)
+			{
+				logger.warn("The base " + entity.extendsEntity + " of " + entity.name + " is not an entity of the model so is not extended");
+			}
+		}
+
+		body.append("public class ").append(className);
+		if (base != null)
+		{
+			body.append(" extends ").append(imports.use(qualifiedName(base, model)));
+		}
+		body.append(LINE_ENDING).append("{").append(LINE_ENDING);
+
+		if (base == null)
+		{
+			body.append("\t@").append(imports.use("javax.persistence.Id")).append(LINE_ENDING);
+			body.append("\t@").append(imports.use("javax.persistence.GeneratedValue")).append("(strategy = ").append(imports.use("javax.persistence.GenerationType")).append(".AUTO)").append(LINE_ENDING);
+			body.append("\tprivate Long id;").append(LINE_ENDING).append(LINE_ENDING);
+			body.append("\t@").append(imports.use("javax.persistence.Version")).append(LINE_ENDING);
+			body.append("\tprivate Integer version;").append(LINE_ENDING).append(LINE_ENDING);
+			accessors.add(new String[] { "Long", "id" });
+			accessors.add(new String[] { "Integer", "version" });
+			fieldNames.add("id");
+			fieldNames.add("version");
+		}
+
+		Iterator<EntityGraph.Edge> edges = graph.getEdges(entity.name).iterator();
+		for (RooField rooField : entity.fields)
+		{
+			String fieldName = generator.convertReservedWords(rooField.fieldName);
+
+			// Fields still prefixed refer to a type outside of this schema
+			EntityGraph.Edge edge = rooField.xsdType.contains(":") ? null : edges.next();
+
+			// As in roo, the first field of a name is kept
+			if (!fieldNames.add(fieldName))
+			{
+				logger.warn("The field " + fieldName + " of " + entity.name + " is already defined so is not written again");
+				if (edge != null)
+				{
+					edge.resolved = true;
+				}
+				continue;
+			}
+
+			if (rooField.comment != null && rooField.comment.trim().length() > 0)
+			{
+				body.append("\t/**").append(LINE_ENDING).append("\t * ").append(rooField.comment.trim().replace("*/", "* /").replace("\n", "\n\t * ")).append(LINE_ENDING).append("\t */").append(LINE_ENDING);
+			}
+
+			EntityGraph.Relationship relationship = edge == null ? EntityGraph.Relationship.SIMPLE : graph.relationship(edge, model.complexTypeNames);
+			String type;
+			if (relationship == EntityGraph.Relationship.SIMPLE)
+			{
+				type = simpleField(body, imports, rooField);
+			}
+			else
+			{
+				RooEntity target = graph.getEntity(edge.to);
+				String targetType = imports.use(target == null ? RooScriptGenerator.packageOf(entity, model) + generator.convertReservedWords(edge.to) : qualifiedName(target, model));
+				type = relationshipField(body, imports, edge, relationship, targetType);
+			}
+			if (edge != null)
+			{
+				edge.resolved = true;
+			}
+
+			body.append("\tprivate ").append(type).append(" ").append(fieldName);
+			if (relationship == EntityGraph.Relationship.ONE_TO_MANY || relationship == EntityGraph.Relationship.MANY_TO_MANY)
+			{
+				body.append(" = new ").append(imports.use("java.util.HashSet")).append(type.substring(type.indexOf('<'))).append("()");
+			}
+			body.append(";").append(LINE_ENDING).append(LINE_ENDING);
+			accessors.add(new String[] { type, fieldName });
+		}
+
+		for (String[] accessor : accessors)
+		{
+			String property = Character.toUpperCase(accessor[1].charAt(0)) + accessor[1].substring(1);
+			body.append("\tpublic ").append(accessor[0]).append(" get").append(property).append("()").append(LINE_ENDING);
+			body.append("\t{").append(LINE_ENDING).append("\t\treturn ").append(accessor[1]).append(";").append(LINE_ENDING).append("\t}").append(LINE_ENDING).append(LINE_ENDING);
+			body.append("\tpublic void set").append(property).append("(").append(accessor[0]).append(" ").append(accessor[1]).append(")").append(LINE_ENDING);
+			body.append("\t{").append(LINE_ENDING).append("\t\tthis.").append(accessor[1]).append(" = ").append(accessor[1]).append(";").append(LINE_ENDING).append("\t}").append(LINE_ENDING).append(LINE_ENDING);
+		}
+		body.setLength(body.length() - LINE_ENDING.length());
+		body.append("}").append(LINE_ENDING);
+
+		StringBuilder source = new StringBuilder(body.length() + 1024);
+		imports.appendTo(source);
+		source.append("/**").append(LINE_ENDING).append(" * The ").append(entity.name).append(" entity").append(LINE_ENDING).append(" */").append(LINE_ENDING);
+		source.append("@").append(entityAnnotation).append(LINE_ENDING);
+		source.append(body);
+		return source.toString();
+	}
+
+	/**
+	 * Appends the annotations of a field of a simple type
+	 *
+	 * @return the type of the field
+	 */
+	private String simpleField(StringBuilder body, Imports imports, RooField rooField)
+	{
+		String rooType = rooField.rooType.trim();
+		String kind = rooType.split("\\s+")[0];
+		String javaType = CommandMinimiser.option(rooType, "--type");
+		if (javaType == null)
+		{
+			javaType = kind.equals("boolean") ? "java.lang.Boolean" : kind.equals("number") ? "java.lang.Integer" : kind.equals("date") ? "java.util.Date" : kind.equals("long") ? "java.lang.Long" : "java.lang.String";
+		}
+
+		if (rooField.tranzient != null && rooField.tranzient)
+		{
+			annotate(body, imports, "javax.persistence.Transient", null);
+		}
+		if (rooField.unique != null && rooField.unique)
+		{
+			annotate(body, imports, "javax.persistence.Column", "unique = true");
+		}
+		if ((rooField.lob != null && rooField.lob) || rooType.contains("--lob"))
+		{
+			annotate(body, imports, "javax.persistence.Lob", null);
+		}
+		if (javaType.equals("java.util.Calendar") || javaType.equals("java.util.Date"))
+		{
+			annotate(body, imports, "javax.persistence.Temporal", imports.use("javax.persistence.TemporalType") + ".TIMESTAMP");
+		}
+
+		if (rooField.notNull != null && rooField.notNull)
+		{
+			annotate(body, imports, "javax.validation.constraints.NotNull", null);
+		}
+		if (rooField.nullRequired != null && rooField.nullRequired)
+		{
+			annotate(body, imports, "javax.validation.constraints.Null", null);
+		}
+		if (rooField.sizeMin != null || rooField.sizeMax != null)
+		{
+			annotate(body, imports, "javax.validation.constraints.Size", (rooField.sizeMin != null ? "min = " + rooField.sizeMin : "") + (rooField.sizeMin != null && rooField.sizeMax != null ? ", " : "") + (rooField.sizeMax != null ? "max = " + rooField.sizeMax : ""));
+		}
+
+		// The range of the field, else the range of its mapped type
+		String min = rooField.min != null ? rooField.min.toString() : CommandMinimiser.option(rooType, "--min");
+		String max = rooField.max != null ? rooField.max.toString() : CommandMinimiser.option(rooType, "--max");
+		bound(body, imports, "Min", min);
+		bound(body, imports, "Max", max);
+		if (rooField.decimalMin != null)
+		{
+			annotate(body, imports, "javax.validation.constraints.DecimalMin", quote(rooField.decimalMin.toString()));
+		}
+		if (rooField.decimalMax != null)
+		{
+			annotate(body, imports, "javax.validation.constraints.DecimalMax", quote(rooField.decimalMax.toString()));
+		}
+		if (rooField.regexp != null)
+		{
+			annotate(body, imports, "javax.validation.constraints.Pattern", "regexp = " + quote(rooField.regexp));
+		}
+		return imports.use(javaType);
+	}
+
+	/**
+	 * Appends a min or max constraint, as a decimal one if it is beyond a long
+	 */
+	private void bound(StringBuilder body, Imports imports, String bound, String value)
+	{
+		if (value == null)
+		{
+			return;
+		}
+
+		try
+		{
+			annotate(body, imports, "javax.validation.constraints." + bound, Long.parseLong(value) + "L");
+		}
+		catch (NumberFormatException e)
+		{
+			annotate(body, imports, "javax.validation.constraints.Decimal" + bound, quote(value));
+		}
+	}
+
+	/**
+	 * Appends the annotation mapping the relationship of an edge
+	 *
+	 * @return the type of the field
+	 */
+	private String relationshipField(StringBuilder body, Imports imports, EntityGraph.Edge edge, EntityGraph.Relationship relationship, String targetType)
+	{
+		EntityGraph.Edge reverse = edge.reverse;
+		switch (relationship)
+		{
+			case MANY_TO_MANY:
+				// The first side written is mapped by the other, as in the
+				// script
+				annotate(body, imports, "javax.persistence.ManyToMany", reverse.resolved ? null : "mappedBy = " + quote(generator.convertReservedWords(reverse.field.fieldName)));
+				return imports.use("java.util.Set") + "<" + targetType + ">";
+			case ONE_TO_MANY:
+				annotate(body, imports, "javax.persistence.OneToMany", reverse == null ? null : "mappedBy = " + quote(generator.convertReservedWords(reverse.field.fieldName)));
+				return imports.use("java.util.Set") + "<" + targetType + ">";
+			case ONE_TO_ONE:
+				// Roo writes both sides as owners, a class can map the second
+				// side by the first
+				annotate(body, imports, "javax.persistence.OneToOne", reverse.resolved ? "mappedBy = " + quote(generator.convertReservedWords(reverse.field.fieldName)) : null);
+				return targetType;
+			default:
+				annotate(body, imports, "javax.persistence.ManyToOne", null);
+				if (edge.field.cardinality == RooScriptGenerator.CARDINALITY.MANDATORY)
+				{
+					annotate(body, imports, "javax.validation.constraints.NotNull", null);
+				}
+				return targetType;
+		}
+	}
+
+	private static void annotate(StringBuilder body, Imports imports, String annotation, String arguments)
+	{
+		body.append("\t@").append(imports.use(annotation));
+		if (arguments != null)
+		{
+			body.append("(").append(arguments).append(")");
+		}
+		body.append(LINE_ENDING);
+	}
+
+	private String repositorySource(String packageName, RooEntity entity)
+	{
+		String className = className(entity);
+		Imports imports = new Imports(packageName.substring(0, packageName.length() - 1), className + "Repository");
+		String repository = imports.use("org.springframework.data.jpa.repository.JpaRepository");
+
+		StringBuilder source = new StringBuilder(512);
+		imports.appendTo(source);
+		source.append("/**").append(LINE_ENDING).append(" * The repository of the ").append(entity.name).append(" entity").append(LINE_ENDING).append(" */").append(LINE_ENDING);
+		source.append("public interface ").append(className).append("Repository extends ").append(repository).append("<").append(className).append(", Long>").append(LINE_ENDING);
+		source.append("{").append(LINE_ENDING).append("}").append(LINE_ENDING);
+		return source.toString();
+	}
+
+	/**
+	 * @return the text as a java string literal
+	 */
+	static String quote(String text)
+	{
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (char c : text.toCharArray())
+		{
+			switch (c)
+			{
+				case '"':
+					quoted.append("\\\"");
+					break;
+				case '\\':
+					quoted.append("\\\\");
+					break;
+				case '\n':
+					quoted.append("\\n");
+					break;
+				case '\r':
+					quoted.append("\\r");
+					break;
+				case '\t':
+					quoted.append("\\t");
+					break;
+				default:
+					quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static void writeIfChanged(File file, String source) throws IOException
+	{
+		byte[] bytes = source.getBytes(UTF_8);
+		if (file.isFile() && file.length() == bytes.length && Arrays.equals(Files.readAllBytes(file.toPath()), bytes))
+		{
+			return;
+		}
+
+		OutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(bytes);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * The imports of a source, so each type is referred to by its simple name
+	 * unless another type of the same name is already imported
+	 */
+	private static class Imports
+	{
+		private final String packageName;
+
+		private final Map<String, String> types = new HashMap<String, String>();
+
+		private final TreeSet<String> imports = new TreeSet<String>();
+
+		/**
+		 * @param packageName
+		 *            the package of the source
+		 * @param className
+		 *            the name of the type the source declares
+		 */
+		Imports(String packageName, String className)
+		{
+			this.packageName = packageName;
+			types.put(className, packageName + "." + className);
+		}
+
+		/**
+		 * @param type
+		 *            a fully qualified type, or a primitive
+		 * @return the name to refer to the type by
+		 */
+		String use(String type)
+		{
+			int dot = type.lastIndexOf('.');
+			if (dot < 0)
+			{
+				return type;
+			}
+
+			String simpleName = type.substring(dot + 1);
+			String imported = types.get(simpleName);
+			if (imported == null)
+			{
+				types.put(simpleName, type);
+				String typePackage = type.substring(0, dot);
+				if (!typePackage.equals("java.lang") && !typePackage.equals(packageName))
+				{
+					imports.add(type);
+				}
+				return simpleName;
+			}
+			return imported.equals(type) ? simpleName : type;
+		}
+
+		void appendTo(StringBuilder source)
+		{
+			source.append("package ").append(packageName).append(";").append(LINE_ENDING).append(LINE_ENDING);
+			for (String type : imports)
+			{
+				source.append("import ").append(type).append(";").append(LINE_ENDING);
+			}
+			if (!imports.isEmpty())
+			{
+				source.append(LINE_ENDING);
+			}
+		}
+	}
+}
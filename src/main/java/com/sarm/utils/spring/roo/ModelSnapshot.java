@@ -0,0 +1,406 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sarm.utils.spring.roo.RooScriptGenerator.CARDINALITY;
+
+/**
+ * Reads and writes the entity model a roo script is generated from as a
+ * compact binary snapshot, so a later run can pick up the model without
+ * parsing the XSD again, and can work out what has changed since.
+ *
+ * A snapshot starts with the bytes <code>RSGM</code> and a format version,
+ * followed by a table of every distinct string in the model. The model itself
+ * refers to strings by their index in the table, so a string repeated across
+ * entities and fields, such as a package or type, is stored and loaded once.
+ * Counts and indexes are written as variable length integers, and the options
+ * of each field are packed in to a single set of flags that also records which
+ * of its numeric constraints follow.
+ *
+ */
+public class ModelSnapshot
+{
+	/**
+	 * The extension of a snapshot file, which is written next to its roo
+	 * script
+	 */
+	public final static String EXTENSION = ".model";
+
+	/**
+	 * The version of the format written. Version 2 added the package of each
+	 * entity, a snapshot of version 1 is read with every entity in the package
+	 * of its model and a snapshot of any other version is not read
+	 */
+	public final static int FORMAT_VERSION = 2;
+
+	private final static byte[] MAGIC = new byte[]
+	{ 'R', 'S', 'G', 'M' };
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	// Field flags. Each Boolean option takes a bit to say it is set and a bit
+	// for its value
+	private final static int NOT_NULL = 0;
+	private final static int NULL_REQUIRED = 2;
+	private final static int TRANSIENT = 4;
+	private final static int UNIQUE = 6;
+	private final static int LOB = 8;
+	private final static int HAS_CARDINALITY = 1 << 10;
+	private final static int HAS_DECIMAL_MIN = 1 << 11;
+	private final static int HAS_DECIMAL_MAX = 1 << 12;
+	private final static int HAS_MIN = 1 << 13;
+	private final static int HAS_MAX = 1 << 14;
+	private final static int HAS_SIZE_MIN = 1 << 15;
+	private final static int HAS_SIZE_MAX = 1 << 16;
+
+	private ModelSnapshot()
+	{
+	}
+
+	/**
+	 * Writes the model to the snapshot file, replacing any earlier snapshot.
+	 * The snapshot is written to a temporary file first then moved in to
+	 * place, so a run that fails part way never leaves a truncated snapshot.
+	 *
+	 * @param model
+	 * @param snapshotFile
+	 * @throws IOException
+	 */
+	public static void write(RooModel model, File snapshotFile) throws IOException
+	{
+		// Intern every string of the model in to the table first
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		intern(strings, model.targetNamespace);
+		intern(strings, model.entityPackageName);
+		for (String complexTypeName : model.complexTypeNames)
+		{
+			intern(strings, complexTypeName);
+		}
+		for (RooEntity entity : model.entities)
+		{
+			intern(strings, entity.name);
+			intern(strings, entity.packageName);
+			intern(strings, entity.extendsEntity);
+			for (List<String> compositeUnique : entity.compositeUniques)
+			{
+				for (String fieldName : compositeUnique)
+				{
+					intern(strings, fieldName);
+				}
+			}
+			for (RooField field : entity.fields)
+			{
+				intern(strings, field.fieldName);
+				intern(strings, field.xsdType);
+				intern(strings, field.rooType);
+				intern(strings, field.owningEntity);
+				intern(strings, field.regexp);
+				intern(strings, field.value == null ? null : field.value.toString());
+				intern(strings, field.comment);
+			}
+		}
+
+		File dir = snapshotFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(snapshotFile.getName(), ".tmp", dir);
+		boolean written = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.write(MAGIC);
+			writeVarInt(out, FORMAT_VERSION);
+
+			writeVarInt(out, strings.size());
+			for (String string : strings.keySet())
+			{
+				byte[] bytes = string.getBytes(UTF8);
+				writeVarInt(out, bytes.length);
+				out.write(bytes);
+			}
+
+			writeString(out, strings, model.targetNamespace);
+			writeString(out, strings, model.entityPackageName);
+			writeVarInt(out, model.complexTypeNames.size());
+			for (String complexTypeName : model.complexTypeNames)
+			{
+				writeString(out, strings, complexTypeName);
+			}
+
+			writeVarInt(out, model.entities.size());
+			for (RooEntity entity : model.entities)
+			{
+				writeString(out, strings, entity.name);
+				writeString(out, strings, entity.packageName);
+				writeString(out, strings, entity.extendsEntity);
+
+				writeVarInt(out, entity.compositeUniques.size());
+				for (List<String> compositeUnique : entity.compositeUniques)
+				{
+					writeVarInt(out, compositeUnique.size());
+					for (String fieldName : compositeUnique)
+					{
+						writeString(out, strings, fieldName);
+					}
+				}
+
+				writeVarInt(out, entity.fields.size());
+				for (RooField field : entity.fields)
+				{
+					writeField(out, strings, field);
+				}
+			}
+			out.close();
+
+			ScriptSink.replace(tempFile, snapshotFile);
+			written = true;
+		}
+		finally
+		{
+			out.close();
+			if (!written)
+			{
+				tempFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads a model back from a snapshot file, reading the whole file in to
+	 * memory at once rather than through a stream. The file is not mapped, as
+	 * a mapped file cannot be replaced on some platforms until the mapping is
+	 * collected, and the snapshot is replaced by the same run.
+	 *
+	 * @param snapshotFile
+	 * @return
+	 * @throws IOException
+	 *             if the file cannot be read, is not a model snapshot or is of
+	 *             another format version
+	 */
+	public static RooModel read(File snapshotFile) throws IOException
+	{
+		return read(ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath())), snapshotFile);
+	}
+
+	private static RooModel read(ByteBuffer buffer, File snapshotFile) throws IOException
+	{
+		try
+		{
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			for (int i = 0; i < MAGIC.length; i++)
+			{
+				if (magic[i] != MAGIC[i])
+					throw new IOException("Not a model snapshot " + snapshotFile);
+			}
+
+			int version = readVarInt(buffer);
+			if (version != FORMAT_VERSION && version != 1)
+			{
+				throw new IOException("Unsupported model snapshot version " + version + " in " + snapshotFile + ", expected " + FORMAT_VERSION);
+			}
+
+			String[] strings = new String[readVarInt(buffer)];
+			for (int i = 0; i < strings.length; i++)
+			{
+				byte[] bytes = new byte[readVarInt(buffer)];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+
+			RooModel model = new RooModel();
+			model.targetNamespace = readString(buffer, strings);
+			model.entityPackageName = readString(buffer, strings);
+			for (int i = readVarInt(buffer); i > 0; i--)
+			{
+				model.complexTypeNames.add(readString(buffer, strings));
+			}
+
+			for (int i = readVarInt(buffer); i > 0; i--)
+			{
+				RooEntity entity = new RooEntity();
+				entity.name = readString(buffer, strings);
+				if (version > 1)
+				{
+					entity.packageName = readString(buffer, strings);
+				}
+				entity.extendsEntity = readString(buffer, strings);
+
+				for (int j = readVarInt(buffer); j > 0; j--)
+				{
+					List<String> compositeUnique = new ArrayList<String>();
+					for (int k = readVarInt(buffer); k > 0; k--)
+					{
+						compositeUnique.add(readString(buffer, strings));
+					}
+					entity.compositeUniques.add(compositeUnique);
+				}
+
+				for (int j = readVarInt(buffer); j > 0; j--)
+				{
+					entity.fields.add(readField(buffer, strings));
+				}
+				model.entities.add(entity);
+			}
+			return model;
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated model snapshot " + snapshotFile, e);
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("Corrupt model snapshot " + snapshotFile, e);
+		}
+	}
+
+	private static void writeField(DataOutputStream out, Map<String, Integer> strings, RooField field) throws IOException
+	{
+		int flags = booleanFlags(field.notNull, NOT_NULL) | booleanFlags(field.nullRequired, NULL_REQUIRED) | booleanFlags(field.tranzient, TRANSIENT) | booleanFlags(field.unique, UNIQUE) | booleanFlags(field.lob, LOB);
+		flags |= field.cardinality != null ? HAS_CARDINALITY : 0;
+		flags |= field.decimalMin != null ? HAS_DECIMAL_MIN : 0;
+		flags |= field.decimalMax != null ? HAS_DECIMAL_MAX : 0;
+		flags |= field.min != null ? HAS_MIN : 0;
+		flags |= field.max != null ? HAS_MAX : 0;
+		flags |= field.sizeMin != null ? HAS_SIZE_MIN : 0;
+		flags |= field.sizeMax != null ? HAS_SIZE_MAX : 0;
+		writeVarInt(out, flags);
+
+		writeString(out, strings, field.fieldName);
+		writeString(out, strings, field.xsdType);
+		writeString(out, strings, field.rooType);
+		writeString(out, strings, field.owningEntity);
+		writeString(out, strings, field.regexp);
+		writeString(out, strings, field.value == null ? null : field.value.toString());
+		writeString(out, strings, field.comment);
+
+		if (field.cardinality != null)
+			writeVarInt(out, field.cardinality.ordinal());
+		if (field.decimalMin != null)
+			out.writeDouble(field.decimalMin);
+		if (field.decimalMax != null)
+			out.writeDouble(field.decimalMax);
+		if (field.min != null)
+			writeVarInt(out, zigZag(field.min));
+		if (field.max != null)
+			writeVarInt(out, zigZag(field.max));
+		if (field.sizeMin != null)
+			writeVarInt(out, zigZag(field.sizeMin));
+		if (field.sizeMax != null)
+			writeVarInt(out, zigZag(field.sizeMax));
+	}
+
+	private static RooField readField(ByteBuffer buffer, String[] strings) throws IOException
+	{
+		RooField field = new RooField();
+		int flags = readVarInt(buffer);
+		field.notNull = booleanFlag(flags, NOT_NULL);
+		field.nullRequired = booleanFlag(flags, NULL_REQUIRED);
+		field.tranzient = booleanFlag(flags, TRANSIENT);
+		field.unique = booleanFlag(flags, UNIQUE);
+		field.lob = booleanFlag(flags, LOB);
+
+		field.fieldName = readString(buffer, strings);
+		field.xsdType = readString(buffer, strings);
+		field.rooType = readString(buffer, strings);
+		field.owningEntity = readString(buffer, strings);
+		field.regexp = readString(buffer, strings);
+		field.value = readString(buffer, strings);
+		field.comment = readString(buffer, strings);
+
+		if ((flags & HAS_CARDINALITY) != 0)
+			field.cardinality = CARDINALITY.values()[readVarInt(buffer)];
+		if ((flags & HAS_DECIMAL_MIN) != 0)
+			field.decimalMin = buffer.getDouble();
+		if ((flags & HAS_DECIMAL_MAX) != 0)
+			field.decimalMax = buffer.getDouble();
+		if ((flags & HAS_MIN) != 0)
+			field.min = unZigZag(readVarInt(buffer));
+		if ((flags & HAS_MAX) != 0)
+			field.max = unZigZag(readVarInt(buffer));
+		if ((flags & HAS_SIZE_MIN) != 0)
+			field.sizeMin = unZigZag(readVarInt(buffer));
+		if ((flags & HAS_SIZE_MAX) != 0)
+			field.sizeMax = unZigZag(readVarInt(buffer));
+		return field;
+	}
+
+	private static int booleanFlags(Boolean value, int bit)
+	{
+		return value == null ? 0 : (1 << bit) | (value ? 1 << (bit + 1) : 0);
+	}
+
+	private static Boolean booleanFlag(int flags, int bit)
+	{
+		return (flags & (1 << bit)) == 0 ? null : Boolean.valueOf((flags & (1 << (bit + 1))) != 0);
+	}
+
+	private static void intern(Map<String, Integer> strings, String string)
+	{
+		if (string != null && !strings.containsKey(string))
+		{
+			strings.put(string, strings.size());
+		}
+	}
+
+	/**
+	 * Writes a string as its index in the table plus one, so that null is
+	 * written as 0
+	 */
+	private static void writeString(DataOutputStream out, Map<String, Integer> strings, String string) throws IOException
+	{
+		writeVarInt(out, string == null ? 0 : strings.get(string) + 1);
+	}
+
+	private static String readString(ByteBuffer buffer, String[] strings) throws IOException
+	{
+		int index = readVarInt(buffer);
+		return index == 0 ? null : strings[index - 1];
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(ByteBuffer buffer) throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer in model snapshot");
+	}
+
+	private static int zigZag(int value)
+	{
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
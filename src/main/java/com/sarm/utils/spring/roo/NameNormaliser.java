@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Normalises the names read from a schema in to names roo accepts. Each
+ * distinct name is only converted once, so a name used by many fields costs a
+ * single lookup after the first.
+ *
+ * The reserved words are the java keywords and SQL reserved words of
+ * <code>org.springframework.roo.model.ReservedWords</code>, embedded so that
+ * the roo model is not needed at runtime.
+ *
+ */
+public class NameNormaliser
+{
+	/**
+	 * The java keywords roo reserves
+	 */
+	private final static String RESERVED_JAVA_KEYWORDS = "abstract assert boolean break byte case catch char class const continue default do double else enum extends false final finally float for goto if implements import instanceof int interface long native new null package private protected public return short static strictfp super switch synchronized this throw throws transient true try void volatile while";
+
+	/**
+	 * The SQL reserved words roo reserves
+	 */
+	private final static String RESERVED_SQL_KEYWORDS = "absolute action add after all allocate alter and any are array as asc asensitive assertion asymmetric at atomic authorization avg before begin between bigint binary bit bit_length blob boolean both breadth by call called cascade cascaded case cast catalog char char_length character character_length check clob close coalesce collate collation column commit condition connect connection constraint constraints constructor contains continue convert corresponding count create cross cube current current_date current_default_transform_group current_path current_role current_time current_timestamp current_transform_group_for_type current_user cursor cycle data date day deallocate dec decimal declare default deferrable deferred delete depth deref desc describe descriptor deterministic diagnostics disconnect distinct do domain double drop dynamic each element else elseif end equals escape except exception exec execute exists exit external extract false fetch filter first float for foreign found free from full function general get global go goto grant group grouping handler having hold hour identity if immediate in indicator initially inner inout input insensitive insert int integer intersect interval into is isolation iterate join key language large last lateral leading leave left level like local localtime localtimestamp locator loop lower map match max member merge method min minute modifies module month multiset names national natural nchar nclob new next no none not null nullif numeric object octet_length of old on only open option or order ordinality out outer output over overlaps pad parameter partial partition path position precision prepare preserve primary prior privileges procedure public range read reads real recursive ref references referencing relative release repeat resignal restrict result return returns revoke right role rollback rollup routine row rows savepoint schema scope scroll search second section select sensitive session session_user set sets signal similar size smallint some space specific specifictype sql sqlcode sqlerror sqlexception sqlstate sqlwarning start state static submultiset substring sum symmetric system system_user table tablesample temporary then time timestamp timezone_hour timezone_minute to trailing transaction translate translation treat trigger trim true under undo union unique unknown unnest until update upper usage user using value values varchar varying view when whenever where while window with within without work write year zone";
+
+	/**
+	 * Every reserved word, in lower case
+	 */
+	private final static Set<String> RESERVED_WORDS = reservedWords();
+
+	/**
+	 * The boundaries between words in a camel case name
+	 */
+	private final static Pattern CAMEL_CASE_BOUNDARY = Pattern.compile(String.format("%s|%s|%s", "(?<=[A-Z])(?=[A-Z][a-z])", "(?<=[^A-Z])(?=[A-Z])", "(?<=[A-Za-z])(?=[^A-Za-z])"));
+
+	/**
+	 * The most names remembered before the memo is cleared, so a long running
+	 * generator does not grow without bound
+	 */
+	private final static int MAX_MEMO_SIZE = 100000;
+
+	private Logger logger = LoggerFactory.getLogger(NameNormaliser.class);
+
+	/**
+	 * The names already converted, by the name read from the schema
+	 */
+	private final ConcurrentMap<String, String> memo = new ConcurrentHashMap<String, String>();
+
+	private static Set<String> reservedWords()
+	{
+		Set<String> words = new HashSet<String>();
+		words.addAll(Arrays.asList(RESERVED_JAVA_KEYWORDS.split(" ")));
+		words.addAll(Arrays.asList(RESERVED_SQL_KEYWORDS.split(" ")));
+		return Collections.unmodifiableSet(words);
+	}
+
+	/**
+	 * @param name
+	 * @return true if the name is a reserved word in roo, in any case
+	 */
+	public static boolean isReservedWord(String name)
+	{
+		return RESERVED_WORDS.contains(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Takes any name of a field or entity and converts it if it is a reserved
+	 * word in roo, replacing any hyphens with underscores
+	 *
+	 * @param name
+	 * @return
+	 */
+	public String convertReservedWords(String name)
+	{
+		String converted = memo.get(name);
+		if (converted == null)
+		{
+			converted = convert(name);
+			if (memo.size() >= MAX_MEMO_SIZE)
+			{
+				memo.clear();
+			}
+			memo.put(name, converted);
+		}
+		return converted;
+	}
+
+	private String convert(String name)
+	{
+		// Remove any hyphens
+		String converted = name.indexOf('-') < 0 ? name : name.replace('-', '_');
+
+		if (isReservedWord(converted))
+		{
+			logger.warn("Found reserved word '" + converted + "' converting to '" + converted + "1'");
+			return converted + "1";
+		}
+
+		return converted;
+	}
+
+	/**
+	 * Converts a string in camel case to underscores
+	 *
+	 * @param camelCaseVar
+	 * @return
+	 */
+	public static String camelToUnderScores(String camelCaseVar)
+	{
+		return CAMEL_CASE_BOUNDARY.matcher(camelCaseVar).replaceAll("_").toUpperCase(Locale.ROOT);
+	}
+}
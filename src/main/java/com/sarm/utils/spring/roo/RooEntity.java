@@ -0,0 +1,80 @@
+/**
+ * 
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents an entity to be created in roo from a top level complex type or
+ * element of the source XSD
+ * 
+ */
+public class RooEntity
+{
+	/**
+	 * The name of the entity as defined in the schema
+	 */
+	String name;
+
+	/**
+	 * The package, with a trailing '.', the entity is generated in, or null if
+	 * it is generated in the package of its model. Entities imported from
+	 * another namespace are generated in the package of that namespace.
+	 */
+	String packageName;
+
+	/**
+	 * The name of the entity this one extends, or null if it does not extend
+	 * another
+	 */
+	String extendsEntity;
+
+	/**
+	 * The fields of this entity in the order they are defined in the schema.
+	 * Fields that refer to types in the target namespace have had the
+	 * namespace prefix removed from their xsd type, any field whose xsd type
+	 * still has a prefix refers to a type in another namespace.
+	 */
+	List<RooField> fields = new ArrayList<RooField>();
+
+	/**
+	 * The field names of each unique constraint over more than one field of
+	 * this entity. Constraints on a single field are set on the field itself.
+	 */
+	List<List<String>> compositeUniques = new ArrayList<List<String>>();
+
+	/**
+	 * @return the name of the entity as defined in the schema
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the fields of this entity in schema order
+	 */
+	public List<RooField> getFields()
+	{
+		return fields;
+	}
+
+	/**
+	 * @param field
+	 * @return whether this entity has a field of the same name with the same
+	 *         type and options
+	 */
+	boolean hasField(RooField field)
+	{
+		for (RooField ownField : fields)
+		{
+			if (ownField.fieldName.equals(field.fieldName))
+			{
+				return ownField.toString().equals(field.toString());
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * 
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The entity model read from a source XSD, from which the roo scripts are
+ * written
+ * 
+ */
+public class RooModel
+{
+	/**
+	 * The target namespace of the schema
+	 */
+	String targetNamespace;
+
+	/**
+	 * The package, with a trailing '.', that the entities are generated in
+	 */
+	String entityPackageName;
+
+	/**
+	 * The entities in the order they are created in the script, which is the
+	 * entities of any included and imported schemas, then all top level
+	 * complex types followed by all top level elements
+	 */
+	List<RooEntity> entities = new ArrayList<RooEntity>();
+
+	/**
+	 * The names of all the complex types defined in the schema
+	 */
+	Set<String> complexTypeNames = new HashSet<String>();
+
+	/**
+	 * The schemas the schema includes and imports, in document order
+	 */
+	List<SchemaReference> references = new ArrayList<SchemaReference>();
+
+	/**
+	 * The files of every schema included or imported, directly or not, whose
+	 * entities have been merged in to this model
+	 */
+	List<File> referencedSchemas = new ArrayList<File>();
+
+	/**
+	 * The XSD types found reading the schemas that could not be mapped and
+	 * were generated as strings
+	 */
+	Set<String> unknownTypes = new TreeSet<String>();
+
+	/**
+	 * @return the package, with a trailing '.', that the entities are
+	 *         generated in
+	 */
+	public String getEntityPackageName()
+	{
+		return entityPackageName;
+	}
+
+	/**
+	 * @return the entities in the order they are created in the script
+	 */
+	public List<RooEntity> getEntities()
+	{
+		return entities;
+	}
+
+	/**
+	 * @return the XSD types that could not be mapped and were generated as
+	 *         strings
+	 */
+	public Set<String> getUnknownTypes()
+	{
+		return unknownTypes;
+	}
+}
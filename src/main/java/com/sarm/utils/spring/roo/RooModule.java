@@ -0,0 +1,541 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sarm.utils.spring.roo.RooScriptGenerator.MODULE_SPLIT;
+
+/**
+ * A roo module holding a share of the entities of a model, so that roo and
+ * the compiler work on several small projects rather than one huge one.
+ *
+ * A model is split by the package of its entities, which follows their
+ * namespace, or by the connected components of its relationships and
+ * inheritance, packed in to modules of up to a given size. A component larger
+ * than that is cut in to pieces that only depend on earlier pieces, keeping
+ * the entities related by the most references together. A module depends
+ * on every module holding an entity one of its entities refers to or extends.
+ * Modules that would depend on each other in a cycle are merged, as maven
+ * cannot build them, so the modules are always listed after the modules they
+ * depend on.
+ *
+ */
+class RooModule
+{
+	private final static Logger logger = LoggerFactory.getLogger(RooModule.class);
+
+	/**
+	 * The name of the module, which is also its artifact id
+	 */
+	final String name;
+
+	/**
+	 * The top level package, with a trailing '.', of the module
+	 */
+	final String packageName;
+
+	/**
+	 * The entities of the module, in model order
+	 */
+	final List<RooEntity> entities = new ArrayList<RooEntity>();
+
+	/**
+	 * The names of the modules this module depends on, in module order
+	 */
+	final List<String> dependencies = new ArrayList<String>();
+
+	private RooModule(String name, String packageName)
+	{
+		this.name = name;
+		this.packageName = packageName;
+	}
+
+	/**
+	 * Splits a model in to modules
+	 *
+	 * @param model
+	 * @param split
+	 * @param maxEntities
+	 *            the most entities packed in to a module when splitting by
+	 *            connected components. Only entities that refer to each
+	 *            other in a cycle larger than this are kept in a larger module
+	 * @return the modules, each after the modules it depends on
+	 */
+	static List<RooModule> split(RooModel model, MODULE_SPLIT split, int maxEntities)
+	{
+		Map<String, RooEntity> entities = new HashMap<String, RooEntity>();
+		for (RooEntity entity : model.entities)
+		{
+			entities.put(entity.name, entity);
+		}
+
+		// The entities each entity refers to or extends
+		Map<RooEntity, Set<RooEntity>> references = new LinkedHashMap<RooEntity, Set<RooEntity>>();
+		for (RooEntity entity : model.entities)
+		{
+			Set<RooEntity> referenced = new LinkedHashSet<RooEntity>();
+			for (RooField rooField : entity.fields)
+			{
+				RooEntity fieldEntity = rooField.xsdType.contains(":") ? null : entities.get(rooField.xsdType);
+				if (fieldEntity != null && fieldEntity != entity)
+				{
+					referenced.add(fieldEntity);
+				}
+			}
+			if (entity.extendsEntity != null && !entity.extendsEntity.equals(""))
+			{
+				RooEntity base = entities.get(entity.extendsEntity.substring(entity.extendsEntity.indexOf(':') + 1));
+				if (base != null && base != entity)
+				{
+					referenced.add(base);
+				}
+			}
+			references.put(entity, referenced);
+		}
+
+		List<List<RooEntity>> groups = split == MODULE_SPLIT.COMPONENTS ? components(model, references, maxEntities) : packages(model);
+
+		// Merge the groups that depend on each other in a cycle, then order
+		// them so each follows the groups it depends on
+		Map<RooEntity, Integer> groupOf = groupOf(groups);
+		List<Set<Integer>> groupDependencies = new ArrayList<Set<Integer>>();
+		for (List<RooEntity> group : groups)
+		{
+			Set<Integer> dependencies = new LinkedHashSet<Integer>();
+			for (RooEntity entity : group)
+			{
+				for (RooEntity referenced : references.get(entity))
+				{
+					dependencies.add(groupOf.get(referenced));
+				}
+			}
+			dependencies.remove(groupOf.get(group.get(0)));
+			groupDependencies.add(dependencies);
+		}
+
+		List<List<Integer>> cycles = new StronglyConnected(groupDependencies).components;
+		List<RooModule> modules = new ArrayList<RooModule>();
+		Map<Integer, RooModule> moduleOfGroup = new HashMap<Integer, RooModule>();
+		Set<String> names = new HashSet<String>();
+		for (List<Integer> cycle : cycles)
+		{
+			// Keep the entities of merged groups in model order
+			Set<RooEntity> merged = new HashSet<RooEntity>();
+			for (Integer group : cycle)
+			{
+				merged.addAll(groups.get(group));
+			}
+			List<RooEntity> first = groups.get(cycle.get(0));
+			String packageName = split == MODULE_SPLIT.COMPONENTS ? model.entityPackageName : RooScriptGenerator.packageOf(first.get(0), model);
+			RooModule module = new RooModule(uniqueName(names, packageName, split == MODULE_SPLIT.COMPONENTS), packageName);
+			for (RooEntity entity : model.entities)
+			{
+				if (merged.contains(entity))
+				{
+					module.entities.add(entity);
+				}
+			}
+			for (Integer group : cycle)
+			{
+				moduleOfGroup.put(group, module);
+			}
+			modules.add(module);
+
+			if (split == MODULE_SPLIT.COMPONENTS && module.entities.size() > maxEntities)
+			{
+				logger.warn("Module " + module.name + " holds " + module.entities.size() + " entities, more than the module size of " + maxEntities + ", as they refer to each other in a cycle");
+			}
+		}
+
+		for (int group = 0; group < groups.size(); group++)
+		{
+			RooModule module = moduleOfGroup.get(group);
+			for (Integer dependency : groupDependencies.get(group))
+			{
+				RooModule dependencyModule = moduleOfGroup.get(dependency);
+				if (dependencyModule != module && !module.dependencies.contains(dependencyModule.name))
+				{
+					module.dependencies.add(dependencyModule.name);
+				}
+			}
+		}
+		for (RooModule module : modules)
+		{
+			List<String> ordered = new ArrayList<String>();
+			for (RooModule dependency : modules)
+			{
+				if (module.dependencies.contains(dependency.name))
+				{
+					ordered.add(dependency.name);
+				}
+			}
+			module.dependencies.clear();
+			module.dependencies.addAll(ordered);
+		}
+		return modules;
+	}
+
+	/**
+	 * @return the entities of each package, in order of their first entity
+	 */
+	private static List<List<RooEntity>> packages(RooModel model)
+	{
+		Map<String, List<RooEntity>> packages = new LinkedHashMap<String, List<RooEntity>>();
+		for (RooEntity entity : model.entities)
+		{
+			String packageName = RooScriptGenerator.packageOf(entity, model);
+			List<RooEntity> group = packages.get(packageName);
+			if (group == null)
+			{
+				group = new ArrayList<RooEntity>();
+				packages.put(packageName, group);
+			}
+			group.add(entity);
+		}
+		return new ArrayList<List<RooEntity>>(packages.values());
+	}
+
+	/**
+	 * Finds the connected components of the entities with a union find, cuts
+	 * those larger than the given size in to pieces, and packs them in order of
+	 * their first entity in to groups of up to the given size
+	 */
+	private static List<List<RooEntity>> components(RooModel model, Map<RooEntity, Set<RooEntity>> references, int maxEntities)
+	{
+		Map<RooEntity, RooEntity> parents = new HashMap<RooEntity, RooEntity>();
+		for (RooEntity entity : model.entities)
+		{
+			parents.put(entity, entity);
+		}
+		for (Map.Entry<RooEntity, Set<RooEntity>> entity : references.entrySet())
+		{
+			for (RooEntity referenced : entity.getValue())
+			{
+				RooEntity root = root(parents, entity.getKey());
+				RooEntity referencedRoot = root(parents, referenced);
+				if (root != referencedRoot)
+				{
+					parents.put(referencedRoot, root);
+				}
+			}
+		}
+
+		Map<RooEntity, List<RooEntity>> components = new LinkedHashMap<RooEntity, List<RooEntity>>();
+		for (RooEntity entity : model.entities)
+		{
+			RooEntity root = root(parents, entity);
+			List<RooEntity> component = components.get(root);
+			if (component == null)
+			{
+				component = new ArrayList<RooEntity>();
+				components.put(root, component);
+			}
+			component.add(entity);
+		}
+
+		List<List<RooEntity>> pieces = new ArrayList<List<RooEntity>>();
+		for (List<RooEntity> component : components.values())
+		{
+			if (component.size() > maxEntities)
+			{
+				pieces.addAll(cut(component, references, maxEntities));
+			}
+			else
+			{
+				pieces.add(component);
+			}
+		}
+
+		List<List<RooEntity>> groups = new ArrayList<List<RooEntity>>();
+		List<RooEntity> group = null;
+		for (List<RooEntity> piece : pieces)
+		{
+			if (group == null || (group.size() + piece.size() > maxEntities))
+			{
+				group = new ArrayList<RooEntity>();
+				groups.add(group);
+			}
+			group.addAll(piece);
+		}
+		return groups;
+	}
+
+	/**
+	 * Cuts a component in to pieces of up to the given size. The entities
+	 * referring to each other in a cycle cannot be separated, so the cycles
+	 * are placed whole, each after the cycles it refers to, so that a piece
+	 * only ever depends on earlier pieces and the pieces are never merged
+	 * again. Of the cycles that may be placed next, the one with the most
+	 * references to and from the piece being filled is chosen, so the
+	 * references cut between pieces are few.
+	 */
+	private static List<List<RooEntity>> cut(List<RooEntity> component, Map<RooEntity, Set<RooEntity>> references, int maxEntities)
+	{
+		Map<RooEntity, Integer> indexOf = new HashMap<RooEntity, Integer>();
+		for (int i = 0; i < component.size(); i++)
+		{
+			indexOf.put(component.get(i), i);
+		}
+		List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+		List<Set<Integer>> related = new ArrayList<Set<Integer>>();
+		for (int i = 0; i < component.size(); i++)
+		{
+			dependencies.add(new LinkedHashSet<Integer>());
+			related.add(new HashSet<Integer>());
+		}
+		for (RooEntity entity : component)
+		{
+			int index = indexOf.get(entity);
+			for (RooEntity referenced : references.get(entity))
+			{
+				int referencedIndex = indexOf.get(referenced);
+				dependencies.get(index).add(referencedIndex);
+				related.get(index).add(referencedIndex);
+				related.get(referencedIndex).add(index);
+			}
+		}
+
+		List<List<Integer>> cycles = new StronglyConnected(dependencies).components;
+		int[] cycleOf = new int[component.size()];
+		for (int cycle = 0; cycle < cycles.size(); cycle++)
+		{
+			for (Integer index : cycles.get(cycle))
+			{
+				cycleOf[index] = cycle;
+			}
+		}
+
+		List<List<RooEntity>> pieces = new ArrayList<List<RooEntity>>();
+		boolean[] placed = new boolean[cycles.size()];
+		Set<Integer> piece = new HashSet<Integer>();
+		List<RooEntity> pieceEntities = null;
+		for (int remaining = cycles.size(); remaining > 0; remaining--)
+		{
+			int next = -1;
+			int nextReferences = -1;
+			for (int cycle = 0; cycle < cycles.size(); cycle++)
+			{
+				if (placed[cycle] || !dependenciesPlaced(cycles.get(cycle), dependencies, cycleOf, placed))
+				{
+					continue;
+				}
+				int pieceReferences = 0;
+				for (Integer index : cycles.get(cycle))
+				{
+					for (Integer other : related.get(index))
+					{
+						if (piece.contains(other))
+						{
+							pieceReferences++;
+						}
+					}
+				}
+				if (pieceReferences > nextReferences)
+				{
+					next = cycle;
+					nextReferences = pieceReferences;
+				}
+			}
+
+			List<Integer> members = cycles.get(next);
+			if (pieceEntities == null || (pieceEntities.size() + members.size() > maxEntities))
+			{
+				pieceEntities = new ArrayList<RooEntity>();
+				pieces.add(pieceEntities);
+				piece.clear();
+			}
+			for (Integer index : members)
+			{
+				pieceEntities.add(component.get(index));
+				piece.add(index);
+			}
+			placed[next] = true;
+		}
+		return pieces;
+	}
+
+	private static boolean dependenciesPlaced(List<Integer> cycle, List<Set<Integer>> dependencies, int[] cycleOf, boolean[] placed)
+	{
+		for (Integer index : cycle)
+		{
+			for (Integer dependency : dependencies.get(index))
+			{
+				if (cycleOf[dependency] != cycleOf[index] && !placed[cycleOf[dependency]])
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static RooEntity root(Map<RooEntity, RooEntity> parents, RooEntity entity)
+	{
+		RooEntity root = entity;
+		while (parents.get(root) != root)
+		{
+			root = parents.get(root);
+		}
+
+		// Compress the path so later finds are quick
+		while (parents.get(entity) != root)
+		{
+			RooEntity parent = parents.get(entity);
+			parents.put(entity, root);
+			entity = parent;
+		}
+		return root;
+	}
+
+	private static Map<RooEntity, Integer> groupOf(List<List<RooEntity>> groups)
+	{
+		Map<RooEntity, Integer> groupOf = new HashMap<RooEntity, Integer>();
+		for (int group = 0; group < groups.size(); group++)
+		{
+			for (RooEntity entity : groups.get(group))
+			{
+				groupOf.put(entity, group);
+			}
+		}
+		return groupOf;
+	}
+
+	/**
+	 * Names a module after the last segment of its package, numbered if the
+	 * name is taken or the modules are numbered
+	 */
+	private static String uniqueName(Set<String> names, String packageName, boolean numbered)
+	{
+		String trimmed = packageName.endsWith(".") ? packageName.substring(0, packageName.length() - 1) : packageName;
+		String base = trimmed.substring(trimmed.lastIndexOf('.') + 1);
+		if (base.length() == 0)
+		{
+			base = "module";
+		}
+
+		String name = numbered ? base + 1 : base;
+		for (int i = 2; !names.add(name); i++)
+		{
+			name = base + i;
+		}
+		return name;
+	}
+
+	/**
+	 * Tarjan's strongly connected components of the group dependencies. The
+	 * components are found in reverse topological order, so each component is
+	 * listed after every component it depends on.
+	 */
+	private static class StronglyConnected
+	{
+		final List<List<Integer>> components = new ArrayList<List<Integer>>();
+
+		private final List<Set<Integer>> dependencies;
+
+		private final int[] index;
+
+		private final int[] lowLink;
+
+		private final boolean[] onStack;
+
+		private final List<Integer> stack = new ArrayList<Integer>();
+
+		private int nextIndex = 1;
+
+		StronglyConnected(List<Set<Integer>> dependencies)
+		{
+			this.dependencies = dependencies;
+			index = new int[dependencies.size()];
+			lowLink = new int[dependencies.size()];
+			onStack = new boolean[dependencies.size()];
+			for (int group = 0; group < dependencies.size(); group++)
+			{
+				if (index[group] == 0)
+				{
+					visit(group);
+				}
+			}
+		}
+
+		/**
+		 * Visits the groups reachable from a group depth first. The path being
+		 * visited is kept on a stack of its own rather than the thread's, as a
+		 * chain of references may be as long as the model is large
+		 */
+		private void visit(int start)
+		{
+			List<Integer> path = new ArrayList<Integer>();
+			List<Iterator<Integer>> pending = new ArrayList<Iterator<Integer>>();
+			enter(start, path, pending);
+
+			while (!path.isEmpty())
+			{
+				int group = path.get(path.size() - 1);
+				Iterator<Integer> dependencies = pending.get(pending.size() - 1);
+				if (dependencies.hasNext())
+				{
+					int dependency = dependencies.next();
+					if (index[dependency] == 0)
+					{
+						enter(dependency, path, pending);
+					}
+					else if (onStack[dependency])
+					{
+						lowLink[group] = Math.min(lowLink[group], index[dependency]);
+					}
+					continue;
+				}
+
+				path.remove(path.size() - 1);
+				pending.remove(pending.size() - 1);
+				if (!path.isEmpty())
+				{
+					int parent = path.get(path.size() - 1);
+					lowLink[parent] = Math.min(lowLink[parent], lowLink[group]);
+				}
+
+				if (lowLink[group] == index[group])
+				{
+					List<Integer> component = new ArrayList<Integer>();
+					int member;
+					do
+					{
+						member = stack.remove(stack.size() - 1);
+						onStack[member] = false;
+						component.add(member);
+					}
+					while (member != group);
+
+					// List the members in group order
+					Collections.sort(component);
+					components.add(component);
+				}
+			}
+		}
+
+		private void enter(int group, List<Integer> path, List<Iterator<Integer>> pending)
+		{
+			index[group] = nextIndex;
+			lowLink[group] = nextIndex;
+			nextIndex++;
+			stack.add(group);
+			onStack[group] = true;
+			path.add(group);
+			pending.add(dependencies.get(group).iterator());
+		}
+	}
+}
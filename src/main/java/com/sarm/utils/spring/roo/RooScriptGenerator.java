@@ -1,14 +1,34 @@
 package com.sarm.utils.spring.roo;
 
 import java.io.File;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -16,14 +36,14 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.dom4j.Document;
+import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.Node;
 import org.dom4j.tree.DefaultAttribute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.roo.model.ReservedWords;
 
+import com.sarm.utils.xml.SchemaIndex;
 import com.sarm.utils.xml.XMLDOMHelper;
 
 /**
@@ -43,6 +63,11 @@ import com.sarm.utils.xml.XMLDOMHelper;
  */
 public class RooScriptGenerator
 {
+	/**
+	 * @deprecated scripts are written with the single line ending
+	 *             {@link ScriptSink#LINE_ENDING}
+	 */
+	@Deprecated
 	public final static char[] CRLF = new char[]
 	{ 13, 10 };
 
@@ -54,6 +79,24 @@ public class RooScriptGenerator
 	public final static String WEB_TIER_OPTION = "enableWebTier";
 	public final static String SELENIUM_TESTS_OPTION = "enableSeleniumTests";
 	public final static String JSON_ONLY_OPTION = "jsonOnly";
+	public final static String BATCH_OPTION = "batch";
+	public final static String THREADS_OPTION = "threads";
+	public final static String STREAMING_OPTION = "streaming";
+	public final static String ECHO_OPTION = "echoScript";
+	public final static String CACHE_DIR_OPTION = "cacheDir";
+	public final static String DELTA_UPDATE_OPTION = "deltaUpdate";
+	public final static String METRICS_OPTION = "metricsReport";
+	public final static String WATCH_OPTION = "watch";
+	public final static String SERVER_PORT_OPTION = "serverPort";
+	public final static String MAX_CONCURRENT_OPTION = "maxConcurrent";
+	public final static String TEMPLATES_OPTION = "templates";
+	public final static String TYPE_MAPPINGS_OPTION = "typeMappings";
+	public final static String SCHEMA_CATALOG_OPTION = "schemaCatalog";
+	public final static String EXTRACT_THREADS_OPTION = "extractThreads";
+	public final static String MODULES_OPTION = "modules";
+	public final static String MODULE_SIZE_OPTION = "moduleSize";
+	public final static String MINIMISE_OPTION = "minimise";
+	public final static String OUTPUT_OPTION = "output";
 	
 	/**
 	 * The start of a http protocol in a namespace
@@ -110,7 +153,7 @@ public class RooScriptGenerator
 	/**
 	 * Roo command to create an entity repository
 	 */
-	private final static String ROO_CREATE_REPO = "repository jpa --interface ";
+	private final static String ROO_CREATE_REPO = "repository jpa --interface %%PACKAGE%%%%ENTITY%%Repository --entity %%PACKAGE%%%%ENTITY%%";
 
 	private final static String PACKAGE_TAG = "%%PACKAGE%%";
 
@@ -127,22 +170,41 @@ public class RooScriptGenerator
 	private final static String FIELD_NAME_TAG = "%%FIELD_NAME%%";
 
 	/**
-	 * The namespace prefix for the XSD schema
+	 * The roo command templates, compiled once
 	 */
-	private String xsdNsPrefix = "";
-	
+	private final static CommandTemplates DEFAULT_TEMPLATES = new CommandTemplates(defaultTemplates());
+
+	private static Map<String, String> defaultTemplates()
+	{
+		Map<String, String> templates = new HashMap<String, String>();
+		templates.put(CommandTemplates.ENTITY, ROO_CREATE_ENTITY);
+		templates.put(CommandTemplates.REPOSITORY, ROO_CREATE_REPO);
+		templates.put(CommandTemplates.SELENIUM_TEST, ROO_CREATE_SELENIUM_TEST);
+		templates.put(CommandTemplates.MANY_TO_MANY, ROO_MANY_TO_MANY);
+		templates.put(CommandTemplates.MANY_TO_ONE, ROO_MANY_TO_ONE);
+		templates.put(CommandTemplates.ONE_TO_MANY, ROO_ONE_TO_MANY);
+		templates.put(CommandTemplates.ONE_TO_ONE, ROO_ONE_TO_ONE);
+		templates.put(CommandTemplates.REFERENCE, ROO_REFERENCE);
+		return templates;
+	}
+
 	/**
-	 * The target namespace prefix for the XSD schema
+	 * The namespace prefix we bind the XSD namespace to when querying a schema
 	 */
-	private String targetNsPrefix = "";
-	
+	public final static String XSD_PREFIX = XMLDOMHelper.XSD_PREFIX;
+
 	/**
-	 * The XSD schema document we load in for parsing
+	 * The name of the summary file written to the target directory of a batch
+	 * run
 	 */
-	private Document srcSchema;
-	
-	
-	
+	public final static String BATCH_SUMMARY_FILENAME = "batch-summary.txt";
+
+	/**
+	 * The name of the cache report written to the target directory of a batch
+	 * run when a cache is used
+	 */
+	public final static String CACHE_REPORT_FILENAME = "cache-report.txt";
+
 	/**
 	 * Annotation to add to an element in a complex schema to indicate that it
 	 * is a ket field in a complex element e.g.:
@@ -205,7 +267,7 @@ public class RooScriptGenerator
 	}
 
 	/**
-	 * Instructs the mojo to annotate generated entities with
+	 * Instructs the generator to annotate generated entities with
 	 * @RooJpaActiveRecord. This is the default pattern for Roo entities which
 	 * means that an entity encapsulates and maintains its own CRUD interactions
 	 * with the data source. Setting this value to false will instead annotate
@@ -244,7 +306,8 @@ public class RooScriptGenerator
 	private boolean generateWebTier = true;
 
 	/**
-	 * If enabled, commands will be added to the roo script to generate selenium tests
+	 * If enabled, commands will be added to the roo script to generate selenium
+	 * tests of the web tier. Not used without the web tier
 	 */
 	private boolean generateSeleniumTests = true;
 
@@ -274,7 +337,7 @@ public class RooScriptGenerator
 
 	private final static String UNBOUNDED = "unbounded";
 
-	public final static String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
+	public final static String XSD_NAMESPACE = XMLDOMHelper.XSD_NAMESPACE;
 
 	/**
 	 * This list is taken from here:
@@ -331,467 +394,1836 @@ public class RooScriptGenerator
 	}
 
 	/**
-	 * Reads the XSD file and generates the roo script
-	 * 
-	 * @throws Exception
+	 * If enabled, the XSD is read in a single forward pass with a StAX parser
+	 * straight in to the entity model rather than being loaded in to a DOM and
+	 * queried with XPath. This uses far less memory on large schemas.
 	 */
-	public void generateScript() throws Exception
-	{
-		
-		// Create the target dir if it does not exist
-		File targetDirFile = targetFile;
-		File targetDir = targetDirFile.getParentFile();
+	private boolean streamingParser;
 
-		if (!targetDir.exists())
-		{
-			if (!targetDir.mkdirs())
-				throw new RuntimeException("Failed to create all directories in the specified target directory path [" + targetDirFile + "].");
-		}
+	/**
+	 * @return the streamingParser
+	 */
+	public boolean isStreamingParser()
+	{
+		return streamingParser;
+	}
 
-		// We also create an update script which only contains the changes to
-		// the entities and none of the scaffolding
-		String updateFilename = targetDirFile.getAbsoluteFile().getName();
-		if (updateFilename.contains("."))
-		{
-			updateFilename = updateFilename.substring(0, updateFilename.lastIndexOf(".")) + "Update" + updateFilename.substring(updateFilename.lastIndexOf("."));
-		} else
-		{
-			updateFilename += "Update";
-		}
+	/**
+	 * @param streamingParser the streamingParser to set
+	 */
+	public void setStreamingParser(boolean streamingParser)
+	{
+		this.streamingParser = streamingParser;
+	}
 
-		// Create our script
-		PrintStream rooScript = new PrintStream(targetDirFile);
+	/**
+	 * If enabled, the roo script is also written to standard out as it is
+	 * generated
+	 */
+	private boolean echoScript;
 
-		PrintStream rooUpdateScript = new PrintStream(targetDir + File.separator + updateFilename);
-		rooUpdateScript.println("##########################################");
-		rooUpdateScript.println("# This script only contains the entities #");
-		rooUpdateScript.println("# and should be run against an existing  #");
-		rooUpdateScript.println("# roo projects to update any changes in  #");
-		rooUpdateScript.println("# the model							  #");
-		rooUpdateScript.println("##########################################");
+	/**
+	 * @return the echoScript
+	 */
+	public boolean isEchoScript()
+	{
+		return echoScript;
+	}
 
-		// Load in the doc
-		srcSchema = XMLDOMHelper.readFile(srcFile.getAbsolutePath());
-		srcSchema.getRootElement().addNamespace("xs", XSD_NAMESPACE);
+	/**
+	 * @param echoScript the echoScript to set
+	 */
+	public void setEchoScript(boolean echoScript)
+	{
+		this.echoScript = echoScript;
+	}
 
-		// Find the target namespace for this schema
-		DefaultAttribute targetNs = (DefaultAttribute) srcSchema.getRootElement().selectSingleNode("@targetNamespace");
-		DefaultAttribute xmlns = (DefaultAttribute) srcSchema.getRootElement().selectSingleNode("@xmlns");
+	/**
+	 * If enabled, a snapshot of the model is stored next to the roo script and
+	 * the update script only holds what has been added or changed since the
+	 * snapshot of the previous run
+	 */
+	private boolean deltaUpdate;
 
-		
-		List<Namespace> namespaces = srcSchema.getRootElement().declaredNamespaces();
-		for (Namespace ns : namespaces)
-		{
-			if (ns.getURI().equals(targetNs.getStringValue()))
-			{
-				targetNsPrefix = ns.getPrefix();
-			}
-			else if( ns.getURI().equals(XSD_NAMESPACE) )
-			{
-				xsdNsPrefix = ns.getPrefix();
-			}
-		}
+	/**
+	 * @return the deltaUpdate
+	 */
+	public boolean isDeltaUpdate()
+	{
+		return deltaUpdate;
+	}
 
-		String entityPackageName = extractPackageFromNamespace(targetNs.getStringValue());
+	/**
+	 * @param deltaUpdate the deltaUpdate to set
+	 */
+	public void setDeltaUpdate(boolean deltaUpdate)
+	{
+		this.deltaUpdate = deltaUpdate;
+	}
 
-		// Create standard project initialisation steps in script
-		rooScript.println("##########################");
-		rooScript.println("# Project Initialisation #");
-		rooScript.println("##########################");
-		rooScript.println("");
-		rooScript.println("# Create the project");
-		rooScript.println("project --topLevelPackage " + entityPackageName.substring(0, entityPackageName.length() - 1));
-		rooScript.println("");
-		rooScript.println("# Setup persistence");
-		rooScript.println("jpa setup --provider HIBERNATE --database " + databaseType);
-		rooScript.println("");
-		rooScript.println("#######################");
-		rooScript.println("# Create the entities #");
-		rooScript.println("#######################");
-		rooScript.println("");
-
-		rooUpdateScript.println("#######################");
-		rooUpdateScript.println("# Update the entities #");
-		rooUpdateScript.println("#######################");
-		rooUpdateScript.println("");
+	/**
+	 * If enabled, the commands of each script are collected and minimised by a
+	 * {@link CommandMinimiser} before they are written. Each script is then held
+	 * in memory until it is complete rather than streamed to its file
+	 */
+	private boolean minimiseCommands;
 
-		// Fetch all the complex types
-		// List<Node> complexTypes =
-		// srcSchema.selectNodes("//xs:complexType | //xs:simpleType");
-		List<Node> complexTypeNodes= srcSchema.getRootElement().selectNodes("xs:complexType");
-		List<Node> elementNodes = srcSchema.getRootElement().selectNodes("xs:element");
-		
-		List<Node> entityElements = new ArrayList<Node>(complexTypeNodes);
-		entityElements.addAll(elementNodes);
-		
-		Map<String, List<RooField>> entities = new HashMap<String, List<RooField>>();
-		
-		// Create the Roo entites
-		for (Node entityNode : entityElements)
-		{
-			String nodeName = entityNode.selectSingleNode("@name") == null ? "" : entityNode.selectSingleNode("@name").getStringValue();
+	/**
+	 * @return the minimiseCommands
+	 */
+	public boolean isMinimiseCommands()
+	{
+		return minimiseCommands;
+	}
 
-			if (nodeName == null || nodeName.equals(""))
-				continue;
+	/**
+	 * @param minimiseCommands the minimiseCommands to set
+	 */
+	public void setMinimiseCommands(boolean minimiseCommands)
+	{
+		this.minimiseCommands = minimiseCommands;
+	}
 
-			String newEntityName = convertReservedWords(nodeName);
+	/**
+	 * If enabled, the time taken and bytes allocated by each phase and entity
+	 * of a run are written as a JSON report next to the roo script
+	 */
+	private boolean metricsReport;
 
-			// Now find any elements in the node that reference other
-			// entities
-			List<Node> elements = entityNode.selectNodes(entityNode.getUniquePath() + "//xs:element");
+	/**
+	 * @return the metricsReport
+	 */
+	public boolean isMetricsReport()
+	{
+		return metricsReport;
+	}
 
-			// Lets build a map of all complex types by name, what
-			// elements they have, and their cardinality
-			List<RooField> containingElements = new ArrayList<RooField>();
+	/**
+	 * @param metricsReport the metricsReport to set
+	 */
+	public void setMetricsReport(boolean metricsReport)
+	{
+		this.metricsReport = metricsReport;
+	}
 
-			// Inheritance
-			Node extensionNode = entityNode.selectSingleNode(entityNode.getUniquePath() + "//xs:extension");
-			String extensionCommand = "";
-			if (extensionNode != null)
-			{
-				String base = extensionNode.selectSingleNode("@base") == null ? "" : extensionNode.selectSingleNode("@base").getStringValue();
+	/**
+	 * The templates the roo commands are rendered from
+	 */
+	private CommandTemplates commandTemplates = DEFAULT_TEMPLATES;
 
-				if (!base.equals(""))
-				{
-					if (base.contains(":"))
-					{
-						base = base.substring(base.indexOf(":") + 1);
-					}
+	/**
+	 * @return the commandTemplates
+	 */
+	public CommandTemplates getCommandTemplates()
+	{
+		return commandTemplates;
+	}
 
-					extensionCommand = " --extends " + base;
-				}
-			}
+	/**
+	 * @param commandTemplates the commandTemplates to set
+	 */
+	public void setCommandTemplates(CommandTemplates commandTemplates)
+	{
+		this.commandTemplates = commandTemplates;
+	}
 
-			// Write the create entity script line
-			rooScript.println("# " + nodeName);
-			rooScript.println(ROO_CREATE_ENTITY.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, newEntityName).replace(ACTIVERECORD_TAG, "" + activeRecordStyle) + extensionCommand);
+	/**
+	 * Converts the names read from a schema, remembering the names it has seen
+	 */
+	private final NameNormaliser nameNormaliser = new NameNormaliser();
 
-			rooUpdateScript.println("# " + nodeName);
-			rooUpdateScript.println(ROO_CREATE_ENTITY.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, newEntityName).replace(ACTIVERECORD_TAG, "" + activeRecordStyle) + extensionCommand);
+	/**
+	 * Maps XSD types to roo field types
+	 */
+	private TypeMapping typeMapping = TypeMapping.defaults();
 
-			// First iteration to extract OneToMany
-			for (Node element : elements)
-			{
+	/**
+	 * @return the typeMapping
+	 */
+	public TypeMapping getTypeMapping()
+	{
+		return typeMapping;
+	}
 
-				RooField rooField = xsdElementToRooField(entityNode,element);
+	/**
+	 * @param typeMapping the typeMapping to set
+	 */
+	public void setTypeMapping(TypeMapping typeMapping)
+	{
+		this.typeMapping = typeMapping;
+	}
 
-				// Does the type have a prefix?
-				if( rooField.xsdType.contains(":") )
-				{
-					// Check if the type references another entity in this
-					// schema
-					if (rooField.xsdType.startsWith(targetNsPrefix))
-					{
-						rooField.xsdType = rooField.xsdType.split(":")[1];
-						containingElements.add(rooField);
-						//addContainingElements(element, elementName, type, containingElements);
-						
-					}
-					// TODO: check if type refers to another namespace
-					/*else if(  )
-					{
-						
-					}*/
-					// Otherwise its a normal element field
-					else
-					{
+	/**
+	 * If set, a script whose XSD and settings are unchanged since it was last
+	 * generated is not generated again
+	 */
+	private ScriptCache scriptCache;
 
-						rooField.owningEntity = entityPackageName + convertReservedWords( nodeName );
-						rooScript.println( rooField.toString() );
-						rooUpdateScript.println( rooField.toString() );
-					}
-				}
-				else
-				{
-					containingElements.add(rooField);
-				}
-				
-				
+	/**
+	 * @return the scriptCache
+	 */
+	public ScriptCache getScriptCache()
+	{
+		return scriptCache;
+	}
 
-			}
+	/**
+	 * @param scriptCache the scriptCache to set
+	 */
+	public void setScriptCache(ScriptCache scriptCache)
+	{
+		this.scriptCache = scriptCache;
+	}
 
-			entities.put(nodeName, containingElements);
+	/**
+	 * Resolves the schemas an XSD includes and imports to local files
+	 */
+	private SchemaCatalog schemaCatalog = SchemaCatalog.empty();
 
-			// Add the entity to the Roo repo script file
-			if (!activeRecordStyle)
-			{
-				rooScript.println(ROO_CREATE_REPO + entityPackageName + nodeName + "Repository --entity " + entityPackageName + nodeName);
-				rooUpdateScript.println(ROO_CREATE_REPO + entityPackageName + nodeName + "Repository --entity " + entityPackageName + nodeName);
-			}
+	/**
+	 * @return the schemaCatalog
+	 */
+	public SchemaCatalog getSchemaCatalog()
+	{
+		return schemaCatalog;
+	}
 
-			rooScript.println("");
-			rooUpdateScript.println("");
+	/**
+	 * @param schemaCatalog the schemaCatalog to set
+	 */
+	public void setSchemaCatalog(SchemaCatalog schemaCatalog)
+	{
+		this.schemaCatalog = schemaCatalog;
+	}
 
-		}
+	/**
+	 * The schemas included and imported, read once for every schema and run
+	 * that references them
+	 */
+	private SchemaCache schemaCache = new SchemaCache();
 
-		rooScript.println("########################");
-		rooScript.println("# Entity Relationships #");
-		rooScript.println("########################");
+	/**
+	 * @return the schemaCache
+	 */
+	public SchemaCache getSchemaCache()
+	{
+		return schemaCache;
+	}
 
-		rooUpdateScript.println("########################");
-		rooUpdateScript.println("# Entity Relationships #");
-		rooUpdateScript.println("########################");
+	/**
+	 * @param schemaCache the schemaCache to set
+	 */
+	public void setSchemaCache(SchemaCache schemaCache)
+	{
+		this.schemaCache = schemaCache;
+	}
 
-		// Set a store for each binding node we create and any bidings
-		// that need to be
-		// updated later by a separate element that refers back to it
-		Map<String, String> relationCommands = new HashMap<String, String>();
-		Map<String, String> mapLater = new HashMap<String, String>();
+	/**
+	 * The most entities extracted by one task, fewer are extracted on the
+	 * calling thread alone
+	 */
+	private final static int ENTITIES_PER_EXTRACTION = 32;
 
-		// Now lets go through our built up list of entities and define
-		// the relational bindings
-		List<String> alreadyMapped = new ArrayList<String>();
-		Iterator<String> entityKeysIt = entities.keySet().iterator();
-		while (entityKeysIt.hasNext())
-		{
-			String entityName = entityKeysIt.next();
-			List<RooField> elements = entities.get(entityName);
+	/**
+	 * The number of threads the entities of a schema loaded in to a DOM are
+	 * extracted on
+	 */
+	private int extractThreads = Runtime.getRuntime().availableProcessors();
 
-			// Iterate each element in the entity
-			for(RooField rooField : elements)
-			{					
-				// Fetch the element name and cardinality
-				String elementName = rooField.fieldName;
-				String cardinality = rooField.cardinality.name();
-				String elementType = rooField.xsdType;
-				
+	/**
+	 * The pools entities are extracted on, by their number of threads, shared
+	 * by every generator so concurrent runs never extract on more threads than
+	 * they ask for between them
+	 */
+	private final static ConcurrentMap<Integer, ForkJoinPool> EXTRACT_POOLS = new ConcurrentHashMap<Integer, ForkJoinPool>();
 
-				elementName = convertReservedWords(elementName);
-				
-				// Get the details of the element being referred to
-				List<RooField> referredEntity = entities.get(elementType);
-				String referredElementName = "";
-				String referredCardinality = "";
-				
-				if (referredEntity != null)
-				{
-					RooField referredElementDetails = getReferredEntityFromElementDetails( referredEntity, entityName);
-					if (referredElementDetails != null)
-					{
-						referredElementName = referredElementDetails.fieldName;
-						referredCardinality = referredElementDetails.cardinality.toString();
-					}
-				}
+	/**
+	 * @return the extractThreads
+	 */
+	public int getExtractThreads()
+	{
+		return extractThreads;
+	}
 
-				// ONE TO MANY
-				if (cardinality.equals(CARDINALITY.UNBOUNDED.toString()) || cardinality.equals(CARDINALITY.ONE_OR_MORE.toString()))
-				{
-					// MANY TO MANY
-					if (referredCardinality.equals(CARDINALITY.UNBOUNDED.toString()) || referredCardinality.equals(CARDINALITY.ONE_OR_MORE.toString()))
-					{
-						String command = new String(CRLF) + "# " + entityName + " to " + elementType + " [Many to Many]" + new String(CRLF);
+	/**
+	 * @param extractThreads the extractThreads to set
+	 */
+	public void setExtractThreads(int extractThreads)
+	{
+		this.extractThreads = extractThreads;
+	}
 
-						// TODO: doesnt handle references to external
-						// namespaces!
-						command += ROO_MANY_TO_MANY.replace(FIELD_NAME_TAG, elementName).replace(FROM_PACKAGE_TAG, entityPackageName).replace(FROM_ENTITY_TAG, entityName).replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, elementType);
+	/**
+	 * How the entities of a model are split in to roo modules
+	 */
+	public enum MODULE_SPLIT
+	{
+		/**
+		 * A single project holding every entity
+		 */
+		NONE,
+
+		/**
+		 * A module for each package, so for each namespace
+		 */
+		NAMESPACE,
+
+		/**
+		 * Modules of up to {@link RooScriptGenerator#getModuleSize()} entities
+		 * related to each other
+		 */
+		COMPONENTS
+	}
 
-						String key = entityName.compareTo(elementType) < 0 ? entityName + elementType : elementType + entityName;
-						if (!alreadyMapped.contains(key))
-						{
-							command += " --mappedBy " + referredElementName;
-							alreadyMapped.add(key);
-						}
+	/**
+	 * What is generated from a schema
+	 */
+	public enum OUTPUT
+	{
+		/**
+		 * A roo script and its update script
+		 */
+		ROO_SCRIPT,
+
+		/**
+		 * JPA entity and repository sources, written straight to a source
+		 * tree without running roo
+		 */
+		JPA_SOURCE
+	}
 
-						rooScript.println(command);
-						rooUpdateScript.println(command);
+	/**
+	 * What is generated from each schema
+	 */
+	private OUTPUT output = OUTPUT.ROO_SCRIPT;
 
-						relationCommands.put(entityName + ":" + elementType, command);
-					}
-					// ONE TO MANY
-					else
-					{
-						String command = new String(CRLF) + "# " + entityName + " to " + elementType + " [One to Many]" + new String(CRLF);
+	/**
+	 * @return the output
+	 */
+	public OUTPUT getOutput()
+	{
+		return output;
+	}
 
-						// TODO: doesnt handle references to external
-						// namespaces!
-						command += ROO_ONE_TO_MANY.replace(FIELD_NAME_TAG, elementName).replace(FROM_PACKAGE_TAG, entityPackageName).replace(FROM_ENTITY_TAG, entityName).replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, elementType);
+	/**
+	 * @param output the output to set
+	 */
+	public void setOutput(OUTPUT output)
+	{
+		this.output = output;
+	}
 
-						String mappedBy = mapLater.get(entityName + ":" + elementType);
-						if (mappedBy != null)
-						{
-							// command += " --mappedBy " +
-							// referredElementName;
-						}
+	private final static int DEFAULT_MODULE_SIZE = 250;
 
-						rooScript.println(command);
-						rooUpdateScript.println(command);
+	/**
+	 * The version roo gives the modules it creates
+	 */
+	private final static String MODULE_VERSION = "0.1.0.BUILD-SNAPSHOT";
 
-						relationCommands.put(entityName + ":" + elementType, command);
+	/**
+	 * How the entities are split in to roo modules
+	 */
+	private MODULE_SPLIT moduleSplit = MODULE_SPLIT.NONE;
 
-					}
-				}
-				// MANY TO ONE
-				else if (cardinality.equals(CARDINALITY.MANDATORY.toString()) && (referredCardinality.equals(CARDINALITY.UNBOUNDED.toString()) || referredCardinality.equals(CARDINALITY.ONE_OR_MORE.toString())))
-				{
-					String command = new String(CRLF) + "# " + entityName + " to " + elementType + " [Many to One]" + new String(CRLF);
+	/**
+	 * The most entities in a module split by {@link MODULE_SPLIT#COMPONENTS}
+	 */
+	private int moduleSize = DEFAULT_MODULE_SIZE;
 
-					// TODO: doesnt handle references to external
-					// namespaces!
-					command += ROO_MANY_TO_ONE.replace(FIELD_NAME_TAG, elementName).replace(FROM_PACKAGE_TAG, entityPackageName).replace(FROM_ENTITY_TAG, entityName).replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, elementType);
+	/**
+	 * @return the moduleSplit
+	 */
+	public MODULE_SPLIT getModuleSplit()
+	{
+		return moduleSplit;
+	}
 
-					// We need to fetch the parent binding or if its not
-					// been created yet, add a flag
-					// to set it later
-					String oneToManyNodeCommand = relationCommands.get(elementType + ":" + entityName);
-					if (oneToManyNodeCommand != null)
-					{
-						/*
-						 * TODO Element parentClassNode = (Element)
-						 * oneToManyNode
-						 * .selectSingleNode(oneToManyNode.getUniquePath() +
-						 * "//annox:annotate[@annox:class='" +
-						 * OneToMany.class.getName() + "']");
-						 * parentClassNode.addAttribute("mappedBy",
-						 * elementName);
-						 */
-					} else
-					{
-						mapLater.put(elementType + ":" + entityName, elementName);
-					}
+	/**
+	 * @param moduleSplit the moduleSplit to set
+	 */
+	public void setModuleSplit(MODULE_SPLIT moduleSplit)
+	{
+		this.moduleSplit = moduleSplit;
+	}
 
-					rooScript.println(command);
-					rooUpdateScript.println(command);
+	/**
+	 * @return the moduleSize
+	 */
+	public int getModuleSize()
+	{
+		return moduleSize;
+	}
 
-					relationCommands.put(entityName + ":" + elementType, command);
-				}
+	/**
+	 * @param moduleSize the moduleSize to set
+	 */
+	public void setModuleSize(int moduleSize)
+	{
+		this.moduleSize = moduleSize;
+	}
+
+	/**
+	 * Reads the XSD file and generates the roo script
+	 * 
+	 * @throws Exception
+	 */
+	public void generateScript() throws Exception
+	{
+		generateScript(srcFile, targetFile);
+	}
+
+	/**
+	 * Reads the given XSD file and generates the roo script, and its update
+	 * script, at the given target. All state for the run is held locally so
+	 * this can safely be called by many threads at once. If a
+	 * {@link ScriptCache} is set and the scripts are up to date they are left
+	 * untouched, otherwise the cache is saved once they are generated.
+	 * 
+	 * The XSD file may instead be a {@link ModelSnapshot}, in which case the
+	 * model is loaded from it without parsing any XML.
+	 * 
+	 * The schemas the XSD includes and imports are resolved by the
+	 * {@link #getSchemaCatalog()} and read through the
+	 * {@link #getSchemaCache()}.
+	 * 
+	 * Each phase of the run is measured by {@link RunMetrics}.
+	 * 
+	 * With the {@link OUTPUT#JPA_SOURCE} output the target is instead the
+	 * root of the source tree the entities are written to, and no cache is
+	 * used as only the sources that have changed are written.
+	 * 
+	 * @param xsdFile
+	 * @param scriptFile
+	 * @throws Exception
+	 */
+	public void generateScript(File xsdFile, File scriptFile) throws Exception
+	{
+		generate(xsdFile, scriptFile);
+		if (scriptCache != null)
+		{
+			scriptCache.save();
+		}
+	}
+
+	/**
+	 * Generates the roo script, and its update script, as
+	 * {@link #generateScript(File, File)} does, but leaves the cache for the
+	 * caller to save
+	 * 
+	 * @param xsdFile
+	 * @param scriptFile
+	 * @return the files of the schemas the XSD includes and imports, directly
+	 *         or not
+	 * @throws Exception
+	 */
+	List<File> generate(File xsdFile, File scriptFile) throws Exception
+	{
+		String cacheKey = null;
+		String cacheStamp = null;
+		String cacheSettings = null;
+		List<File> cachedSchemas = null;
+		ScriptCache scriptCache = output == OUTPUT.ROO_SCRIPT ? this.scriptCache : null;
+		if (scriptCache != null)
+		{
+			cachedSchemas = scriptCache.getReferencedSchemas(scriptFile);
+			cacheSettings = cacheSettings();
+
+			// Only hash the inputs once their timestamps say they may have changed
+			cacheStamp = scriptCache.stamp(xsdFile, cachedSchemas, cacheSettings);
+			if (scriptCache.isUnchanged(scriptFile, updateScriptFile(scriptFile), cacheStamp))
+			{
+				logger.info("Roo scripts in " + scriptFile + " are up to date");
+				return cachedSchemas;
+			}
+
+			cacheKey = scriptCache.key(xsdFile, cachedSchemas, cacheSettings);
+			if (scriptCache.isUpToDate(scriptFile, updateScriptFile(scriptFile), cacheKey))
+			{
+				// Touched but not changed, so stamp them afresh for the next run
+				scriptCache.put(scriptFile, updateScriptFile(scriptFile), cacheKey, cacheStamp, cachedSchemas);
+				logger.info("Roo scripts in " + scriptFile + " are up to date");
+				return cachedSchemas;
+			}
+		}
+
+		RunMetrics metrics = new RunMetrics(xsdFile.getPath());
+		RooModel model;
+		if (xsdFile.getName().endsWith(ModelSnapshot.EXTENSION))
+		{
+			RunMetrics.Span parse = metrics.phase(RunMetrics.PARSE);
+			model = ModelSnapshot.read(xsdFile);
+			parse.end();
+		}
+		else
+		{
+			model = streamingParser ? new StaxSchemaReader(this, metrics).read(xsdFile) : readModel(xsdFile, metrics);
+			model = mergeReferencedSchemas(xsdFile, model, metrics);
+		}
+
+		if (output == OUTPUT.JPA_SOURCE)
+		{
+			writeSources(model, scriptFile, xsdFile, metrics);
+		}
+		else
+		{
+			writeScripts(model, scriptFile, metrics);
+		}
+
+		metrics.finish();
+		if (metricsReport)
+		{
+			metrics.writeJson(metricsFile(scriptFile));
+		}
+
+		if (scriptCache != null)
+		{
+			// Key the scripts by the schemas actually referenced this time
+			if (!model.referencedSchemas.equals(cachedSchemas))
+			{
+				cacheKey = scriptCache.key(xsdFile, model.referencedSchemas, cacheSettings);
+				cacheStamp = scriptCache.stamp(xsdFile, model.referencedSchemas, cacheSettings);
+			}
+			scriptCache.put(scriptFile, updateScriptFile(scriptFile), cacheKey, cacheStamp, model.referencedSchemas);
+		}
+		return model.referencedSchemas;
+	}
+
+	/**
+	 * Reads the schemas a model includes and imports, and the schemas they
+	 * reference in turn, and merges their entities in to a new model ahead of
+	 * the model's own, so every entity is created before it is referred to.
+	 * Included schemas share the package of the model, imported ones are
+	 * generated in the package of their own namespace. Each schema is read
+	 * once however often it is referenced.
+	 * 
+	 * @param xsdFile
+	 * @param model
+	 * @param metrics
+	 * @return the merged model, or the model itself if it references no
+	 *         schemas
+	 * @throws Exception
+	 *             if an included schema cannot be resolved to a local file
+	 */
+	RooModel mergeReferencedSchemas(File xsdFile, RooModel model, RunMetrics metrics) throws Exception
+	{
+		if (model.references.isEmpty())
+			return model;
+
+		RunMetrics.Span span = metrics.phase(RunMetrics.REFERENCES);
+		Set<File> visited = new HashSet<File>();
+		visited.add(xsdFile.getCanonicalFile());
+		List<RooModel> referencedModels = new ArrayList<RooModel>();
+
+		RooModel merged = new RooModel();
+		merged.targetNamespace = model.targetNamespace;
+		merged.entityPackageName = model.entityPackageName;
+		merged.references = model.references;
+		readReferencedSchemas(xsdFile, model, visited, referencedModels, merged.referencedSchemas);
+
+		// The model's own entities take precedence over any of the same name
+		Set<String> entityNames = new HashSet<String>();
+		for (RooEntity entity : model.entities)
+		{
+			entityNames.add(entity.name);
+		}
+		for (RooModel referencedModel : referencedModels)
+		{
+			for (RooEntity entity : referencedModel.entities)
+			{
+				if (entityNames.add(entity.name))
+				{
+					merged.entities.add(entity);
+				}
+				else
+				{
+					logger.warn("Entity " + entity.name + " of " + referencedModel.targetNamespace + " has the name of another entity, only the first is generated");
+				}
+			}
+			merged.complexTypeNames.addAll(referencedModel.complexTypeNames);
+			merged.unknownTypes.addAll(referencedModel.unknownTypes);
+		}
+		merged.entities.addAll(model.entities);
+		merged.complexTypeNames.addAll(model.complexTypeNames);
+		merged.unknownTypes.addAll(model.unknownTypes);
+		span.end();
+
+		return merged;
+	}
+
+	/**
+	 * Reads the schemas a schema references, depth first so a schema's
+	 * references are listed before it
+	 * 
+	 * @param schemaFile
+	 * @param model
+	 *            the model of the schema
+	 * @param visited
+	 *            the schemas already read, so a schema referenced more than
+	 *            once, or in a cycle, is read once
+	 * @param referencedModels
+	 *            collects the models read
+	 * @param referencedSchemas
+	 *            collects the files read
+	 * @throws Exception
+	 */
+	private void readReferencedSchemas(File schemaFile, RooModel model, Set<File> visited, List<RooModel> referencedModels, List<File> referencedSchemas) throws Exception
+	{
+		for (SchemaReference reference : model.references)
+		{
+			File referencedFile = schemaCatalog.resolve(reference, schemaFile);
+			if (referencedFile == null)
+			{
+				if (reference.include)
+				{
+					throw new IOException("Could not resolve " + reference + " in " + schemaFile + " to a local file, map it in a schema catalog");
+				}
+				logger.warn("Could not resolve " + reference + " in " + schemaFile + " to a local file, its types are written as plain fields");
+				continue;
+			}
+
+			referencedFile = referencedFile.getCanonicalFile();
+			if (!visited.add(referencedFile))
+				continue;
+
+			RooModel referencedModel = schemaCache.get(referencedFile, reference.include ? model.targetNamespace : null, "typeMappings=" + typeMapping.getOverrides(), new SchemaCache.Reader()
+			{
+				@Override
+				public RooModel read(File file, String namespace) throws Exception
+				{
+					RunMetrics metrics = new RunMetrics(file.getPath());
+					return streamingParser ? new StaxSchemaReader(RooScriptGenerator.this, metrics, namespace).read(file) : readModel(file, namespace, metrics);
+				}
+			});
+			referencedSchemas.add(referencedFile);
+			readReferencedSchemas(referencedFile, referencedModel, visited, referencedModels, referencedSchemas);
+			referencedModels.add(referencedModel);
+		}
+	}
+
+	/**
+	 * @return the settings that affect the generated script, and the version
+	 *         of the generator, as a string to key the cache with
+	 */
+	private String cacheSettings()
+	{
+		return "databaseType=" + databaseType + ",activeRecordStyle=" + activeRecordStyle + ",jsonOnly=" + jsonOnly + ",generateWebTier=" + generateWebTier + ",generateSeleniumTests=" + generateSeleniumTests + ",deltaUpdate=" + deltaUpdate + ",templates=" + commandTemplates.getOverrides() + ",typeMappings=" + typeMapping.getOverrides() + ",schemaCatalog=" + schemaCatalog.getMappings() + ",moduleSplit=" + moduleSplit + ",moduleSize=" + moduleSize + ",minimiseCommands=" + minimiseCommands + ",version=" + RooScriptGenerator.class.getPackage().getImplementationVersion();
+	}
+
+	/**
+	 * @param scriptFile
+	 * @return the snapshot of the model written alongside the given roo script
+	 */
+	static File snapshotFile(File scriptFile)
+	{
+		return siblingFile(scriptFile, ModelSnapshot.EXTENSION);
+	}
+
+	/**
+	 * @param scriptFile
+	 * @return the metrics report written alongside the given roo script
+	 */
+	static File metricsFile(File scriptFile)
+	{
+		return siblingFile(scriptFile, RunMetrics.EXTENSION);
+	}
+
+	/**
+	 * @param scriptFile
+	 * @param extension
+	 * @return the file alongside the given roo script with the same name and
+	 *         the given extension
+	 */
+	private static File siblingFile(File scriptFile, String extension)
+	{
+		String filename = scriptFile.getAbsoluteFile().getName();
+		if (filename.contains("."))
+		{
+			filename = filename.substring(0, filename.lastIndexOf("."));
+		}
+		return new File(scriptFile.getAbsoluteFile().getParentFile(), filename + extension);
+	}
+
+	/**
+	 * @param scriptFile
+	 * @return the update script written alongside the given roo script
+	 */
+	static File updateScriptFile(File scriptFile)
+	{
+		// We also create an update script which only contains the changes to
+		// the entities and none of the scaffolding
+		String updateFilename = scriptFile.getAbsoluteFile().getName();
+		if (updateFilename.contains("."))
+		{
+			updateFilename = updateFilename.substring(0, updateFilename.lastIndexOf(".")) + "Update" + updateFilename.substring(updateFilename.lastIndexOf("."));
+		} else
+		{
+			updateFilename += "Update";
+		}
+		return new File(scriptFile.getAbsoluteFile().getParentFile(), updateFilename);
+	}
+
+	/**
+	 * Loads the XSD file into a DOM and reads the entity model from it
+	 * 
+	 * @param xsdFile
+	 * @return
+	 * @throws Exception
+	 */
+	public RooModel readModel(File xsdFile) throws Exception
+	{
+		return readModel(xsdFile, new RunMetrics(xsdFile.getPath()));
+	}
+
+	/**
+	 * Loads the XSD file into a DOM and reads the entity model from it,
+	 * measuring each phase and entity
+	 * 
+	 * @param xsdFile
+	 * @param metrics
+	 * @return
+	 * @throws Exception
+	 */
+	RooModel readModel(File xsdFile, RunMetrics metrics) throws Exception
+	{
+		return readModel(xsdFile, null, metrics);
+	}
+
+	/**
+	 * Loads the XSD file into a DOM and reads the entity model from it,
+	 * measuring each phase and entity. The schemas it includes and imports
+	 * are recorded in the model but not read.
+	 * 
+	 * @param xsdFile
+	 * @param namespace
+	 *            the namespace of the schema including this one, which is
+	 *            taken on if this schema has no target namespace, or null
+	 * @param metrics
+	 * @return
+	 * @throws Exception
+	 */
+	RooModel readModel(File xsdFile, String namespace, RunMetrics metrics) throws Exception
+	{
+		SchemaContext ctx = new SchemaContext();
+
+		// Load in the doc
+		RunMetrics.Span parse = metrics.phase(RunMetrics.PARSE);
+		ctx.srcSchema = XMLDOMHelper.readFile(xsdFile.getAbsolutePath());
+		ctx.srcSchema.getRootElement().addNamespace(XSD_PREFIX, XSD_NAMESPACE);
+		ctx.index = new SchemaIndex(ctx.srcSchema);
+		parse.end();
+
+		// Find the target namespace for this schema
+		DefaultAttribute targetNs = (DefaultAttribute) XMLDOMHelper.selectSingleNode(ctx.srcSchema.getRootElement(), "@targetNamespace");
+		String targetNamespace = targetNs != null ? targetNs.getStringValue() : namespace;
+		if (targetNamespace == null)
+		{
+			throw new RuntimeException("Schema " + xsdFile + " does not define a targetNamespace");
+		}
+
+		RooModel model = new RooModel();
+		model.targetNamespace = targetNamespace;
+		model.entityPackageName = extractPackageFromNamespace(model.targetNamespace);
+		String entityPackageName = model.entityPackageName;
+
+		// Note the schemas included and imported
+		Set<String> importedNamespaces = new HashSet<String>();
+		for (Node referenceNode : XMLDOMHelper.selectNodes(ctx.srcSchema.getRootElement(), "xs:include | xs:import"))
+		{
+			SchemaReference reference = new SchemaReference();
+			reference.include = referenceNode.getName().equals("include");
+			reference.namespace = ((Element) referenceNode).attributeValue("namespace");
+			reference.schemaLocation = ((Element) referenceNode).attributeValue("schemaLocation");
+			model.references.add(reference);
+			if (reference.namespace != null)
+			{
+				importedNamespaces.add(reference.namespace);
+			}
+		}
+
+		List<Namespace> namespaces = ctx.srcSchema.getRootElement().declaredNamespaces();
+		for (Namespace ns : namespaces)
+		{
+			if (ns.getURI().equals(targetNamespace))
+			{
+				ctx.targetNsPrefix = ns.getPrefix();
+			}
+			else if( ns.getURI().equals(XSD_NAMESPACE) )
+			{
+				ctx.xsdNsPrefix = ns.getPrefix();
+			}
+			else if( importedNamespaces.contains(ns.getURI()) && ns.getPrefix().length() > 0 )
+			{
+				ctx.importedNsPrefixes.add(ns.getPrefix());
+			}
+		}
+
+		model.complexTypeNames.addAll(ctx.index.getComplexTypeNames());
+
+		// Fetch all the complex types
+		// List<Node> complexTypes =
+		// srcSchema.selectNodes("//xs:complexType | //xs:simpleType");
+		List<Node> complexTypeNodes= XMLDOMHelper.selectNodes(ctx.srcSchema.getRootElement(), "xs:complexType");
+		List<Node> elementNodes = XMLDOMHelper.selectNodes(ctx.srcSchema.getRootElement(), "xs:element");
+		
+		List<Node> entityElements = new ArrayList<Node>(complexTypeNodes);
+		entityElements.addAll(elementNodes);
+		
+		// Create the Roo entites, each independently of the others, and add
+		// them in schema order whatever order they were extracted in
+		RunMetrics.Span extract = metrics.phase(RunMetrics.EXTRACT);
+		for (ExtractedEntity extracted : extractEntities(ctx, entityElements, entityPackageName, metrics))
+		{
+			if (extracted != null)
+			{
+				model.entities.add(extracted.entity);
+				ctx.unknownTypes.addAll(extracted.unknownTypes);
+			}
+		}
+		extract.end();
+
+		// Resolve every unique constraint in the schema once
+		RunMetrics.Span uniqueSpan = metrics.phase(RunMetrics.UNIQUES);
+		Map<String, String> elementTypes = new HashMap<String, String>();
+		for (Map.Entry<String, Element> element : ctx.index.getElements().entrySet())
+		{
+			String type = targetLocalName(element.getValue().attributeValue("type"), ctx.targetNsPrefix);
+			if (type != null)
+			{
+				elementTypes.put(element.getKey(), type);
+			}
+		}
+
+		UniqueConstraintIndex uniques = new UniqueConstraintIndex(this, ctx.targetNsPrefix, elementTypes);
+		for (Node uniqueNode : XMLDOMHelper.selectNodes(ctx.srcSchema, "//xs:unique"))
+		{
+			List<String> fieldXpaths = new ArrayList<String>();
+			for (Node fieldXpath : XMLDOMHelper.selectNodes(uniqueNode, "xs:field/@xpath"))
+			{
+				fieldXpaths.add(fieldXpath.getStringValue());
+			}
+			uniques.add(uniqueNode.getParent().attributeValue("name"), XMLDOMHelper.selectStringValue(uniqueNode, "xs:selector/@xpath"), fieldXpaths);
+		}
+		applyUniqueConstraints(model, uniques);
+		uniqueSpan.end();
+
+		model.unknownTypes.addAll(warnUnknownTypes(xsdFile.getPath(), ctx.unknownTypes, ctx.xsdNsPrefix, ctx.targetNsPrefix, ctx.importedNsPrefixes));
+
+		return model;
+	}
+
+	/**
+	 * Extracts each entity from its node, in parallel on the
+	 * {@link #getExtractThreads()} if there are enough entities to be worth
+	 * splitting
+	 * 
+	 * @param ctx
+	 * @param entityNodes
+	 * @param entityPackageName
+	 * @param metrics
+	 * @return the entity extracted from each node, in the order of the nodes,
+	 *         or null for a node with no name
+	 */
+	private ExtractedEntity[] extractEntities(SchemaContext ctx, List<Node> entityNodes, String entityPackageName, RunMetrics metrics)
+	{
+		ExtractEntities task = new ExtractEntities(ctx, entityNodes, entityPackageName, metrics, new ExtractedEntity[entityNodes.size()], 0, entityNodes.size());
+		if (extractThreads > 1 && entityNodes.size() > ENTITIES_PER_EXTRACTION)
+		{
+			extractPool().invoke(task);
+		}
+		else
+		{
+			task.compute();
+		}
+		return task.extracted;
+	}
+
+	/**
+	 * @return the shared pool of the {@link #getExtractThreads()}, created on
+	 *         first use
+	 */
+	private ForkJoinPool extractPool()
+	{
+		ForkJoinPool pool = EXTRACT_POOLS.get(extractThreads);
+		if (pool == null)
+		{
+			ForkJoinPool created = new ForkJoinPool(extractThreads);
+			pool = EXTRACT_POOLS.putIfAbsent(extractThreads, created);
+			if (pool == null)
+			{
+				pool = created;
+			}
+			else
+			{
+				created.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Reads an entity, and its fields, from a top level complex type or
+	 * element
+	 * 
+	 * @param ctx
+	 * @param entityNode
+	 * @param entityPackageName
+	 * @param metrics
+	 * @return the entity, or null if the node has no name
+	 */
+	private ExtractedEntity extractEntity(SchemaContext ctx, Node entityNode, String entityPackageName, RunMetrics metrics)
+	{
+		String nodeName = XMLDOMHelper.selectStringValue(entityNode, "@name");
+
+		if (nodeName == null || nodeName.equals(""))
+			return null;
+
+		RunMetrics.Span entitySpan = metrics.entity(RunMetrics.EXTRACT, nodeName);
+		RooEntity entity = new RooEntity();
+		entity.name = nodeName;
+		entity.packageName = entityPackageName;
+		Set<String> unknownTypes = new TreeSet<String>();
+
+		// Now find any elements in the node that reference other
+		// entities
+		List<Node> elements = XMLDOMHelper.selectNodes(entityNode, ".//xs:element");
+
+		// Inheritance
+		entity.extendsEntity = XMLDOMHelper.selectStringValue(entityNode, "(.//xs:extension)[1]/@base");
+
+		for (Node element : elements)
+		{
+			addField(entity, xsdElementToRooField(ctx, element, unknownTypes), ctx.targetNsPrefix, ctx.importedNsPrefixes, entityPackageName);
+		}
+
+		entitySpan.end();
+		return new ExtractedEntity(entity, unknownTypes);
+	}
+
+	/**
+	 * Extracts a range of entities, splitting it in half until each task has
+	 * few enough entities to extract itself
+	 */
+	private class ExtractEntities extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final SchemaContext ctx;
+
+		private final List<Node> entityNodes;
+
+		private final String entityPackageName;
+
+		private final RunMetrics metrics;
+
+		/**
+		 * The entity extracted from each node, shared by every task of the
+		 * extraction which each fill in their own range
+		 */
+		private final ExtractedEntity[] extracted;
+
+		private final int from;
+
+		private final int to;
+
+		ExtractEntities(SchemaContext ctx, List<Node> entityNodes, String entityPackageName, RunMetrics metrics, ExtractedEntity[] extracted, int from, int to)
+		{
+			this.ctx = ctx;
+			this.entityNodes = entityNodes;
+			this.entityPackageName = entityPackageName;
+			this.metrics = metrics;
+			this.extracted = extracted;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= ENTITIES_PER_EXTRACTION)
+			{
+				for (int i = from; i < to; i++)
+				{
+					extracted[i] = extractEntity(ctx, entityNodes.get(i), entityPackageName, metrics);
+				}
+			}
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new ExtractEntities(ctx, entityNodes, entityPackageName, metrics, extracted, from, middle), new ExtractEntities(ctx, entityNodes, entityPackageName, metrics, extracted, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * An entity extracted from the schema, and the XSD types found in it that
+	 * have no roo field type
+	 */
+	private static final class ExtractedEntity
+	{
+		final RooEntity entity;
+
+		final Set<String> unknownTypes;
+
+		ExtractedEntity(RooEntity entity, Set<String> unknownTypes)
+		{
+			this.entity = entity;
+			this.unknownTypes = Collections.unmodifiableSet(unknownTypes);
+		}
+	}
+
+	/**
+	 * Marks every field made unique by a unique constraint, and records the
+	 * constraints over more than one field on their entity
+	 * 
+	 * @param model
+	 * @param uniques
+	 */
+	void applyUniqueConstraints(RooModel model, UniqueConstraintIndex uniques)
+	{
+		for (RooEntity entity : model.entities)
+		{
+			for (RooField rooField : entity.fields)
+			{
+				if (uniques.isUnique(entity.name, rooField.fieldName))
+				{
+					rooField.unique = true;
+				}
+			}
+
+			entity.compositeUniques = uniques.getCompositeUniques(entity.name);
+			for (List<String> compositeUnique : entity.compositeUniques)
+			{
+				logger.warn("The unique constraint over fields " + compositeUnique + " of " + entity.name + " cannot be expressed as a roo field option");
+			}
+		}
+	}
+
+	/**
+	 * Returns the local part of a qualified name if it is in the target
+	 * namespace
+	 * 
+	 * @param qualifiedName
+	 * @param targetNsPrefix
+	 * @return the local name or null if the name is null or in another
+	 *         namespace
+	 */
+	static String targetLocalName(String qualifiedName, String targetNsPrefix)
+	{
+		if (qualifiedName == null)
+			return null;
+
+		if (qualifiedName.contains(":"))
+		{
+			return qualifiedName.startsWith(targetNsPrefix + ":") ? qualifiedName.substring(targetNsPrefix.length() + 1) : null;
+		}
+		return targetNsPrefix.equals("") ? qualifiedName : null;
+	}
+
+	/**
+	 * Adds a field read from the schema to its owning entity, removing the
+	 * namespace prefix from its type if it refers to another type in this
+	 * schema, or in a schema it imports
+	 * 
+	 * @param entity
+	 * @param rooField
+	 * @param targetNsPrefix
+	 * @param importedNsPrefixes
+	 *            the prefixes of the namespaces the schema imports
+	 * @param entityPackageName
+	 */
+	void addField(RooEntity entity, RooField rooField, String targetNsPrefix, Set<String> importedNsPrefixes, String entityPackageName)
+	{
+		// Does the type have a prefix?
+		if( rooField.xsdType.contains(":") )
+		{
+			// Check if the type references another entity in this
+			// schema, or one imported in to it
+			if (rooField.xsdType.startsWith(targetNsPrefix) || importedNsPrefixes.contains(rooField.xsdType.substring(0, rooField.xsdType.indexOf(':'))))
+			{
+				rooField.xsdType = rooField.xsdType.split(":")[1];
+			}
+		}
+
+		rooField.owningEntity = entityPackageName + convertReservedWords( entity.name );
+		entity.fields.add(rooField);
+	}
+
+	/**
+	 * Writes the JPA entity and repository sources of the entity model, and
+	 * deletes those last written for the schema that no longer are
+	 * 
+	 * @param model
+	 * @param sourceDir
+	 *            the root of the source tree
+	 * @param xsdFile
+	 *            the schema the model was read from
+	 * @param metrics
+	 * @throws IOException
+	 */
+	void writeSources(RooModel model, File sourceDir, File xsdFile, RunMetrics metrics) throws IOException
+	{
+		if (!sourceDir.exists() && !sourceDir.mkdirs())
+		{
+			throw new RuntimeException("Failed to create all directories in the specified target directory path [" + sourceDir + "].");
+		}
+
+		RunMetrics.Span write = metrics.phase(RunMetrics.WRITE);
+		List<File> sources = new JpaSourceWriter(this).write(model, sourceDir, xsdFile, metrics);
+		write.end();
+
+		logger.info("Successfully created " + sources.size() + " JPA sources in " + sourceDir);
+	}
+
+	/**
+	 * Writes the roo script, and its update script, for the entity model
+	 * 
+	 * @param model
+	 * @param scriptFile
+	 * @param metrics
+	 * @throws Exception
+	 */
+	void writeScripts(RooModel model, File scriptFile, RunMetrics metrics) throws Exception
+	{
+		// Create the target dir if it does not exist
+		File targetDirFile = scriptFile;
+		File targetDir = targetDirFile.getAbsoluteFile().getParentFile();
+
+		if (!targetDir.exists())
+		{
+			if (!targetDir.mkdirs())
+				throw new RuntimeException("Failed to create all directories in the specified target directory path [" + targetDirFile + "].");
+		}
+
+		// Diff against the model the scripts were last generated from
+		File snapshotFile = snapshotFile(targetDirFile);
+		RooModel previous = null;
+		if (deltaUpdate && snapshotFile.exists())
+		{
+			try
+			{
+				previous = ModelSnapshot.read(snapshotFile);
+			}
+			catch (IOException e)
+			{
+				logger.warn("Could not read the model snapshot " + snapshotFile + ", the update script will hold every entity", e);
+			}
+		}
+
+		// Create our scripts, closing them however generation ends. They only
+		// replace the last scripts once they are complete
+		ScriptSink scripts = new ScriptSink(minimiseCommands);
+		try
+		{
+			ScriptSink.Target rooScript = scripts.open(targetDirFile);
+			if (echoScript)
+			{
+				rooScript = scripts.combine(rooScript, scripts.attach(System.out));
+			}
+			ScriptSink.Target rooUpdateScript = scripts.open(updateScriptFile(targetDirFile));
+
+			writeScripts(model, previous, scripts, rooScript, rooUpdateScript, metrics);
+
+			if (minimiseCommands)
+			{
+				RunMetrics.Span minimise = metrics.phase(RunMetrics.MINIMISE);
+				CommandMinimiser minimiser = new CommandMinimiser();
+				CommandMinimiser.Report scriptReport = scripts.minimise(rooScript, minimiser);
+				CommandMinimiser.Report updateReport = scripts.minimise(rooUpdateScript, minimiser);
+				minimise.end();
+
+				logger.info("Minimised " + targetDirFile + ". Script: " + scriptReport + ". Update script: " + updateReport);
+			}
+			scripts.complete();
+		}
+		finally
+		{
+			scripts.close();
+		}
+
+		if (deltaUpdate)
+		{
+			ModelSnapshot.write(model, snapshotFile);
+		}
+
+		logger.info("Successfully created roo scripts in " + targetDirFile);
+	}
+
+	/**
+	 * Writes the lines of the roo script and its update script. Given the
+	 * model the scripts were previously generated from, the update script only
+	 * holds the entities, fields and relationships added or changed since.
+	 * 
+	 * @param model
+	 * @param previous
+	 *            the previous model, or null to update everything
+	 * @param scripts
+	 * @param rooScript
+	 *            the full script
+	 * @param rooUpdateScript
+	 *            the script of the entities only
+	 * @param metrics
+	 * @throws IOException
+	 */
+	private void writeScripts(RooModel model, RooModel previous, ScriptSink scripts, ScriptSink.Target rooScript, ScriptSink.Target rooUpdateScript, RunMetrics metrics) throws IOException
+	{
+		if (moduleSplit != MODULE_SPLIT.NONE)
+		{
+			List<RooModule> modules = RooModule.split(model, moduleSplit, moduleSize);
+			if (modules.size() > 1)
+			{
+				writeModuleScripts(model, previous, modules, scripts, rooScript, rooUpdateScript, metrics);
+				return;
+			}
+		}
+
+		RunMetrics.Span write = metrics.phase(RunMetrics.WRITE);
+		StringBuilder command = new StringBuilder();
+		ScriptSink.Target bothScripts = scripts.combine(rooScript, rooUpdateScript);
+
+		writeUpdateScriptHeader(scripts, rooUpdateScript);
+
+		String entityPackageName = model.entityPackageName;
+
+		// Create standard project initialisation steps in script
+		scripts.println(rooScript, "##########################");
+		scripts.println(rooScript, "# Project Initialisation #");
+		scripts.println(rooScript, "##########################");
+		scripts.println(rooScript, "");
+		scripts.println(rooScript, "# Create the project");
+		scripts.println(rooScript, "project --topLevelPackage " + entityPackageName.substring(0, entityPackageName.length() - 1));
+		scripts.println(rooScript, "");
+		scripts.println(rooScript, "# Setup persistence");
+		scripts.println(rooScript, "jpa setup --provider HIBERNATE --database " + databaseType);
+		scripts.println(rooScript, "");
+		scripts.println(rooScript, "#######################");
+		scripts.println(rooScript, "# Create the entities #");
+		scripts.println(rooScript, "#######################");
+		scripts.println(rooScript, "");
+
+		scripts.println(rooUpdateScript, "#######################");
+		scripts.println(rooUpdateScript, "# Update the entities #");
+		scripts.println(rooUpdateScript, "#######################");
+		scripts.println(rooUpdateScript, "");
+
+		// The entities of the previous model, so only what has been added or
+		// changed since goes in to the update script
+		Map<String, RooEntity> previousEntities = entitiesByName(previous);
+		Map<String, RooEntity> entities = entitiesByName(model);
+
+		// Create the Roo entites
+		for (RooEntity entity : model.entities)
+		{
+			writeEntity(model, entity, entities, previousEntities.get(entity.name), scripts, rooScript, bothScripts, command, metrics);
+		}
+		write.end();
+
+		RunMetrics.Span relationships = metrics.phase(RunMetrics.RELATIONSHIPS);
+		scripts.println(bothScripts, "########################");
+		scripts.println(bothScripts, "# Entity Relationships #");
+		scripts.println(bothScripts, "########################");
+
+		// Only the relationships that are new since the previous model are
+		// updated
+		Set<String> previousCommands = previousRelationshipCommands(previous);
+		for (List<String> entityCommands : relationshipCommands(model).values())
+		{
+			for (String relationshipCommand : entityCommands)
+			{
+				scripts.println(previousCommands.contains(relationshipCommand) ? rooScript : bothScripts, relationshipCommand);
+			}
+		}
+		relationships.end();
+
+		RunMetrics.Span scaffold = metrics.phase(RunMetrics.SCAFFOLD);
+
+		if( generateWebTier )
+		{
+			scripts.println(rooScript, "");
+			scripts.println(rooScript, "########################");
+			scripts.println(rooScript, "# Web Tier	       #");
+			scripts.println(rooScript, "########################");
+			scripts.println(rooScript, "json all");			
+			
+			writeWebMvcCommands(model, scripts, rooScript);
+			
+			scripts.println(rooUpdateScript, "");
+			scripts.println(rooUpdateScript, "json all");
+			//scripts.println(rooUpdateScript, "web mvc json setup");
+			//scripts.println(rooUpdateScript, "web mvc json all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));
+			scripts.println(rooUpdateScript, "");
+		}
+		
+		// Selenium tests drive the controllers of the web tier, so there is
+		// nothing to test without it
+		if( generateSeleniumTests && generateWebTier )
+		{
+			writeSeleniumTests(model, previousEntities, scripts, rooScript, bothScripts);
+		}
+		scaffold.end();
+	}
+
+	/**
+	 * Writes the scripts of a model split in to roo modules. The project is a
+	 * parent of a module for each share of the entities, created after the
+	 * modules it depends on, each with its own persistence set up and
+	 * relationships. The web tier is a further module depending on all of them.
+	 * The update script focuses on each module before updating its entities.
+	 * 
+	 * @param model
+	 * @param previous
+	 *            the previous model, or null to update everything
+	 * @param modules
+	 * @param scripts
+	 * @param rooScript
+	 * @param rooUpdateScript
+	 * @param metrics
+	 * @throws IOException
+	 */
+	private void writeModuleScripts(RooModel model, RooModel previous, List<RooModule> modules, ScriptSink scripts, ScriptSink.Target rooScript, ScriptSink.Target rooUpdateScript, RunMetrics metrics) throws IOException
+	{
+		// The relationships are resolved across the whole model, then written
+		// in the module of the entity they start at
+		RunMetrics.Span relationships = metrics.phase(RunMetrics.RELATIONSHIPS);
+		Set<String> previousCommands = previousRelationshipCommands(previous);
+		Map<String, List<String>> relationshipCommands = relationshipCommands(model);
+		relationships.end();
+
+		RunMetrics.Span write = metrics.phase(RunMetrics.WRITE);
+		StringBuilder command = new StringBuilder();
+		ScriptSink.Target bothScripts = scripts.combine(rooScript, rooUpdateScript);
+		String topLevelPackage = model.entityPackageName.substring(0, model.entityPackageName.length() - 1);
+
+		writeUpdateScriptHeader(scripts, rooUpdateScript);
+
+		scripts.println(rooScript, "##########################");
+		scripts.println(rooScript, "# Project Initialisation #");
+		scripts.println(rooScript, "##########################");
+		scripts.println(rooScript, "");
+		scripts.println(rooScript, "# Create the parent project of the modules");
+		scripts.println(rooScript, "project --topLevelPackage " + topLevelPackage + " --packaging POM");
+		scripts.println(rooScript, "");
+
+		Map<String, RooEntity> previousEntities = entitiesByName(previous);
+		Map<String, RooEntity> entities = entitiesByName(model);
+
+		Set<String> moduleNames = new HashSet<String>();
+		for (RooModule module : modules)
+		{
+			moduleNames.add(module.name);
+
+			scripts.println(bothScripts, "##########################");
+			scripts.println(bothScripts, "# Module " + module.name);
+			scripts.println(bothScripts, "##########################");
+			scripts.println(bothScripts, "");
+
+			// New modules are created in the parent project
+			if (module != modules.get(0))
+			{
+				scripts.println(rooScript, "module focus --moduleName ~");
+			}
+			scripts.println(rooScript, "module create --moduleName " + module.name + " --topLevelPackage " + module.packageName.substring(0, module.packageName.length() - 1) + " --packaging JAR");
+			writeModuleDependencies(topLevelPackage, module.dependencies, scripts, rooScript);
+			scripts.println(rooScript, "jpa setup --provider HIBERNATE --database " + databaseType);
+			scripts.println(rooScript, "");
+
+			scripts.println(rooUpdateScript, "module focus --moduleName " + module.name);
+			scripts.println(rooUpdateScript, "");
+
+			for (RooEntity entity : module.entities)
+			{
+				writeEntity(model, entity, entities, previousEntities.get(entity.name), scripts, rooScript, bothScripts, command, metrics);
+			}
+
+			scripts.println(bothScripts, "# Relationships of module " + module.name);
+			for (RooEntity entity : module.entities)
+			{
+				List<String> entityCommands = relationshipCommands.get(entity.name);
+				for (String relationshipCommand : entityCommands)
+				{
+					scripts.println(previousCommands.contains(relationshipCommand) ? rooScript : bothScripts, relationshipCommand);
+				}
+			}
+			scripts.println(bothScripts, "");
+
+			if( generateWebTier )
+			{
+				scripts.println(bothScripts, "json all");
+				scripts.println(bothScripts, "");
+			}
+		}
+		write.end();
+
+		RunMetrics.Span scaffold = metrics.phase(RunMetrics.SCAFFOLD);
+
+		if( generateWebTier )
+		{
+			String webModule = "web";
+			for (int i = 2; moduleNames.contains(webModule); i++)
+			{
+				webModule = "web" + i;
+			}
+
+			scripts.println(rooScript, "########################");
+			scripts.println(rooScript, "# Web Tier	       #");
+			scripts.println(rooScript, "########################");
+			scripts.println(rooScript, "module focus --moduleName ~");
+			scripts.println(rooScript, "module create --moduleName " + webModule + " --topLevelPackage " + topLevelPackage + " --packaging WAR");
+
+			List<String> dependencies = new ArrayList<String>();
+			for (RooModule module : modules)
+			{
+				dependencies.add(module.name);
+			}
+			writeModuleDependencies(topLevelPackage, dependencies, scripts, rooScript);
+			writeWebMvcCommands(model, scripts, rooScript);
+
+			if( generateSeleniumTests )
+			{
+				scripts.println(rooUpdateScript, "module focus --moduleName " + webModule);
+				writeSeleniumTests(model, previousEntities, scripts, rooScript, bothScripts);
+			}
+		}
+		scaffold.end();
+	}
+
+	/**
+	 * Adds a dependency on each of the given modules to the focused module
+	 */
+	private void writeModuleDependencies(String topLevelPackage, List<String> modules, ScriptSink scripts, ScriptSink.Target rooScript) throws IOException
+	{
+		for (String module : modules)
+		{
+			scripts.println(rooScript, "dependency add --groupId " + topLevelPackage + " --artifactId " + module + " --version " + MODULE_VERSION);
+		}
+	}
+
+	private void writeUpdateScriptHeader(ScriptSink scripts, ScriptSink.Target rooUpdateScript) throws IOException
+	{
+		scripts.println(rooUpdateScript, "##########################################");
+		scripts.println(rooUpdateScript, "# This script only contains the entities #");
+		scripts.println(rooUpdateScript, "# and should be run against an existing  #");
+		scripts.println(rooUpdateScript, "# roo projects to update any changes in  #");
+		scripts.println(rooUpdateScript, "# the model							  #");
+		scripts.println(rooUpdateScript, "##########################################");
+	}
+
+	/**
+	 * Writes the commands creating an entity, its fields of types outside of
+	 * the schema and its repository
+	 * 
+	 * @param model
+	 * @param entity
+	 * @param entities
+	 *            the entities of the model by name
+	 * @param previousEntity
+	 *            the entity in the previous model, or null if it is new
+	 * @param scripts
+	 * @param rooScript
+	 * @param bothScripts
+	 * @param command
+	 *            a builder to reuse
+	 * @param metrics
+	 * @throws IOException
+	 */
+	private void writeEntity(RooModel model, RooEntity entity, Map<String, RooEntity> entities, RooEntity previousEntity, ScriptSink scripts, ScriptSink.Target rooScript, ScriptSink.Target bothScripts, StringBuilder command, RunMetrics metrics) throws IOException
+	{
+		CommandTemplates templates = commandTemplates;
+		String nodeName = entity.name;
+		String packageName = packageOf(entity, model);
+		RunMetrics.Span entitySpan = metrics.entity(RunMetrics.WRITE, nodeName);
+
+		String newEntityName = convertReservedWords(nodeName);
+
+		ScriptSink.Target entityScripts = previousEntity == null ? bothScripts : rooScript;
+
+		// Inheritance
+		String extensionCommand = "";
+		if (entity.extendsEntity != null)
+		{
+			String base = entity.extendsEntity;
+
+			if (!base.equals(""))
+			{
+				if (base.contains(":"))
+				{
+					base = base.substring(base.indexOf(":") + 1);
+				}
+
+				// A base imported from another namespace is in another
+				// package
+				RooEntity baseEntity = entities.get(base);
+				if (baseEntity != null && !packageOf(baseEntity, model).equals(packageName))
+				{
+					base = packageOf(baseEntity, model) + base;
+				}
+
+				extensionCommand = " --extends " + base;
+			}
+		}
+
+		// Write the create entity script line
+		scripts.println(entityScripts, "# " + nodeName);
+		command.setLength(0);
+		templates.get(CommandTemplates.ENTITY).render(command, PACKAGE_TAG, packageName, ENTITY_TAG, newEntityName, ACTIVERECORD_TAG, activeRecordStyle ? "true" : "false").append(extensionCommand);
+		scripts.println(entityScripts, command.toString());
+
+		// Fields still prefixed refer to a type outside of this schema so
+		// are written as normal element fields, the rest are written with
+		// the relationships
+		for (RooField rooField : entity.fields)
+		{
+			if( rooField.xsdType.contains(":") )
+			{
+				boolean unchanged = previousEntity != null && previousEntity.hasField(rooField);
+				scripts.println(unchanged ? rooScript : bothScripts, rooField.toString());
+			}
+		}
+
+		// Add the entity to the Roo repo script file
+		if (!activeRecordStyle)
+		{
+			scripts.println(entityScripts, templates.get(CommandTemplates.REPOSITORY).render(PACKAGE_TAG, packageName, ENTITY_TAG, nodeName));
+		}
+
+		scripts.println(entityScripts, "");
+		entitySpan.end();
+	}
+
+	private void writeWebMvcCommands(RooModel model, ScriptSink scripts, ScriptSink.Target rooScript) throws IOException
+	{
+		String entityPackageName = model.entityPackageName;
+		if( jsonOnly )
+		{
+			scripts.println(rooScript, "web mvc json setup");
+			scripts.println(rooScript, "web mvc json all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));
+		}
+		else
+		{
+			scripts.println(rooScript, "web mvc setup");
+			scripts.println(rooScript, "web mvc all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));				
+		}
+	}
+
+	private void writeSeleniumTests(RooModel model, Map<String, RooEntity> previousEntities, ScriptSink scripts, ScriptSink.Target rooScript, ScriptSink.Target bothScripts) throws IOException
+	{
+		// Add selenium tests
+		scripts.println(rooScript, "");
+		scripts.println(rooScript, "########################");
+		scripts.println(rooScript, "# Add Selenium Tests   #");
+		scripts.println(rooScript, "########################");
+		for (RooEntity entity : model.entities)
+		{
+			String newEntityName = convertReservedWords(entity.name);
+			ScriptSink.Target entityScripts = previousEntities.containsKey(entity.name) ? rooScript : bothScripts;
+
+			scripts.println(entityScripts, commandTemplates.get(CommandTemplates.SELENIUM_TEST).render(PACKAGE_TAG, packageOf(entity, model), ENTITY_TAG, newEntityName));
+		}
+	}
+
+	/**
+	 * @param model
+	 *            a model, or null
+	 * @return the entities of the model by name
+	 */
+	private static Map<String, RooEntity> entitiesByName(RooModel model)
+	{
+		Map<String, RooEntity> entities = new HashMap<String, RooEntity>();
+		if (model != null)
+		{
+			for (RooEntity entity : model.entities)
+			{
+				entities.put(entity.name, entity);
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * @param previous
+	 *            the previous model, or null
+	 * @return the relationship commands of the previous model
+	 */
+	private Set<String> previousRelationshipCommands(RooModel previous)
+	{
+		Set<String> previousCommands = new HashSet<String>();
+		if (previous != null)
+		{
+			for (List<String> entityCommands : relationshipCommands(previous).values())
+			{
+				previousCommands.addAll(entityCommands);
+			}
+		}
+		return previousCommands;
+	}
+	
+	/**
+	 * Builds the commands that create the relationships between the entities,
+	 * and the fields that refer to simple types in the target namespace
+	 * 
+	 * @param model
+	 * @return the commands of each entity they start at, in the order they are
+	 *         written
+	 */
+	private Map<String, List<String>> relationshipCommands(RooModel model)
+	{
+		String entityPackageName = model.entityPackageName;
+		CommandTemplates templates = commandTemplates;
+		Map<String, List<String>> entityCommands = new LinkedHashMap<String, List<String>>();
+		EntityGraph graph = new EntityGraph(model);
+
+		// Now lets go through the entities and define the relational bindings,
+		// each edge against the edge referring back to it
+		for (String entityName : graph.getEntities())
+		{
+			String fromPackageName = packageOf(graph.getEntity(entityName), model);
+			List<String> commands = new ArrayList<String>();
+			entityCommands.put(entityName, commands);
+			for (EntityGraph.Edge edge : graph.getEdges(entityName))
+			{
+				RooField rooField = edge.field;
+				String elementName = convertReservedWords(rooField.fieldName);
+				String elementType = edge.to;
+				String toPackageName = graph.isEntity(elementType) ? packageOf(graph.getEntity(elementType), model) : entityPackageName;
+				EntityGraph.Edge reverse = edge.reverse;
+
+				switch (graph.relationship(edge, model.complexTypeNames))
+				{
+					case MANY_TO_MANY:
+					{
+						StringBuilder commandBuilder = relationshipCommand(templates.get(CommandTemplates.MANY_TO_MANY), " [Many to Many]", elementName, fromPackageName, entityName, toPackageName, elementType);
+
+						// The first side of the pair written is mapped by the
+						// other, which owns the relationship
+						if (!reverse.resolved)
+						{
+							commandBuilder.append(" --mappedBy ").append(reverse.field.fieldName);
+						}
+						commands.add(commandBuilder.toString());
+						break;
+					}
+					case ONE_TO_MANY:
+					{
+						StringBuilder commandBuilder = relationshipCommand(templates.get(CommandTemplates.ONE_TO_MANY), " [One to Many]", elementName, fromPackageName, entityName, toPackageName, elementType);
 
-				// ONE TO ONE
-				else if (cardinality.equals(CARDINALITY.MANDATORY.toString()) && referredCardinality.equals(CARDINALITY.MANDATORY.toString()))
-				{
-					String command = new String(CRLF) + "# " + entityName + " to " + elementType + " [One to One]" + new String(CRLF);
+						// A single reference back owns the relationship
+						if (reverse != null)
+						{
+							commandBuilder.append(" --mappedBy ").append(reverse.field.fieldName);
+						}
+						commands.add(commandBuilder.toString());
+						break;
+					}
+					case MANY_TO_ONE:
+						commands.add(relationshipCommand(templates.get(CommandTemplates.MANY_TO_ONE), " [Many to One]", elementName, fromPackageName, entityName, toPackageName, elementType).toString());
+						break;
+					case ONE_TO_ONE:
+						commands.add(relationshipCommand(templates.get(CommandTemplates.ONE_TO_ONE), " [One to One]", elementName, fromPackageName, entityName, toPackageName, elementType).toString());
+						break;
+					case REFERENCE:
+						commands.add(relationshipCommand(templates.get(CommandTemplates.REFERENCE), " ", elementName, fromPackageName, entityName, toPackageName, elementType).toString());
+						break;
+					default:
+						// TODO: For now we ignore simple types as we dont
+						// want to impose a binding against a simple type
+						// (this could change)
+						commands.add(rooField.toString());
+				}
+				edge.resolved = true;
+			}
+		}
 
-					// TODO: doesnt handle references to external
-					// namespaces!
-					command += ROO_ONE_TO_ONE.replace(FIELD_NAME_TAG, elementName).replace(FROM_PACKAGE_TAG, entityPackageName).replace(FROM_ENTITY_TAG, entityName).replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, elementType);
+		return entityCommands;
+	}
 
-					rooScript.println(command);
-					rooUpdateScript.println(command);
+	/**
+	 * Renders a relationship command, headed by a comment of the entities it
+	 * relates
+	 * 
+	 * @param template
+	 * @param description
+	 *            the description of the relationship in the comment
+	 * @param fieldName
+	 * @param fromPackageName
+	 * @param fromEntity
+	 * @param toPackageName
+	 * @param toEntity
+	 * @return the command, to which further options may be appended
+	 */
+	private StringBuilder relationshipCommand(CommandTemplates.Template template, String description, String fieldName, String fromPackageName, String fromEntity, String toPackageName, String toEntity)
+	{
+		StringBuilder command = new StringBuilder(256);
+		command.append(ScriptSink.LINE_ENDING).append("# ").append(fromEntity).append(" to ").append(toEntity).append(description).append(ScriptSink.LINE_ENDING);
+		return template.render(command, FIELD_NAME_TAG, fieldName, FROM_PACKAGE_TAG, fromPackageName, FROM_ENTITY_TAG, fromEntity, PACKAGE_TAG, toPackageName, ENTITY_TAG, toEntity);
+	}
 
-					relationCommands.put(entityName + ":" + elementType, command);
-				}
-				// Plain singular reference
-				else if (cardinality.equals(CARDINALITY.NONE.toString()) ||
-						 cardinality.equals(CARDINALITY.OPTIONAL.toString()) ||
-						(cardinality.equals(CARDINALITY.MANDATORY.toString() ) && (referredEntity == null || referredEntity.size() == 0) ) )
-				{
-					// Find the defined element type in the source
-					// schema and determine if it is a complexType or a
-					// simpleType
-					// TODO: For now we ignore simple types as we dont
-					// want to impose a binding against a simple type
-					// (this could change)
-					if (srcSchema.selectSingleNode("//xs:complexType[@name=\"" + elementType + "\"]") != null)
-					{
-						String command = new String(CRLF) + "# " + entityName + " to " + elementType + " \n";
+	/**
+	 * @param entity
+	 * @param model
+	 * @return the package, with a trailing '.', the entity is generated in
+	 */
+	static String packageOf(RooEntity entity, RooModel model)
+	{
+		return entity.packageName != null ? entity.packageName : model.entityPackageName;
+	}
 
-						// TODO: doesnt handle references to external
-						// namespaces!
-						command += ROO_REFERENCE.replace(FIELD_NAME_TAG, elementName).replace(FROM_PACKAGE_TAG, entityPackageName).replace(FROM_ENTITY_TAG, entityName).replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, elementType);
+	/**
+	 * Generates a roo script, and its update script, for every XSD found by the
+	 * given directory or glob pattern (e.g. <code>schemas/**&#47;*.xsd</code>).
+	 * Schemas are generated concurrently on a pool of the given number of
+	 * threads and each script is written to the target directory at the same
+	 * relative path as its schema. A schema that fails to generate does not
+	 * abort the batch, instead its failure is recorded in the returned result
+	 * and in the summary file written to the target directory. The
+	 * {@link ScriptCache}, if set, is saved once when every schema is done.
+	 * 
+	 * @param xsdDirOrGlob
+	 * @param targetDir
+	 * @param threads
+	 * @return
+	 * @throws Exception
+	 */
+	public BatchResult generateScripts(String xsdDirOrGlob, File targetDir, int threads) throws Exception
+	{
+		File baseDir = globBaseDir(xsdDirOrGlob);
+		List<File> xsdFiles = findSchemas(xsdDirOrGlob);
 
-						rooScript.println(command);
-						rooUpdateScript.println(command);
-					}
-					// Then it must be a simple type
-					else
-					{
-						rooField.owningEntity = entityPackageName + convertReservedWords( entityName );
+		logger.info("Generating roo scripts for " + xsdFiles.size() + " schemas using " + threads + " threads");
 
-						// Write script entries to create the entities
-						//rooScript.println(ROO_CREATE_FIELD.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, entityName).replace(TYPE_TAG, rooType).replace(FIELD_NAME_TAG, fieldName));
-						//rooUpdateScript.println(ROO_CREATE_FIELD.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, entityName).replace(TYPE_TAG, rooType).replace(FIELD_NAME_TAG, fieldName) );
-						
-						rooScript.println( rooField.toString() );
-						rooUpdateScript.println( rooField.toString() );
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		Map<File, File> scriptFiles = new LinkedHashMap<File, File>();
+		Map<File, Future<?>> runs = new LinkedHashMap<File, Future<?>>();
+		try
+		{
+			for (final File xsdFile : xsdFiles)
+			{
+				String relativePath = baseDir.toURI().relativize(xsdFile.toURI()).getPath();
+				if (relativePath.contains("."))
+				{
+					relativePath = relativePath.substring(0, relativePath.lastIndexOf("."));
+				}
+				// Sources of every schema share the one source tree
+				final File scriptFile = output == OUTPUT.JPA_SOURCE ? targetDir : new File(targetDir, relativePath + ".roo");
+				scriptFiles.put(xsdFile, scriptFile);
 
+				runs.put(xsdFile, pool.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						generate(xsdFile, scriptFile);
+						return null;
 					}
+				}));
+			}
+
+			BatchResult result = new BatchResult();
+			for (Map.Entry<File, Future<?>> run : runs.entrySet())
+			{
+				try
+				{
+					run.getValue().get();
+					result.addGenerated(run.getKey(), scriptFiles.get(run.getKey()));
+				}
+				catch (ExecutionException e)
+				{
+					logger.error("Failed to generate roo script for " + run.getKey(), e.getCause());
+					result.addFailure(run.getKey(), e.getCause());
 				}
+			}
+			if (scriptCache != null)
+			{
+				scriptCache.save();
+			}
 
+			if (!targetDir.exists() && !targetDir.mkdirs())
+			{
+				throw new RuntimeException("Failed to create all directories in the specified target directory path [" + targetDir + "].");
+			}
+			result.writeSummary(new File(targetDir, BATCH_SUMMARY_FILENAME));
+			if (scriptCache != null)
+			{
+				scriptCache.writeReport(new File(targetDir, CACHE_REPORT_FILENAME));
+				logger.info(scriptCache.toString());
 			}
+
+			logger.info(result.toString());
+			return result;
 		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
 
-		if( generateWebTier )
+	/**
+	 * Lists the XSD files in a directory, or matching a glob pattern, in a
+	 * stable order
+	 * 
+	 * @param xsdDirOrGlob
+	 * @return
+	 * @throws IOException
+	 */
+	List<File> findSchemas(String xsdDirOrGlob) throws IOException
+	{
+		final List<File> xsdFiles = new ArrayList<File>();
+		File dir = new File(xsdDirOrGlob);
+
+		if (dir.isDirectory())
 		{
-			rooScript.println("");
-			rooScript.println("########################");
-			rooScript.println("# Web Tier	       #");
-			rooScript.println("########################");
-			rooScript.println("json all");			
-			
-			if( jsonOnly )
-			{
-				rooScript.println("web mvc json setup");
-				rooScript.println("web mvc json all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));
-			}
-			else
+			File[] files = dir.listFiles();
+			if (files != null)
 			{
-				rooScript.println("web mvc setup");
-				rooScript.println("web mvc all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));				
+				for (File file : files)
+				{
+					if (file.isFile() && file.getName().toLowerCase().endsWith(".xsd"))
+					{
+						xsdFiles.add(file);
+					}
+				}
 			}
-			
-			rooUpdateScript.println("");
-			rooUpdateScript.println("json all");
-			//rooUpdateScript.println("web mvc json setup");
-			//rooUpdateScript.println("web mvc json all --package " + entityPackageName.substring(0, entityPackageName.length() - 1));
-			rooUpdateScript.println("");
 		}
-		
-		if( generateSeleniumTests )
+		else
 		{
-			// Add selenium tests
-			rooScript.println("");
-			rooScript.println("########################");
-			rooScript.println("# Add Selenium Tests   #");
-			rooScript.println("########################");
-			for (Node node : entityElements)
+			final Path baseDir = globBaseDir(xsdDirOrGlob).toPath();
+			String pattern = baseDir.relativize(new File(xsdDirOrGlob).getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+
+			if (baseDir.toFile().isDirectory())
 			{
-				String nodeName = node.selectSingleNode("@name") == null ? "" : node.selectSingleNode("@name").getStringValue();
-	
-				if (nodeName == null || nodeName.equals(""))
-					continue;
-	
-				String newEntityName = convertReservedWords(nodeName);
-	
-				rooScript.println(ROO_CREATE_SELENIUM_TEST.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, newEntityName));
-				rooUpdateScript.println(ROO_CREATE_SELENIUM_TEST.replace(PACKAGE_TAG, entityPackageName).replace(ENTITY_TAG, newEntityName));
+				Files.walkFileTree(baseDir, new SimpleFileVisitor<Path>()
+				{
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					{
+						if (matcher.matches(baseDir.relativize(file)))
+						{
+							xsdFiles.add(file.toFile());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
 			}
 		}
-		
-		// close the file and we're done
-		rooScript.close();
-		rooUpdateScript.close();
-		
-		System.out.println("Successfully created roo scripts in " + targetDirFile );
+
+		Collections.sort(xsdFiles);
+		return xsdFiles;
 	}
-	
+
 	/**
+	 * Finds the directory a glob pattern is rooted at, i.e. the longest
+	 * leading part of the path without any glob characters
 	 * 
-	 * The list contains the element details int he format
-	 * 
-	 * name:cardinality:type
-	 * 
-	 * e.g.
-	 * 
-	 * firstName:MANDATORY:string
-	 * 
-	 * This retuns the element detail matching the specified type.
-	 * 
-	 * TODO: THis is SHIT. Create an ElementDetail type instead!
-	 * 
-	 * @param elementDetails
-	 * @param type
+	 * @param xsdDirOrGlob
 	 * @return
 	 */
-	private RooField getReferredEntityFromElementDetails( List<RooField> elementDetails, String type )
+	private File globBaseDir(String xsdDirOrGlob)
 	{
-		for( RooField rooField : elementDetails )
+		File dir = new File(xsdDirOrGlob).getAbsoluteFile();
+		while (dir != null && (!dir.isDirectory() || dir.getPath().matches(".*[*?\\[{].*")))
 		{
-			if( rooField.rooType.equals( type ) )
-			{
-				return rooField;
-			}
+			dir = dir.getParentFile();
 		}
-		
-		return null;
+		return dir == null ? new File("").getAbsoluteFile() : dir;
 	}
 
 	/**
@@ -846,66 +2278,135 @@ public class RooScriptGenerator
 	 * Converts an XSD element node that belongs to an entity to a Roo Field object
 	 * @return
 	 */
-	private RooField xsdElementToRooField( Node entity, Node element )
+	RooField xsdElementToRooField( SchemaContext ctx, Node element )
 	{
-		RooField rooField = new RooField();
+		return xsdElementToRooField( ctx, element, ctx.unknownTypes );
+	}
+
+	/**
+	 * Reads a field from an element of an entity
+	 * 
+	 * @param ctx
+	 * @param element
+	 * @param unknownTypes
+	 *            collects the unknown types of the field
+	 * @return
+	 */
+	RooField xsdElementToRooField( SchemaContext ctx, Node element, Set<String> unknownTypes )
+	{
+		Element fieldElement = (Element) element;
+		ElementDescriptor descriptor = new ElementDescriptor();
 
-		String elementName = element.selectSingleNode("@name") == null ? "" : element.selectSingleNode("@name").getStringValue();
-		String type = element.selectSingleNode("@type") == null ? "" : element.selectSingleNode("@type").getStringValue();
-		String minOccurs = element.selectSingleNode("@minOccurs") == null ? "" : element.selectSingleNode("@minOccurs").getStringValue();
-		String maxOccurs = element.selectSingleNode("@maxOccurs") == null ? "" : element.selectSingleNode("@maxOccurs").getStringValue();
-		String defaultValue = element.selectSingleNode("@default") == null ? null : element.selectSingleNode("@default").getStringValue();
-		String documentation = element.selectSingleNode(element.getUniquePath() + "//*[name()='documentation']") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='documentation']").getStringValue().trim();
-		String regexp = element.selectSingleNode(element.getUniquePath() + "//*[name()='pattern']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='pattern']/@value").getStringValue();		
-		String minValue = element.selectSingleNode(element.getUniquePath() + "//*[name()='minExclusive']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='minExclusive']/@value").getStringValue() ; 
-		String maxValue = element.selectSingleNode(element.getUniquePath() + "//*[name()='maxExclusive']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='maxExclusive']/@value").getStringValue() ;
+		descriptor.name = fieldElement.attributeValue("name");
+		descriptor.type = fieldElement.attributeValue("type");
+		descriptor.minOccurs = fieldElement.attributeValue("minOccurs");
+		descriptor.maxOccurs = fieldElement.attributeValue("maxOccurs");
+		descriptor.defaultValue = fieldElement.attributeValue("default");
+		descriptor.base = fieldElement.attributeValue("base");
 
-		if( minValue == null )
-		{
-			minValue = element.selectSingleNode(element.getUniquePath() + "//*[name()='minInclusive']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='minInclusive']/@value").getStringValue() ;
-		}
-		if( maxValue == null )
+		// Everything else is the first match found beneath the element
+		readDescendants(fieldElement, descriptor);
+
+		return descriptorToRooField( descriptor, ctx.xsdNsPrefix, unknownTypes );
+	}
+
+	/**
+	 * Fills in the descriptor from the descendants of an element in a single
+	 * depth first traversal, so each value is taken from the first match in
+	 * document order and nothing is overwritten once found. The documentation
+	 * and facets are matched on their unprefixed name.
+	 * 
+	 * @param parent
+	 * @param descriptor
+	 */
+	private void readDescendants( Element parent, ElementDescriptor descriptor )
+	{
+		for( Iterator<?> it = parent.elementIterator(); it.hasNext(); )
 		{
-			maxValue = element.selectSingleNode(element.getUniquePath() + "//*[name()='maxInclusive']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='maxInclusive']/@value").getStringValue() ;		
+			Element child = (Element) it.next();
+			String name = child.getQualifiedName();
+
+			if( descriptor.base == null )descriptor.base = child.attributeValue("base");
+
+			if( name.equals("documentation") && descriptor.documentation == null )
+			{
+				descriptor.documentation = child.getStringValue().trim();
+			}
+
+			// Check if the element has been annotated with a
+			// special "KEY" to denote it is a key element for
+			// hibernate
+			if( !descriptor.keyChecked && child.getName().equals("documentation") && XSD_NAMESPACE.equals(child.getNamespaceURI()) )
+			{
+				descriptor.keyChecked = true;
+				descriptor.key = child.getText().toLowerCase().contains(HIBERNATE_KEY_ANOTATION.toLowerCase());
+			}
+
+			String value = child.attributeValue("value");
+			if( value != null )
+			{
+				if( name.equals("pattern") && descriptor.pattern == null )
+					descriptor.pattern = value;
+				else if( name.equals("minExclusive") && descriptor.minExclusive == null )
+					descriptor.minExclusive = value;
+				else if( name.equals("minInclusive") && descriptor.minInclusive == null )
+					descriptor.minInclusive = value;
+				else if( name.equals("maxExclusive") && descriptor.maxExclusive == null )
+					descriptor.maxExclusive = value;
+				else if( name.equals("maxInclusive") && descriptor.maxInclusive == null )
+					descriptor.maxInclusive = value;
+				else if( name.equals("minLength") && descriptor.minLength == null )
+					descriptor.minLength = value;
+				else if( name.equals("maxLength") && descriptor.maxLength == null )
+					descriptor.maxLength = value;
+			}
+
+			readDescendants(child, descriptor);
 		}
+	}
 
-		
-		String minLength = element.selectSingleNode(element.getUniquePath() + "//*[name()='minLength']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='minLength']/@value").getStringValue() ; 
-		String maxLength = element.selectSingleNode(element.getUniquePath() + "//*[name()='maxLength']/@value") == null ? null : element.selectSingleNode(element.getUniquePath() + "//*[name()='maxLength']/@value").getStringValue() ;
+	/**
+	 * Maps the values read from an XSD element on to a Roo Field object
+	 * 
+	 * @param descriptor
+	 * @param xsdNsPrefix
+	 * @param unknownTypes
+	 * @return
+	 */
+	RooField descriptorToRooField( ElementDescriptor descriptor, String xsdNsPrefix, Set<String> unknownTypes )
+	{
+		RooField rooField = new RooField();
+
+		String elementName = descriptor.name == null ? "" : descriptor.name;
+		String type = descriptor.type == null ? "" : descriptor.type;
+		String minOccurs = descriptor.minOccurs == null ? "" : descriptor.minOccurs;
+		String maxOccurs = descriptor.maxOccurs == null ? "" : descriptor.maxOccurs;
+		String minValue = descriptor.minExclusive != null ? descriptor.minExclusive : descriptor.minInclusive;
+		String maxValue = descriptor.maxExclusive != null ? descriptor.maxExclusive : descriptor.maxInclusive;
+		String minLength = descriptor.minLength;
+		String maxLength = descriptor.maxLength;
 
 		// If type is not specified as an attribute we need to determine it is a simple type with a restriction
 		if( type.equals("") )
 		{
-			Node typeNode = element.selectSingleNode(element.getUniquePath() + "//@base");  
-			if( typeNode == null )
+			if( descriptor.base == null )
 			{
-				throw new RuntimeException("Could not determine type of element " + elementName + ". Element=[" + element + "]");
+				throw new RuntimeException("Could not determine type of element " + elementName + ".");
 			}
 			else
 			{
-				type = typeNode.getStringValue();
+				type = descriptor.base;
 			}
 		}
 		
-		// Check if the element has been annotated with a
-		// special "KEY" to denote it is a key element for
-		// hibernate
-		if (element.hasContent())
-		{
-			Node anon = element.selectSingleNode(element.getUniquePath() + "//xs:documentation");
-			if (anon != null && anon.getText().toLowerCase().contains(HIBERNATE_KEY_ANOTATION.toLowerCase()))
-			{
-				rooField.unique = true;
-			}
-		}
+		if( descriptor.key )rooField.unique = true;
 		
 		rooField.fieldName = convertReservedWords( elementName );
 		rooField.xsdType = type;
-		rooField.rooType = mapXsdTypeToRooType( type );
-		rooField.regexp = regexp;		
-		rooField.value = defaultValue;
-		rooField.comment = documentation;
-		if( isElementDefinedAsUnique( entity, element) )rooField.unique = true;
+		rooField.rooType = mapXsdTypeToRooType( type, xsdNsPrefix, unknownTypes );
+		rooField.regexp = descriptor.pattern;		
+		rooField.value = descriptor.defaultValue;
+		rooField.comment = descriptor.documentation;
 		
 		if( minValue != null )
 		{
@@ -955,146 +2456,83 @@ public class RooScriptGenerator
 	}
 	
 	/**
-	 * Determines is a node within an entity has a unique definition
-	 * defined for it in the schema
-	 * @param element
+	 * Takes an xsd type, prefixed with the default {@link #XSD_PREFIX} or not,
+	 * and maps it to a roo entity field type
+	 * 
 	 * @return
 	 */
-	private boolean isElementDefinedAsUnique( Node entity, Node element )
+	public String mapXsdTypeToRooType(String type)
 	{
-		List<Node> uniqueNodes = entity.selectNodes("xs:unique");
-		for( Node uniqueNode : uniqueNodes )
-		{
-			Node selectorXpath = uniqueNode.selectSingleNode( "xs:selector/@xpath");
-			Node fieldXpath = uniqueNode.selectSingleNode("xs:field/@xpath");
-			if( selectorXpath != null && fieldXpath != null )
-			{
-				String selectorXpathStr = selectorXpath.getStringValue();
-				
-				/*
-				 * We expect the selector xpath to be prefixed with the target namespace
-				 * so that it references an element in this schema. If not we return false
-				 * 
-				 * @TODO: Culd relference other schema namespaces
-				 */
-				if( !selectorXpathStr.startsWith( targetNsPrefix + ":" ) )
-				{
-					return false;
-				}
-				selectorXpathStr = selectorXpathStr.split(":")[1];
-				
-				
-				Node selectedNode = srcSchema.selectSingleNode("//xs:element[./@name='" + selectorXpathStr + "']");
-				if( entity.equals(selectedNode) )
-				{
-					Node fieldNode = selectedNode.selectSingleNode(fieldXpath.getStringValue());
-					return element.equals(fieldNode);
-				}
-			}
-		}
-		return false;
+		return mapXsdTypeToRooType(type, XSD_PREFIX, null);
 	}
-	
+
 	/**
-	 * Takes an xsd type and maps it to a roo entity field type
+	 * Takes an xsd type and maps it to a roo entity field type with the
+	 * {@link #getTypeMapping()}, mapping unknown types to string
 	 * 
 	 * @TODO: Dont think this works in all variations of unique definitions. Needs
 	 * more testing with other schemas
 	 * 
+	 * @param type
+	 * @param xsdNsPrefix the prefix the schema binds the XSD namespace to
+	 * @param unknownTypes
+	 *            collects the unknown types of a run to warn of once it is
+	 *            read, or null to warn of each unknown type as it is found
 	 * @return
 	 */
-	public String mapXsdTypeToRooType(String type)
+	String mapXsdTypeToRooType(String type, String xsdNsPrefix, Set<String> unknownTypes)
 	{
-		if( type.startsWith(xsdNsPrefix) )type = type.substring( xsdNsPrefix.length() + 1 );
-		
-		if (type.equals("anyURI"))
-			return "other --type java.net.URI";
-		if (type.equals("base64Binary"))
-			return "string";
-		if (type.equals("boolean"))
-			return "boolean";
-		if (type.equals("byte"))
-			return "number --type byte";
-		if (type.equals("date"))
-			return "date --type java.util.Calendar";
-		if (type.equals("dateTime"))
-			return "date --type java.util.Calendar";
-		if (type.equals("decimal"))
-			return "number --type java.math.BigDecimal";
-		if (type.equals("double"))
-			return "number --type double";
-		if (type.equals("duration"))
-			return "long";
-		if (type.equals("float"))
-			return "number --type float";
-		if (type.equals("gDay"))
-			return "string";
-		if (type.equals("gMonth"))
-			return "string";
-		if (type.equals("gMonthDay"))
-			return "string";
-		if (type.equals("gYear"))
-			return "string";
-		if (type.equals("gYearMonth"))
-			return "string";
-		if (type.equals("hexBinary"))
-			return "string";
-		if (type.equals("ID"))
-			return "string";
-		if (type.equals("IDREF"))
-			return "string";
-		if (type.equals("IDREFS"))
-			return "string";
-		if (type.equals("int"))
-			return "number --type int";
-		if (type.equals("integer"))
-			return "number --type java.lang.Integer";
-		if (type.equals("language"))
-			return "String";
-		if (type.equals("long"))
-			return "number --type long";
-		if (type.equals("Name"))
-			return "string";
-		if (type.equals("NCName"))
-			return "string";
-		if (type.equals("negativeInteger"))
-			return "number --type int --max -1";
-		if (type.equals("NMTOKEN"))
-			return "string";
-		if (type.equals("NMTOKENS"))
-			return "string";
-		if (type.equals("nonNegativeInteger"))
-			return "number --type int --min -1";
-		if (type.equals("nonPositiveInteger"))
-			return "number --type int --max 0";
-		if (type.equals("normalizedString"))
-			return "string";
-		if (type.equals("positiveInteger"))
-			return "number --type int --min 0";
-		if (type.equals("QName"))
-			return "string";
-		if (type.equals("short"))
-			return "number --type short";
-		if (type.equals("string"))
-			return "string";
-		if (type.equals("time"))
-			return "date --type java.util.Calendar";
-		if (type.equals("token"))
-			return "string";
-		if (type.equals("unsignedByte"))
-			return "number --type byte --min 0 --max 255";
-		if (type.equals("unsignedInt"))
-			return "number --type int --min 0 --max 2147483647";
-		if (type.equals("unsignedLong"))
-			return "number --type long --min 0 --max 18446744073709551615";
-		if (type.equals("unsignedShort"))
-			return "number --type short --min 0 --max 65535";
-		
-		logger.warn("Could not find xsd type of " + type + ". Returning string");
-		
+		String xsdType = type;
+		int localStart = xsdNsPrefix.length() + 1;
+		if( type.length() > localStart && type.charAt(xsdNsPrefix.length()) == ':' && type.startsWith(xsdNsPrefix) )type = type.substring( localStart );
+
+		String rooType = typeMapping.getRooType(type);
+		if( rooType != null )
+			return rooType;
+
+		if( unknownTypes == null )
+		{
+			logger.warn("Could not find xsd type of " + type + ". Returning string");
+		}
+		else
+		{
+			// Keep the prefix so entity types can be told from XSD types
+			unknownTypes.add(xsdType);
+		}
 		return "string";
 	}
 
+	/**
+	 * Warns of the unknown types found reading a schema, once each. Types of
+	 * the target namespace, or of an imported one, are left out as they are
+	 * resolved to entities once every schema has been read.
+	 * 
+	 * @param schema
+	 * @param unknownTypes
+	 * @param xsdNsPrefix
+	 * @param targetNsPrefix
+	 * @param importedNsPrefixes
+	 * @return the types warned of
+	 */
+	Set<String> warnUnknownTypes(String schema, Set<String> unknownTypes, String xsdNsPrefix, String targetNsPrefix, Set<String> importedNsPrefixes)
+	{
+		Set<String> warned = new TreeSet<String>();
+		for( String type : unknownTypes )
+		{
+			String prefix = type.contains(":") ? type.substring(0, type.indexOf(':')) : "";
+			if( prefix.equals(xsdNsPrefix) || !(prefix.equals(targetNsPrefix) || importedNsPrefixes.contains(prefix)) )
+			{
+				warned.add(type);
+			}
+		}
+
+		if( !warned.isEmpty() )
+		{
+			logger.warn("Could not find xsd types " + warned + " in " + schema + ". Mapped them to string");
+		}
+		return warned;
+	}
+
 
 
 	/**
@@ -1105,7 +2543,7 @@ public class RooScriptGenerator
 	 */
 	public static String camelToUnderScores(String camelCaseVar)
 	{
-		return camelCaseVar.replaceAll(String.format("%s|%s|%s", "(?<=[A-Z])(?=[A-Z][a-z])", "(?<=[^A-Z])(?=[A-Z])", "(?<=[A-Za-z])(?=[^A-Za-z])"), "_").toUpperCase();
+		return NameNormaliser.camelToUnderScores(camelCaseVar);
 	}
 
 
@@ -1117,40 +2555,134 @@ public class RooScriptGenerator
 	 */
 	public String convertReservedWords(String name)
 	{
-		// Remove any hyphens
-		name = name.replace("-", "_");				
-
-		if (ReservedWords.RESERVED_JAVA_KEYWORDS.contains(name.toLowerCase()) || ReservedWords.RESERVED_SQL_KEYWORDS.contains(name.toLowerCase()))
-		{
-			logger.warn("Found reserved word '" + name + "' converting to '" + name + "1'");
-			return name + "1";
-		}
-
-		return name;
+		return nameNormaliser.convertReservedWords(name);
 	}
 
-	public final static void main(String[] args) throws Exception 
+	/**
+	 * @return the command line options that shape the generated script, which
+	 *         are also the options a {@link GenerationServer} request accepts
+	 */
+	static Options scriptOptions()
 	{
-		// Specify command line options
 		Options options = new Options();
-		Option xsdOption = new Option(XSD_FILE_OPTION, true, "The XSD file to be parsed");
-		Option targetFileOption = new Option(TARGET_FILE_OPTION, true, "The target file to write the roo script to");
 		Option databaseTypeOption = new Option(DATABASE_TYPE_OPTION, true, "The type of database to be used for persisting the entities in the RESTful service. Default is " + DEFAULT_DATABASE_TYPE + ". Valid options are " + Arrays.asList( DATATBASE_TYPE.values() ) );
 		Option webTierOption = new Option(WEB_TIER_OPTION, true, "Flag to enable generation of roo commands to create a web tier");
 		Option seleniumTestOption = new Option(SELENIUM_TESTS_OPTION, true, "Flag to enable generation of roo commands to create selenium");
 		Option jsonOnlyOption = new Option(JSON_ONLY_OPTION, true, "Flag to specify that only JSON entities get generated for the web tier");
-		
-		xsdOption.setRequired(true);
-		targetFileOption.setRequired(true);
+		Option streamingOption = new Option(STREAMING_OPTION, true, "Flag to read the XSD in a single pass with a streaming parser rather than loading it in to a DOM. Uses far less memory on large schemas");
+		Option minimiseOption = new Option(MINIMISE_OPTION, true, "Flag to remove duplicate commands, and commands roo would reject, from the scripts before they are written. Holds each script in memory until it is complete. Default is false");
+
 		databaseTypeOption.setRequired(false);
 		webTierOption.setRequired(false);
 		seleniumTestOption.setRequired(false);
-		
-		options.addOption( xsdOption );
-		options.addOption(targetFileOption);
+		jsonOnlyOption.setRequired(false);
+		streamingOption.setRequired(false);
+		minimiseOption.setRequired(false);
+
 		options.addOption(databaseTypeOption);
 		options.addOption(webTierOption);
 		options.addOption(seleniumTestOption);
+		options.addOption(jsonOnlyOption);
+		options.addOption(streamingOption);
+		options.addOption(minimiseOption);
+		return options;
+	}
+
+	/**
+	 * Applies the {@link #scriptOptions()} given on a command line to a
+	 * generator
+	 * 
+	 * @param generator
+	 * @param cl
+	 */
+	static void configure(RooScriptGenerator generator, CommandLine cl)
+	{
+		if( cl.hasOption(DATABASE_TYPE_OPTION) )
+		{
+			generator.setDatabaseType( DATATBASE_TYPE.valueOf( cl.getOptionValue(DATABASE_TYPE_OPTION) ) );
+		}
+		if( cl.hasOption(WEB_TIER_OPTION) )
+		{
+			generator.setGenerateWebTier( Boolean.parseBoolean(cl.getOptionValue(WEB_TIER_OPTION)) );
+		}
+		if( cl.hasOption(SELENIUM_TESTS_OPTION) )
+		{
+			generator.setGenerateSeleniumTests( Boolean.parseBoolean(cl.getOptionValue(SELENIUM_TESTS_OPTION)) );
+		}
+		if( cl.hasOption(JSON_ONLY_OPTION) )
+		{
+			generator.setJsonOnly( Boolean.parseBoolean(cl.getOptionValue(JSON_ONLY_OPTION)) );
+		}
+		if( cl.hasOption(STREAMING_OPTION) )
+		{
+			generator.setStreamingParser( Boolean.parseBoolean(cl.getOptionValue(STREAMING_OPTION)) );
+		}
+		if( cl.hasOption(MINIMISE_OPTION) )
+		{
+			generator.setMinimiseCommands( Boolean.parseBoolean(cl.getOptionValue(MINIMISE_OPTION)) );
+		}
+	}
+
+	public final static void main(String[] args) throws Exception 
+	{
+		// Specify command line options
+		Options options = scriptOptions();
+		Option xsdOption = new Option(XSD_FILE_OPTION, true, "The XSD file to be parsed");
+		Option targetFileOption = new Option(TARGET_FILE_OPTION, true, "The target file to write the roo script to");
+		Option batchOption = new Option(BATCH_OPTION, true, "A directory, or glob pattern such as 'schemas/**/*.xsd', of XSD files to generate roo scripts for in one run. Replaces " + XSD_FILE_OPTION + " and makes " + TARGET_FILE_OPTION + " the directory the scripts are written to");
+		Option threadsOption = new Option(THREADS_OPTION, true, "The number of schemas to generate concurrently in a batch run. Default is the number of available processors");
+		Option echoOption = new Option(ECHO_OPTION, true, "Flag to also write the roo script to standard out as it is generated");
+		Option cacheDirOption = new Option(CACHE_DIR_OPTION, true, "A directory to record the inputs of each generated script in, so scripts whose XSD and settings are unchanged are not generated again");
+		Option deltaUpdateOption = new Option(DELTA_UPDATE_OPTION, true, "Flag to store a snapshot of the model next to the roo script and only put what has changed since the previous snapshot in the update script");
+		Option metricsOption = new Option(METRICS_OPTION, true, "Flag to write the time taken and bytes allocated by each phase and entity of the run as a JSON report next to the roo script");
+		Option watchOption = new Option(WATCH_OPTION, true, "Flag to keep running and regenerate the roo scripts every time the XSD is saved. Not used with " + BATCH_OPTION);
+		Option serverPortOption = new Option(SERVER_PORT_OPTION, true, "Runs a local HTTP server on the given port that generates the roo scripts for each XSD posted to " + GenerationServer.GENERATE_PATH + ", taking the script options as query parameters. Replaces " + XSD_FILE_OPTION + ", " + BATCH_OPTION + " and " + TARGET_FILE_OPTION);
+		Option templatesOption = new Option(TEMPLATES_OPTION, true, "A properties file of roo command templates to use in place of the built in ones, keyed by " + Arrays.asList( CommandTemplates.ENTITY, CommandTemplates.REPOSITORY, CommandTemplates.SELENIUM_TEST, CommandTemplates.MANY_TO_MANY, CommandTemplates.MANY_TO_ONE, CommandTemplates.ONE_TO_MANY, CommandTemplates.ONE_TO_ONE, CommandTemplates.REFERENCE ));
+		Option typeMappingsOption = new Option(TYPE_MAPPINGS_OPTION, true, "A properties file mapping the local names of XSD types to roo field types, e.g. 'dateTime=date --type java.time.LocalDateTime', to use in place of or as well as the built in mappings");
+		Option schemaCatalogOption = new Option(SCHEMA_CATALOG_OPTION, true, "A properties file mapping the schema locations and namespaces of included and imported schemas to local files, relative to the catalog, e.g. 'http\\://www.example.org/party=party.xsd'. Schemas are never fetched over the network");
+		Option extractThreadsOption = new Option(EXTRACT_THREADS_OPTION, true, "The number of threads the entities of each schema are read on, the script is the same whatever the number. Not used with " + STREAMING_OPTION + ". Default is the number of available processors");
+		Option modulesOption = new Option(MODULES_OPTION, true, "Splits the entities in to roo modules, one of " + Arrays.asList( MODULE_SPLIT.values() ) + ". " + MODULE_SPLIT.NAMESPACE + " creates a module for each namespace and " + MODULE_SPLIT.COMPONENTS + " packs related entities in to modules of up to " + MODULE_SIZE_OPTION + " entities. Default is " + MODULE_SPLIT.NONE);
+		Option moduleSizeOption = new Option(MODULE_SIZE_OPTION, true, "The most entities in a module when splitting by " + MODULE_SPLIT.COMPONENTS + ". Default is " + DEFAULT_MODULE_SIZE);
+		Option outputOption = new Option(OUTPUT_OPTION, true, "What to generate, one of " + Arrays.asList( OUTPUT.values() ) + ". " + OUTPUT.JPA_SOURCE + " writes JPA entity and repository sources to the " + TARGET_FILE_OPTION + " directory rather than a roo script. Default is " + OUTPUT.ROO_SCRIPT);
+		Option maxConcurrentOption = new Option(MAX_CONCURRENT_OPTION, true, "The number of requests the server generates concurrently, further requests wait for up to " + GenerationServer.DEFAULT_QUEUE_TIMEOUT_MILLIS + "ms before being turned away. Default is the number of available processors");
+		
+		xsdOption.setRequired(false);
+		targetFileOption.setRequired(false);
+		batchOption.setRequired(false);
+		threadsOption.setRequired(false);
+		echoOption.setRequired(false);
+		cacheDirOption.setRequired(false);
+		deltaUpdateOption.setRequired(false);
+		metricsOption.setRequired(false);
+		watchOption.setRequired(false);
+		serverPortOption.setRequired(false);
+		maxConcurrentOption.setRequired(false);
+		templatesOption.setRequired(false);
+		typeMappingsOption.setRequired(false);
+		schemaCatalogOption.setRequired(false);
+		extractThreadsOption.setRequired(false);
+		modulesOption.setRequired(false);
+		moduleSizeOption.setRequired(false);
+		outputOption.setRequired(false);
+		
+		options.addOption( xsdOption );
+		options.addOption(targetFileOption);
+		options.addOption(batchOption);
+		options.addOption(threadsOption);
+		options.addOption(echoOption);
+		options.addOption(cacheDirOption);
+		options.addOption(deltaUpdateOption);
+		options.addOption(metricsOption);
+		options.addOption(watchOption);
+		options.addOption(serverPortOption);
+		options.addOption(maxConcurrentOption);
+		options.addOption(templatesOption);
+		options.addOption(typeMappingsOption);
+		options.addOption(schemaCatalogOption);
+		options.addOption(extractThreadsOption);
+		options.addOption(modulesOption);
+		options.addOption(moduleSizeOption);
+		options.addOption(outputOption);
 		
 		// Parse
 		BasicParser parser = new BasicParser();
@@ -1158,7 +2690,16 @@ public class RooScriptGenerator
 		{
 			CommandLine cl = parser.parse(options, args);
 			
-			if ( cl.hasOption('h') ) 
+			if( cl.hasOption(SERVER_PORT_OPTION) )
+			{
+				int maxConcurrent = cl.hasOption(MAX_CONCURRENT_OPTION) ? Integer.parseInt(cl.getOptionValue(MAX_CONCURRENT_OPTION)) : Runtime.getRuntime().availableProcessors();
+				GenerationServer server = new GenerationServer(Integer.parseInt(cl.getOptionValue(SERVER_PORT_OPTION)), maxConcurrent);
+				server.start();
+				System.out.println("Generating roo scripts for XSDs posted to http://localhost:" + server.getPort() + GenerationServer.GENERATE_PATH + ", press Ctrl+C to stop");
+				return;
+			}
+			
+			if ( cl.hasOption('h') || cl.hasOption(XSD_FILE_OPTION) == cl.hasOption(BATCH_OPTION) || !cl.hasOption(TARGET_FILE_OPTION) ) 
 			{
 			    showUsage(options);
 			    System.exit(0);
@@ -1166,24 +2707,85 @@ public class RooScriptGenerator
 		
 			// Configure the generator
 			RooScriptGenerator generator = new RooScriptGenerator();
-			generator.setSrcFile(new File(cl.getOptionValue(XSD_FILE_OPTION)));
-			generator.setTargetFilename(new File(cl.getOptionValue(TARGET_FILE_OPTION)));			
 			
 			// Optional parameters
-			if( cl.hasOption(DATABASE_TYPE_OPTION) )
+			configure(generator, cl);
+			if( cl.hasOption(ECHO_OPTION) )
 			{
-				generator.setDatabaseType( DATATBASE_TYPE.valueOf( cl.getOptionValue(DATABASE_TYPE_OPTION) ) );
+				generator.setEchoScript( Boolean.parseBoolean(cl.getOptionValue(ECHO_OPTION)) );
 			}
-			if( cl.hasOption(WEB_TIER_OPTION) )
+			if( cl.hasOption(DELTA_UPDATE_OPTION) )
 			{
-				generator.setGenerateWebTier( Boolean.parseBoolean(cl.getOptionValue(WEB_TIER_OPTION)) );
+				generator.setDeltaUpdate( Boolean.parseBoolean(cl.getOptionValue(DELTA_UPDATE_OPTION)) );
 			}
-			if( cl.hasOption(SELENIUM_TESTS_OPTION) )
+			if( cl.hasOption(METRICS_OPTION) )
 			{
-				generator.setGenerateSeleniumTests( Boolean.parseBoolean(cl.getOptionValue(SELENIUM_TESTS_OPTION)) );
+				generator.setMetricsReport( Boolean.parseBoolean(cl.getOptionValue(METRICS_OPTION)) );
+			}
+			if( cl.hasOption(TEMPLATES_OPTION) )
+			{
+				generator.setCommandTemplates( generator.getCommandTemplates().overriddenBy(new File(cl.getOptionValue(TEMPLATES_OPTION))) );
+			}
+			if( cl.hasOption(TYPE_MAPPINGS_OPTION) )
+			{
+				generator.setTypeMapping( generator.getTypeMapping().overriddenBy(new File(cl.getOptionValue(TYPE_MAPPINGS_OPTION))) );
+			}
+			if( cl.hasOption(SCHEMA_CATALOG_OPTION) )
+			{
+				generator.setSchemaCatalog( SchemaCatalog.read(new File(cl.getOptionValue(SCHEMA_CATALOG_OPTION))) );
+			}
+			if( cl.hasOption(EXTRACT_THREADS_OPTION) )
+			{
+				generator.setExtractThreads( Integer.parseInt(cl.getOptionValue(EXTRACT_THREADS_OPTION)) );
+			}
+			if( cl.hasOption(OUTPUT_OPTION) )
+			{
+				generator.setOutput( OUTPUT.valueOf(cl.getOptionValue(OUTPUT_OPTION)) );
+			}
+			if( cl.hasOption(MODULES_OPTION) )
+			{
+				generator.setModuleSplit( MODULE_SPLIT.valueOf(cl.getOptionValue(MODULES_OPTION)) );
+			}
+			if( cl.hasOption(MODULE_SIZE_OPTION) )
+			{
+				generator.setModuleSize( Integer.parseInt(cl.getOptionValue(MODULE_SIZE_OPTION)) );
+			}
+			if( cl.hasOption(CACHE_DIR_OPTION) )
+			{
+				generator.setScriptCache( new ScriptCache(new File(cl.getOptionValue(CACHE_DIR_OPTION))) );
 			}
 			
-			generator.generateScript();
+			if( cl.hasOption(BATCH_OPTION) )
+			{
+				int threads = cl.hasOption(THREADS_OPTION) ? Integer.parseInt(cl.getOptionValue(THREADS_OPTION)) : Runtime.getRuntime().availableProcessors();
+				
+				BatchResult result = generator.generateScripts(cl.getOptionValue(BATCH_OPTION), new File(cl.getOptionValue(TARGET_FILE_OPTION)), threads);
+				System.out.println(result);
+				if( !result.isSuccessful() )
+				{
+					System.exit(1);
+				}
+			}
+			else
+			{
+				generator.setSrcFile(new File(cl.getOptionValue(XSD_FILE_OPTION)));
+				generator.setTargetFilename(new File(cl.getOptionValue(TARGET_FILE_OPTION)));
+				if( Boolean.parseBoolean(cl.getOptionValue(WATCH_OPTION)) )
+				{
+					SchemaWatcher watcher = new SchemaWatcher(generator, generator.srcFile, generator.targetFile);
+					System.out.println("Watching " + generator.srcFile + " for changes, press Ctrl+C to stop");
+					watcher.run();
+				}
+				else
+				{
+					generator.generateScript();
+				}
+			}
+			
+			if( generator.getScriptCache() != null )
+			{
+				System.out.println(generator.getScriptCache());
+			}
 		}
 		catch (ParseException e)
 		{
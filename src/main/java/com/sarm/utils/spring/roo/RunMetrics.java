@@ -0,0 +1,514 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The time taken, and the bytes allocated, by each phase of a run of
+ * {@link RooScriptGenerator#generateScript(File, File)} and by each entity
+ * read and written in it.
+ *
+ * Every measurement is also committed as a JDK Flight Recorder event when the
+ * running JVM has a flight recorder, so a run can be recorded in production
+ * without a profiler attached. Allocations are counted for the current thread
+ * and are -1 where the JVM cannot count them. Entities are measured inside
+ * their phase, so their allocations are also counted in the phase, including
+ * those of entities measured on other threads while the phase is open.
+ *
+ */
+public class RunMetrics
+{
+	/**
+	 * The extension of the JSON report written next to a roo script
+	 */
+	public final static String EXTENSION = ".metrics.json";
+
+	/**
+	 * Reading the schema, or the model snapshot, in to memory. The streaming
+	 * parser reads the entities in this phase too
+	 */
+	public final static String PARSE = "parse";
+
+	/**
+	 * Reading the entities from the schema loaded in to a DOM
+	 */
+	public final static String EXTRACT = "extract";
+
+	/**
+	 * Resolving the unique constraints of the schema
+	 */
+	public final static String UNIQUES = "uniques";
+
+	/**
+	 * Resolving the schemas included and imported, and reading those not
+	 * already cached
+	 */
+	public final static String REFERENCES = "references";
+
+	/**
+	 * Writing the project initialisation and entity commands
+	 */
+	public final static String WRITE = "write";
+
+	/**
+	 * Building and writing the relationship commands
+	 */
+	public final static String RELATIONSHIPS = "relationships";
+
+	/**
+	 * Writing the web tier and selenium test commands
+	 */
+	public final static String SCAFFOLD = "scaffold";
+
+	/**
+	 * Minimising the commands of the scripts and writing them
+	 */
+	public final static String MINIMISE = "minimise";
+
+	/**
+	 * Counts the bytes allocated by a thread, or null if the JVM cannot
+	 */
+	private final static com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+	/**
+	 * Begins a flight recorder event, or null if the JVM has no flight
+	 * recorder
+	 */
+	private final static Method BEGIN_EVENT = flightRecorderMethod("begin", String.class, String.class);
+
+	/**
+	 * Commits a flight recorder event, or null if the JVM has no flight
+	 * recorder
+	 */
+	private final static Method COMMIT_EVENT = flightRecorderMethod("commit", Object.class, String.class, String.class, String.class, long.class);
+
+	private final String schema;
+
+	private final Span total;
+
+	private final List<Measurement> phases = new ArrayList<Measurement>();
+
+	private final List<Measurement> entities = new ArrayList<Measurement>();
+
+	private Measurement totalMeasurement;
+
+	/**
+	 * The span of each phase that is open, to count the allocations of
+	 * entities measured on other threads in
+	 */
+	private final Map<String, Span> openPhases = new HashMap<String, Span>();
+
+	/**
+	 * Starts measuring a run
+	 *
+	 * @param schema
+	 *            the schema the run is generating from
+	 */
+	public RunMetrics(String schema)
+	{
+		this.schema = schema;
+		this.total = new Span(null, null);
+	}
+
+	/**
+	 * Starts measuring a phase of the run
+	 *
+	 * @param phase
+	 * @return the span to end when the phase is complete
+	 */
+	public Span phase(String phase)
+	{
+		Span span = new Span(phase, null);
+		synchronized (this)
+		{
+			openPhases.put(phase, span);
+		}
+		return span;
+	}
+
+	/**
+	 * Starts measuring an entity in a phase of the run
+	 *
+	 * @param phase
+	 * @param entity
+	 * @return the span to end when the entity is complete
+	 */
+	public Span entity(String phase, String entity)
+	{
+		return new Span(phase, entity);
+	}
+
+	/**
+	 * Ends the measurement of the whole run
+	 */
+	public synchronized void finish()
+	{
+		if (totalMeasurement == null)
+		{
+			total.end();
+		}
+	}
+
+	/**
+	 * @return the phases measured so far, in the order they ended
+	 */
+	public synchronized List<Measurement> getPhases()
+	{
+		return new ArrayList<Measurement>(phases);
+	}
+
+	/**
+	 * @return the entities measured so far, in the order they ended
+	 */
+	public synchronized List<Measurement> getEntities()
+	{
+		return new ArrayList<Measurement>(entities);
+	}
+
+	/**
+	 * @return the whole run, or null if it has not finished
+	 */
+	public synchronized Measurement getTotal()
+	{
+		return totalMeasurement;
+	}
+
+	private synchronized void record(Span span, Measurement measurement)
+	{
+		if (measurement.phase == null)
+		{
+			totalMeasurement = measurement;
+		}
+		else if (measurement.entity == null)
+		{
+			if (openPhases.get(measurement.phase) == span)
+			{
+				openPhases.remove(measurement.phase);
+			}
+			phases.add(measurement);
+		}
+		else
+		{
+			Span phase = openPhases.get(measurement.phase);
+			if (phase != null && phase.thread != span.thread && measurement.allocatedBytes > 0)
+			{
+				phase.otherThreadBytes += measurement.allocatedBytes;
+			}
+			entities.add(measurement);
+		}
+	}
+
+	/**
+	 * Writes the metrics as a JSON report
+	 *
+	 * @param reportFile
+	 * @throws IOException
+	 */
+	public void writeJson(File reportFile) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+		try
+		{
+			writer.write(toJson());
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the metrics as a JSON document
+	 */
+	public synchronized String toJson()
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{").append(ScriptSink.LINE_ENDING);
+		json.append("  \"schema\": ").append(quote(schema)).append(",").append(ScriptSink.LINE_ENDING);
+		json.append("  \"allocationsCounted\": ").append(ALLOCATIONS != null).append(",").append(ScriptSink.LINE_ENDING);
+		if (totalMeasurement != null)
+		{
+			json.append("  \"nanos\": ").append(totalMeasurement.nanos).append(",").append(ScriptSink.LINE_ENDING);
+			json.append("  \"allocatedBytes\": ").append(totalMeasurement.allocatedBytes).append(",").append(ScriptSink.LINE_ENDING);
+		}
+		json.append("  \"phases\": [");
+		appendJson(json, phases);
+		json.append("],").append(ScriptSink.LINE_ENDING);
+		json.append("  \"entities\": [");
+		appendJson(json, entities);
+		json.append("]").append(ScriptSink.LINE_ENDING);
+		json.append("}").append(ScriptSink.LINE_ENDING);
+		return json.toString();
+	}
+
+	private static void appendJson(StringBuilder json, List<Measurement> measurements)
+	{
+		for (int i = 0; i < measurements.size(); i++)
+		{
+			Measurement measurement = measurements.get(i);
+			json.append(i == 0 ? "" : ",").append(ScriptSink.LINE_ENDING).append("    { ");
+			if (measurement.entity != null)
+			{
+				json.append("\"entity\": ").append(quote(measurement.entity)).append(", ");
+			}
+			json.append("\"phase\": ").append(quote(measurement.phase));
+			json.append(", \"nanos\": ").append(measurement.nanos);
+			json.append(", \"allocatedBytes\": ").append(measurement.allocatedBytes).append(" }");
+		}
+		if (!measurements.isEmpty())
+		{
+			json.append(ScriptSink.LINE_ENDING).append("  ");
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return the value as a JSON string
+	 */
+	static String quote(String value)
+	{
+		if (value == null)
+			return "null";
+
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+				{
+					quoted.append(String.format("\\u%04x", (int) c));
+				}
+				else
+				{
+					quoted.append(c);
+				}
+			}
+		}
+		return quoted.append("\"").toString();
+	}
+
+	/**
+	 * @return the bytes the current thread has allocated so far, or -1 if the
+	 *         JVM cannot count them
+	 */
+	static long allocatedBytes()
+	{
+		return ALLOCATIONS == null ? -1 : ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter()
+	{
+		try
+		{
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean)
+			{
+				com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+				if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled())
+				{
+					return counter;
+				}
+			}
+		}
+		catch (LinkageError e)
+		{
+			// Not a HotSpot JVM
+		}
+		return null;
+	}
+
+	/**
+	 * Finds a method of the flight recorder events, which are compiled apart
+	 * from the rest of the generator as the Java 8 API has no flight recorder
+	 *
+	 * @param name
+	 * @param parameterTypes
+	 * @return the method, or null if the JVM has no flight recorder
+	 */
+	private static Method flightRecorderMethod(String name, Class<?>... parameterTypes)
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event");
+			return Class.forName("com.sarm.utils.spring.roo.RunEvents").getDeclaredMethod(name, parameterTypes);
+		}
+		catch (ClassNotFoundException e)
+		{
+			return null;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch (LinkageError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Calls a method of the flight recorder events
+	 *
+	 * @return what the method returns, or null if it fails, as a failure to
+	 *         record an event does not fail the run
+	 */
+	private static Object callFlightRecorder(Method method, Object... arguments)
+	{
+		try
+		{
+			return method.invoke(null, arguments);
+		}
+		catch (IllegalAccessException e)
+		{
+			return null;
+		}
+		catch (InvocationTargetException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * A phase, or entity, being measured
+	 */
+	public class Span
+	{
+		private final String phase;
+
+		private final String entity;
+
+		private final long startNanos;
+
+		private final long startBytes;
+
+		private final Thread thread = Thread.currentThread();
+
+		/**
+		 * The bytes allocated by the entities of the phase measured on other
+		 * threads so far
+		 */
+		private long otherThreadBytes;
+
+		/**
+		 * The flight recorder event, or null if none is being recorded
+		 */
+		private final Object event;
+
+		private Span(String phase, String entity)
+		{
+			this.phase = phase;
+			this.entity = entity;
+			this.event = BEGIN_EVENT == null ? null : callFlightRecorder(BEGIN_EVENT, phase, entity);
+			this.startBytes = allocatedBytes();
+			this.startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Ends the measurement and records it
+		 */
+		public void end()
+		{
+			long nanos = System.nanoTime() - startNanos;
+			long bytes = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+			if (bytes >= 0 && entity == null)
+			{
+				synchronized (RunMetrics.this)
+				{
+					bytes += otherThreadBytes;
+				}
+			}
+
+			if (event != null && COMMIT_EVENT != null)
+			{
+				callFlightRecorder(COMMIT_EVENT, event, schema, phase, entity, bytes);
+			}
+			record(this, new Measurement(phase, entity, nanos, bytes));
+		}
+	}
+
+	/**
+	 * The time taken and bytes allocated by a phase, or entity
+	 */
+	public static class Measurement
+	{
+		private final String phase;
+
+		private final String entity;
+
+		private final long nanos;
+
+		private final long allocatedBytes;
+
+		Measurement(String phase, String entity, long nanos, long allocatedBytes)
+		{
+			this.phase = phase;
+			this.entity = entity;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		 * @return the phase, or null for the whole run
+		 */
+		public String getPhase()
+		{
+			return phase;
+		}
+
+		/**
+		 * @return the entity, or null for a phase
+		 */
+		public String getEntity()
+		{
+			return entity;
+		}
+
+		/**
+		 * @return the nanos
+		 */
+		public long getNanos()
+		{
+			return nanos;
+		}
+
+		/**
+		 * @return the allocatedBytes, or -1 if they could not be counted
+		 */
+		public long getAllocatedBytes()
+		{
+			return allocatedBytes;
+		}
+	}
+}
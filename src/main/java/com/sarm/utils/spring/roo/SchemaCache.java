@@ -0,0 +1,159 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The models of the schemas included and imported by others, each read once
+ * and shared by every schema that references it, across the runs of a batch,
+ * a watch or a server. A schema is read again once its file has been modified.
+ * When several threads ask for the same schema at once, one reads it and the
+ * rest wait for its model.
+ *
+ * The models held are shared, so must not be modified once read.
+ *
+ */
+public class SchemaCache
+{
+	/**
+	 * Reads the model of a schema on a miss
+	 */
+	interface Reader
+	{
+		/**
+		 * @param schemaFile
+		 * @param namespace
+		 *            the namespace of the including schema, which an included
+		 *            schema with no target namespace takes on, or null
+		 * @return
+		 * @throws Exception
+		 */
+		RooModel read(File schemaFile, String namespace) throws Exception;
+	}
+
+	private final ConcurrentMap<String, Entry> models = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicInteger reads = new AtomicInteger();
+
+	/**
+	 * Gets the model of a schema, reading it if it is not cached or has been
+	 * modified since it was
+	 *
+	 * @param schemaFile
+	 * @param namespace
+	 *            the namespace of the including schema, or null if the schema
+	 *            is imported
+	 * @param settings
+	 *            the settings of the generator that affect the model read
+	 * @param reader
+	 * @return
+	 * @throws Exception
+	 */
+	RooModel get(final File schemaFile, final String namespace, String settings, final Reader reader) throws Exception
+	{
+		final File canonicalFile = schemaFile.getCanonicalFile();
+		String key = canonicalFile.getPath() + "\n" + namespace + "\n" + settings;
+		long lastModified = canonicalFile.lastModified();
+		long length = canonicalFile.length();
+
+		Entry entry = models.get(key);
+		if (entry == null || entry.lastModified != lastModified || entry.length != length)
+		{
+			Entry read = new Entry(lastModified, length, new FutureTask<RooModel>(new Callable<RooModel>()
+			{
+				@Override
+				public RooModel call() throws Exception
+				{
+					reads.incrementAndGet();
+					return reader.read(canonicalFile, namespace);
+				}
+			}));
+
+			boolean replaced = entry == null ? models.putIfAbsent(key, read) == null : models.replace(key, entry, read);
+			entry = replaced ? read : models.get(key);
+			if (replaced)
+			{
+				read.model.run();
+			}
+			else if (entry == null)
+			{
+				// Removed after a failed read by another thread, so read it
+				// here without caching
+				return reader.read(canonicalFile, namespace);
+			}
+		}
+
+		try
+		{
+			return entry.model.get();
+		}
+		catch (ExecutionException e)
+		{
+			// Do not cache a failure, the schema may be fixed
+			models.remove(key, entry);
+			if (e.getCause() instanceof Exception)
+			{
+				throw (Exception) e.getCause();
+			}
+			throw new IOException("Failed to read " + schemaFile, e.getCause());
+		}
+	}
+
+	/**
+	 * @return the number of schemas read, rather than found in the cache
+	 */
+	public int getReads()
+	{
+		return reads.get();
+	}
+
+	/**
+	 * @return the number of schemas cached
+	 */
+	public int size()
+	{
+		return models.size();
+	}
+
+	/**
+	 * Forgets every schema read
+	 */
+	public void clear()
+	{
+		models.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Schemas cached " + models.size() + ", read " + reads.get();
+	}
+
+	/**
+	 * The model of a schema as read at the given modification
+	 */
+	private static final class Entry
+	{
+		final long lastModified;
+
+		final long length;
+
+		final FutureTask<RooModel> model;
+
+		Entry(long lastModified, long length, FutureTask<RooModel> model)
+		{
+			this.lastModified = lastModified;
+			this.length = length;
+			this.model = model;
+		}
+	}
+}
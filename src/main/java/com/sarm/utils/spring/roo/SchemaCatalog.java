@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Resolves the schemas an XSD includes and imports to local files, so no
+ * schema is ever fetched over the network. Like an XML catalog, a properties
+ * file maps a <code>schemaLocation</code> or a namespace to a local file,
+ * relative to the catalog:
+ *
+ * <code>
+ * http\://www.example.org/common/common.xsd=common/common.xsd
+ * http\://www.example.org/party=party/party.xsd
+ * </code>
+ *
+ * A schema location that is not in the catalog is resolved relative to the
+ * referencing schema if it is a relative or <code>file:</code> location.
+ * Instances are immutable so may be shared between threads.
+ *
+ */
+public class SchemaCatalog
+{
+	private final static SchemaCatalog EMPTY = new SchemaCatalog(new TreeMap<String, File>());
+
+	/**
+	 * The local file of each schema location or namespace
+	 */
+	private final Map<String, File> mappings;
+
+	private SchemaCatalog(Map<String, File> mappings)
+	{
+		this.mappings = mappings;
+	}
+
+	/**
+	 * @return a catalog with no mappings, which only resolves local schema
+	 *         locations
+	 */
+	public static SchemaCatalog empty()
+	{
+		return EMPTY;
+	}
+
+	/**
+	 * Reads a catalog from a properties file keyed by schema location or
+	 * namespace
+	 *
+	 * @param propertiesFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static SchemaCatalog read(File propertiesFile) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(propertiesFile);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		File catalogDir = propertiesFile.getAbsoluteFile().getParentFile();
+		Map<String, File> mappings = new TreeMap<String, File>();
+		for (String uri : properties.stringPropertyNames())
+		{
+			File file = new File(properties.getProperty(uri).trim());
+			mappings.put(uri, file.isAbsolute() ? file : new File(catalogDir, file.getPath()));
+		}
+		return new SchemaCatalog(mappings);
+	}
+
+	/**
+	 * @return the local file of each schema location or namespace
+	 */
+	public Map<String, File> getMappings()
+	{
+		return Collections.unmodifiableMap(mappings);
+	}
+
+	/**
+	 * Resolves a referenced schema to a local file, by its schema location in
+	 * the catalog, then by its namespace in the catalog, then by its schema
+	 * location relative to the referencing schema
+	 *
+	 * @param reference
+	 * @param referencingSchema
+	 * @return the file, or null if the schema is not available locally
+	 */
+	File resolve(SchemaReference reference, File referencingSchema)
+	{
+		File file = reference.schemaLocation == null ? null : mappings.get(reference.schemaLocation);
+		if (file == null && reference.namespace != null)
+		{
+			file = mappings.get(reference.namespace);
+		}
+		if (file == null && reference.schemaLocation != null)
+		{
+			try
+			{
+				URI location = referencingSchema.getAbsoluteFile().toURI().resolve(new URI(null, null, reference.schemaLocation.replace('\\', '/'), null));
+				if ("file".equals(location.getScheme()))
+				{
+					file = new File(location);
+				}
+			}
+			catch (URISyntaxException e)
+			{
+				// Not a location that can be resolved locally
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Not a location that can be resolved locally
+			}
+		}
+		return file != null && file.isFile() ? file : null;
+	}
+}
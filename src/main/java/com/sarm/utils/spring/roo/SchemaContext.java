@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.dom4j.Document;
+
+import com.sarm.utils.xml.SchemaIndex;
+
+/**
+ * Holds the state of reading one XSD in to a DOM. Each call to
+ * {@link RooScriptGenerator#generateScript(java.io.File, java.io.File)}
+ * creates its own context so that one configured generator can process many
+ * schemas concurrently.
+ *
+ */
+class SchemaContext
+{
+	/**
+	 * The XSD schema document we load in for parsing
+	 */
+	Document srcSchema;
+
+	/**
+	 * The named top level components of the schema
+	 */
+	SchemaIndex index;
+
+	/**
+	 * The namespace prefix for the XSD schema
+	 */
+	String xsdNsPrefix = "";
+
+	/**
+	 * The target namespace prefix for the XSD schema
+	 */
+	String targetNsPrefix = "";
+
+	/**
+	 * The prefixes of the namespaces the schema imports
+	 */
+	Set<String> importedNsPrefixes = new HashSet<String>();
+
+	/**
+	 * The XSD types found that have no roo field type
+	 */
+	Set<String> unknownTypes = new TreeSet<String>();
+}
@@ -0,0 +1,32 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+/**
+ * An <code>xs:include</code> or <code>xs:import</code> of another schema, as
+ * read from the referencing schema. Each value is null if it is not present in
+ * the schema.
+ *
+ */
+class SchemaReference
+{
+	/**
+	 * Whether the schema is included in to the namespace of the referencing
+	 * schema, rather than imported in its own
+	 */
+	boolean include;
+
+	/**
+	 * The namespace of an imported schema
+	 */
+	String namespace;
+
+	String schemaLocation;
+
+	@Override
+	public String toString()
+	{
+		return (include ? "include " : "import ") + (namespace == null ? "" : namespace + " ") + (schemaLocation == null ? "" : schemaLocation);
+	}
+}
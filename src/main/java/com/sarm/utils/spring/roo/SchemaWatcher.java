@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a generator running and regenerates a roo script, and its update
+ * script, every time its XSD is saved. Editors often save a file in a burst of
+ * writes, or by writing a new file and renaming it over the old one, so a
+ * change is only acted on once the schema has been quiet for the debounce
+ * period.
+ *
+ * The schemas the XSD includes and imports are watched too, as they are found
+ * on each generation. A regeneration that fails, e.g. on a schema saved half
+ * edited, is logged and the watch carries on.
+ *
+ * Setting a {@link ScriptCache} on the generator skips the saves that leave
+ * the schema unchanged.
+ *
+ */
+public class SchemaWatcher implements Closeable
+{
+	/**
+	 * The default time a schema has to be quiet for before it is regenerated
+	 */
+	public final static long DEFAULT_DEBOUNCE_MILLIS = 200;
+
+	private Logger logger = LoggerFactory.getLogger(SchemaWatcher.class);
+
+	private final RooScriptGenerator generator;
+
+	private final File xsdFile;
+
+	private final File scriptFile;
+
+	private final WatchService watchService;
+
+	/**
+	 * The watched files, as absolute paths
+	 */
+	private final Set<Path> watchedFiles = new HashSet<Path>();
+
+	private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+	private volatile int generations;
+
+	/**
+	 * Watches the given XSD, and any other files added with
+	 * {@link #watch(File)}, for the given generator
+	 *
+	 * @param generator
+	 * @param xsdFile
+	 * @param scriptFile
+	 * @throws IOException
+	 */
+	public SchemaWatcher(RooScriptGenerator generator, File xsdFile, File scriptFile) throws IOException
+	{
+		this.generator = generator;
+		this.xsdFile = xsdFile;
+		this.scriptFile = scriptFile;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		watch(xsdFile);
+	}
+
+	/**
+	 * Also regenerates the script when the given file changes
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void watch(File file) throws IOException
+	{
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		if (watchedFiles.add(path))
+		{
+			// Watch the directory as a file is often replaced, not modified,
+			// when saved
+			path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+	}
+
+	/**
+	 * @return the debounceMillis
+	 */
+	public long getDebounceMillis()
+	{
+		return debounceMillis;
+	}
+
+	/**
+	 * @param debounceMillis the debounceMillis to set
+	 */
+	public void setDebounceMillis(long debounceMillis)
+	{
+		this.debounceMillis = debounceMillis;
+	}
+
+	/**
+	 * @return the number of times the script has been generated
+	 */
+	public int getGenerations()
+	{
+		return generations;
+	}
+
+	/**
+	 * Generates the script, then regenerates it on every change until the
+	 * watcher is closed or the thread interrupted
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException
+	{
+		generate();
+		try
+		{
+			while (true)
+			{
+				if (!changed(watchService.take()))
+				{
+					continue;
+				}
+
+				// Wait for the burst of saves to finish
+				WatchKey key;
+				while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+				{
+					changed(key);
+				}
+
+				generate();
+			}
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			// Closed, so stop watching
+		}
+	}
+
+	/**
+	 * Takes the events of a key and resets it
+	 *
+	 * @param key
+	 * @return true if any of the events were for a watched file
+	 */
+	private boolean changed(WatchKey key)
+	{
+		Path dir = (Path) key.watchable();
+		List<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>(key.pollEvents());
+		if (!key.reset())
+		{
+			logger.warn("Stopped watching " + dir + " as it is no longer accessible");
+		}
+
+		boolean changed = false;
+		synchronized (this)
+		{
+			for (WatchEvent<?> event : events)
+			{
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+				{
+					changed = true;
+				}
+				else if (watchedFiles.contains(dir.resolve((Path) event.context())))
+				{
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private void generate()
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			List<File> referencedSchemas = generator.generate(xsdFile, scriptFile);
+			if (generator.getScriptCache() != null)
+			{
+				generator.getScriptCache().save();
+			}
+			generations++;
+			for (File referencedSchema : referencedSchemas)
+			{
+				watch(referencedSchema);
+			}
+			logger.info("Generated " + scriptFile + " from " + xsdFile + " in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		catch (Exception e)
+		{
+			logger.error("Failed to generate roo script for " + xsdFile + ", waiting for the next change", e);
+		}
+	}
+
+	/**
+	 * Stops watching, ending {@link #run()}
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		watchService.close();
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * An on-disk record of the inputs each roo script was last generated from,
+ * so a script whose XSD and generator settings have not changed since is not
+ * generated again and its files are left untouched, sparing roo from running
+ * it again.
+ *
+ * The inputs are recorded as a SHA-256 hash of the XSD bytes, the bytes of
+ * every schema it includes or imports and the settings that affect the
+ * generated script, keyed by the script file, in {@link #CACHE_FILENAME} in
+ * the cache directory. A cache may be shared by concurrent generations.
+ *
+ * A hash of the scripts themselves is recorded too, so a script edited or
+ * left incomplete since is generated again.
+ *
+ * Alongside the hashes the length and modification time of every input and
+ * of the scripts are recorded as a stamp. While the stamp still matches the
+ * scripts are taken as up to date without reading the inputs at all, so only
+ * files that have been touched since are hashed.
+ *
+ * Entries are recorded in memory and written by {@link #save()}, once for a
+ * script generated on its own and once at the end of a batch. The cache file
+ * is written to a temporary file then moved in to place, so a run that fails
+ * part way never leaves it truncated.
+ *
+ */
+public class ScriptCache
+{
+	public final static String CACHE_FILENAME = "roo-script-cache.properties";
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Appended to the entry of a script to name the entry of the schemas its
+	 * XSD references
+	 */
+	private final static String REFERENCED_SCHEMAS_SUFFIX = "#referencedSchemas";
+
+	/**
+	 * Appended to the entry of a script to name the entry of the lengths and
+	 * modification times of its inputs and outputs
+	 */
+	private final static String STAMP_SUFFIX = "#stamp";
+
+	/**
+	 * Appended to the entry of a script to name the entry of the hash of the
+	 * scripts as they were generated
+	 */
+	private final static String SCRIPTS_SUFFIX = "#scripts";
+
+	private final File cacheFile;
+
+	private final Properties entries = new Properties();
+
+	private final List<File> hits = new ArrayList<File>();
+
+	private final List<File> misses = new ArrayList<File>();
+
+	/**
+	 * Whether entries have been recorded since the cache was last saved
+	 */
+	private boolean changed;
+
+	/**
+	 * Opens the cache in the given directory, reading in any entries recorded
+	 * by earlier runs
+	 *
+	 * @param cacheDir
+	 * @throws IOException
+	 */
+	public ScriptCache(File cacheDir) throws IOException
+	{
+		cacheFile = new File(cacheDir, CACHE_FILENAME);
+		if (cacheFile.exists())
+		{
+			InputStream in = new FileInputStream(cacheFile);
+			try
+			{
+				entries.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Hashes the XSD file, the schemas it references and the settings it is
+	 * to be generated with. A referenced schema that no longer exists is
+	 * hashed as such.
+	 *
+	 * @param xsdFile
+	 * @param referencedSchemas
+	 * @param settings
+	 *            the settings that affect the generated script
+	 * @return the hex encoded hash
+	 * @throws IOException
+	 */
+	String key(File xsdFile, List<File> referencedSchemas, String settings) throws IOException
+	{
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		digest(digest, xsdFile, buffer);
+		for (File referencedSchema : referencedSchemas)
+		{
+			digest.update((byte) 0);
+			digest.update(referencedSchema.getPath().getBytes(Charset.forName("UTF-8")));
+			digest.update((byte) 0);
+			if (referencedSchema.isFile())
+			{
+				digest(digest, referencedSchema, buffer);
+			}
+		}
+		digest.update((byte) 0);
+		digest.update(settings.getBytes(Charset.forName("UTF-8")));
+		return hex(digest);
+	}
+
+	/**
+	 * Stamps the XSD file, the schemas it references and the settings it is
+	 * to be generated with by the length and modification time of each file,
+	 * which is far cheaper than hashing them
+	 *
+	 * @param xsdFile
+	 * @param referencedSchemas
+	 * @param settings
+	 *            the settings that affect the generated script
+	 * @return the stamp
+	 */
+	String stamp(File xsdFile, List<File> referencedSchemas, String settings)
+	{
+		StringBuilder stamp = new StringBuilder();
+		stamp(stamp, xsdFile);
+		for (File referencedSchema : referencedSchemas)
+		{
+			stamp(stamp, referencedSchema);
+		}
+		MessageDigest digest = sha256();
+		digest.update(settings.getBytes(Charset.forName("UTF-8")));
+		return stamp.append(hex(digest)).toString();
+	}
+
+	private static void stamp(StringBuilder stamp, File file)
+	{
+		stamp.append(file.getPath()).append(',').append(file.length()).append(',').append(file.lastModified()).append(File.pathSeparator);
+	}
+
+	private static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+
+	private static String hex(MessageDigest digest)
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void digest(MessageDigest digest, File file, byte[] buffer) throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try
+		{
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @param scriptFile
+	 * @return the schemas referenced by the XSD the script was last generated
+	 *         from, which are part of its key
+	 */
+	synchronized List<File> getReferencedSchemas(File scriptFile)
+	{
+		List<File> referencedSchemas = new ArrayList<File>();
+		String paths = entries.getProperty(entryName(scriptFile) + REFERENCED_SCHEMAS_SUFFIX);
+		if (paths != null && paths.length() > 0)
+		{
+			for (String path : paths.split(File.pathSeparator))
+			{
+				referencedSchemas.add(new File(path));
+			}
+		}
+		return referencedSchemas;
+	}
+
+	/**
+	 * Checks whether the script files were last generated from the inputs of
+	 * the given key and are still as they were generated, recording a hit or
+	 * a miss
+	 *
+	 * @param scriptFile
+	 * @param updateScriptFile
+	 * @param key
+	 * @return true if the scripts are up to date
+	 * @throws IOException
+	 */
+	boolean isUpToDate(File scriptFile, File updateScriptFile, String key) throws IOException
+	{
+		String scriptsKey = getProperty(entryName(scriptFile) + SCRIPTS_SUFFIX);
+		boolean upToDate = key.equals(getProperty(entryName(scriptFile))) && scriptsKey != null && scriptFile.isFile() && updateScriptFile.isFile() && scriptsKey.equals(scriptsKey(scriptFile, updateScriptFile));
+		record(scriptFile, upToDate);
+		return upToDate;
+	}
+
+	private synchronized String getProperty(String name)
+	{
+		return entries.getProperty(name);
+	}
+
+	private synchronized void record(File scriptFile, boolean hit)
+	{
+		(hit ? hits : misses).add(scriptFile);
+	}
+
+	/**
+	 * @return the hex encoded hash of the bytes of both scripts
+	 */
+	private static String scriptsKey(File scriptFile, File updateScriptFile) throws IOException
+	{
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		digest(digest, scriptFile, buffer);
+		digest.update((byte) 0);
+		digest(digest, updateScriptFile, buffer);
+		return hex(digest);
+	}
+
+	/**
+	 * Checks whether neither the inputs of the given stamp nor the script
+	 * files have been touched since the scripts were generated, recording a
+	 * hit if so. Nothing is recorded otherwise, as the scripts may yet be
+	 * found up to date by their key.
+	 *
+	 * @param scriptFile
+	 * @param updateScriptFile
+	 * @param stamp
+	 * @return true if the scripts are up to date
+	 */
+	synchronized boolean isUnchanged(File scriptFile, File updateScriptFile, String stamp)
+	{
+		boolean unchanged = scriptFile.exists() && updateScriptFile.exists() && outputStamp(stamp, scriptFile, updateScriptFile).equals(entries.getProperty(entryName(scriptFile) + STAMP_SUFFIX));
+		if (unchanged)
+		{
+			hits.add(scriptFile);
+		}
+		return unchanged;
+	}
+
+	private static String outputStamp(String stamp, File scriptFile, File updateScriptFile)
+	{
+		StringBuilder outputStamp = new StringBuilder(stamp).append(File.pathSeparator);
+		stamp(outputStamp, scriptFile);
+		stamp(outputStamp, updateScriptFile);
+		return outputStamp.toString();
+	}
+
+	/**
+	 * Records that the scripts were generated from the inputs of the given key
+	 * and stamp, including the given referenced schemas, until the cache is
+	 * saved
+	 *
+	 * @param scriptFile
+	 * @param updateScriptFile
+	 * @param key
+	 * @param stamp
+	 * @param referencedSchemas
+	 * @throws IOException
+	 */
+	void put(File scriptFile, File updateScriptFile, String key, String stamp, List<File> referencedSchemas) throws IOException
+	{
+		put(scriptFile, key, scriptsKey(scriptFile, updateScriptFile), outputStamp(stamp, scriptFile, updateScriptFile), referencedSchemas);
+	}
+
+	private synchronized void put(File scriptFile, String key, String scriptsKey, String outputStamp, List<File> referencedSchemas) throws IOException
+	{
+		entries.setProperty(entryName(scriptFile), key);
+		entries.setProperty(entryName(scriptFile) + SCRIPTS_SUFFIX, scriptsKey);
+		entries.setProperty(entryName(scriptFile) + STAMP_SUFFIX, outputStamp);
+		if (referencedSchemas.isEmpty())
+		{
+			entries.remove(entryName(scriptFile) + REFERENCED_SCHEMAS_SUFFIX);
+		}
+		else
+		{
+			StringBuilder paths = new StringBuilder();
+			for (File referencedSchema : referencedSchemas)
+			{
+				paths.append(paths.length() == 0 ? "" : File.pathSeparator).append(referencedSchema.getPath());
+			}
+			entries.setProperty(entryName(scriptFile) + REFERENCED_SCHEMAS_SUFFIX, paths.toString());
+		}
+		changed = true;
+	}
+
+	/**
+	 * Writes the entries recorded to the cache file, if any have been since
+	 * it was last saved
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (!changed)
+		{
+			return;
+		}
+
+		File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+		if (!cacheDir.exists() && !cacheDir.mkdirs())
+		{
+			throw new IOException("Failed to create the cache directory [" + cacheDir + "].");
+		}
+
+		File tempFile = File.createTempFile(CACHE_FILENAME, ".tmp", cacheDir);
+		boolean saved = false;
+		OutputStream out = new FileOutputStream(tempFile);
+		try
+		{
+			entries.store(out, "Roo script generation cache");
+			out.close();
+			ScriptSink.replace(tempFile, cacheFile);
+			saved = true;
+			changed = false;
+		}
+		finally
+		{
+			out.close();
+			if (!saved)
+			{
+				tempFile.delete();
+			}
+		}
+	}
+
+	private String entryName(File scriptFile)
+	{
+		return scriptFile.getAbsolutePath();
+	}
+
+	/**
+	 * @return the scripts found to be up to date
+	 */
+	public synchronized List<File> getHits()
+	{
+		return Collections.unmodifiableList(new ArrayList<File>(hits));
+	}
+
+	/**
+	 * @return the scripts found to need generating
+	 */
+	public synchronized List<File> getMisses()
+	{
+		return Collections.unmodifiableList(new ArrayList<File>(misses));
+	}
+
+	/**
+	 * Writes a line per script checked stating whether it was a hit or a miss
+	 *
+	 * @param reportFile
+	 * @throws IOException
+	 */
+	public synchronized void writeReport(File reportFile) throws IOException
+	{
+		PrintStream report = new PrintStream(reportFile);
+		try
+		{
+			report.println("# " + this);
+			for (File hit : hits)
+			{
+				report.println("HIT    " + hit);
+			}
+			for (File miss : misses)
+			{
+				report.println("MISS   " + miss);
+			}
+		}
+		finally
+		{
+			report.close();
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "Cache hits " + hits.size() + ", misses " + misses.size();
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the lines of generated scripts to any number of buffered outputs.
+ * Each line is addressed to a {@link Target}, which may be a single output or
+ * a combination of them, and is encoded once however many outputs it goes
+ * to. Every line ends with {@link #LINE_ENDING}.
+ *
+ * A buffered sink holds the lines of each output until they are minimised by
+ * a {@link CommandMinimiser}, so the commands of a script can be reworked as a
+ * whole before any is written.
+ *
+ * The files opened are written to temporary files beside them, which only
+ * replace them once the sink is marked {@link #complete()} and closed. So the
+ * sink should be closed in a finally block, and a run that fails part way
+ * leaves the files of the last run alone. Lines still buffered when a
+ * complete sink is closed are written as they are.
+ *
+ */
+class ScriptSink implements Closeable
+{
+	/**
+	 * The line ending of every line written, including the lines within a
+	 * multi line command
+	 */
+	final static String LINE_ENDING = "\n";
+
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Scripts are encoded in the platform charset, as roo reads them
+	 */
+	private final Charset charset = Charset.defaultCharset();
+
+	private final List<Output> outputs = new ArrayList<Output>();
+
+	/**
+	 * Whether lines are held until they are minimised
+	 */
+	private final boolean buffered;
+
+	/**
+	 * Whether every line has been written, so the files opened may replace
+	 * the existing ones
+	 */
+	private boolean complete;
+
+	ScriptSink()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param buffered
+	 *            whether to hold the lines of each output until
+	 *            {@link #minimise(Target, CommandMinimiser)}
+	 */
+	ScriptSink(boolean buffered)
+	{
+		this.buffered = buffered;
+	}
+
+	/**
+	 * Opens a file to write to, which replaces any existing file once the sink
+	 * is complete and closed
+	 *
+	 * @param file
+	 * @return the target to address lines to the file
+	 * @throws IOException
+	 */
+	Target open(File file) throws IOException
+	{
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try
+		{
+			return add(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), file, tempFile);
+		}
+		catch (IOException e)
+		{
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Attaches a stream to write to that the sink flushes but does not close,
+	 * such as <code>System.out</code>
+	 *
+	 * @param out
+	 * @return the target to address lines to the stream
+	 */
+	Target attach(OutputStream out)
+	{
+		return add(new BufferedOutputStream(out, BUFFER_SIZE), null, null);
+	}
+
+	/**
+	 * Marks every line as written, so closing the sink replaces the files
+	 * opened
+	 */
+	void complete()
+	{
+		complete = true;
+	}
+
+	/**
+	 * @param targets
+	 * @return a target that addresses lines to every output of the given
+	 *         targets, writing each output only once
+	 */
+	Target combine(Target... targets)
+	{
+		Set<Output> combined = new LinkedHashSet<Output>();
+		for (Target target : targets)
+		{
+			for (Output output : target.outputs)
+			{
+				combined.add(output);
+			}
+		}
+		return new Target(combined.toArray(new Output[combined.size()]));
+	}
+
+	/**
+	 * Writes a line to every output of the target
+	 *
+	 * @param target
+	 * @param line
+	 * @throws IOException
+	 */
+	void println(Target target, String line) throws IOException
+	{
+		byte[] bytes = null;
+		for (Output output : target.outputs)
+		{
+			if (output.lines != null)
+			{
+				output.lines.add(line);
+			}
+			else
+			{
+				bytes = bytes == null ? (line + LINE_ENDING).getBytes(charset) : bytes;
+				output.out.write(bytes);
+			}
+		}
+	}
+
+	/**
+	 * Minimises the lines buffered for each output of the target and writes
+	 * them, lines addressed to the outputs after this are written straight
+	 * away
+	 *
+	 * @param target
+	 * @param minimiser
+	 * @return what was removed from the first output of the target
+	 * @throws IOException
+	 */
+	CommandMinimiser.Report minimise(Target target, CommandMinimiser minimiser) throws IOException
+	{
+		CommandMinimiser.Report report = null;
+		for (Output output : target.outputs)
+		{
+			if (output.lines != null)
+			{
+				CommandMinimiser.Report outputReport = minimiser.minimise(output.lines);
+				report = report == null ? outputReport : report;
+				writeBuffered(output);
+			}
+		}
+		return report == null ? new CommandMinimiser.Report() : report;
+	}
+
+	/**
+	 * Flushes every output and closes those opened by the sink, then moves the
+	 * files opened in to place if the sink is complete or deletes them if not.
+	 * Every output is attempted before the first failure is thrown.
+	 */
+	public void close() throws IOException
+	{
+		IOException failure = null;
+		boolean closed = false;
+		try
+		{
+			for (Output output : outputs)
+			{
+				try
+				{
+					if (complete)
+						writeBuffered(output);
+					if (output.file != null)
+						output.out.close();
+					else
+						output.out.flush();
+				}
+				catch (IOException e)
+				{
+					failure = failure == null ? e : failure;
+				}
+			}
+			closed = true;
+		}
+		finally
+		{
+			for (Output output : outputs)
+			{
+				if (output.file == null)
+					continue;
+
+				if (complete && closed && failure == null)
+				{
+					try
+					{
+						replace(output.tempFile, output.file);
+					}
+					catch (IOException e)
+					{
+						failure = e;
+					}
+				}
+				if (output.tempFile.exists())
+				{
+					try
+					{
+						output.out.close();
+					}
+					catch (IOException e)
+					{
+						// Already failed, the file is discarded
+					}
+					output.tempFile.delete();
+				}
+			}
+			outputs.clear();
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Moves a file written in full over the file it replaces, atomically where
+	 * the file system allows, so the replaced file is never seen part written
+	 *
+	 * @param tempFile
+	 *            a file in the same directory as the file it replaces
+	 * @param file
+	 * @throws IOException
+	 */
+	static void replace(File tempFile, File file) throws IOException
+	{
+		try
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void writeBuffered(Output output) throws IOException
+	{
+		if (output.lines != null)
+		{
+			List<String> lines = output.lines;
+			output.lines = null;
+			for (String line : lines)
+			{
+				output.out.write((line + LINE_ENDING).getBytes(charset));
+			}
+		}
+	}
+
+	private Target add(OutputStream out, File file, File tempFile)
+	{
+		Output output = new Output(out, file, tempFile, buffered);
+		outputs.add(output);
+		return new Target(new Output[]
+		{ output });
+	}
+
+	/**
+	 * One or more outputs of the sink that lines can be addressed to
+	 */
+	static class Target
+	{
+		private final Output[] outputs;
+
+		private Target(Output[] outputs)
+		{
+			this.outputs = outputs;
+		}
+	}
+
+	private static class Output
+	{
+		final OutputStream out;
+
+		/**
+		 * The file the output replaces, or null if the output is a stream
+		 * attached to the sink
+		 */
+		final File file;
+
+		/**
+		 * The file the output is written to until it replaces the file
+		 */
+		final File tempFile;
+
+		/**
+		 * The lines held until they are minimised, or null once they are
+		 * written straight to the output
+		 */
+		List<String> lines;
+
+		Output(OutputStream out, File file, File tempFile, boolean buffered)
+		{
+			this.out = out;
+			this.file = file;
+			this.tempFile = tempFile;
+			this.lines = buffered ? new ArrayList<String>() : null;
+		}
+	}
+}
@@ -0,0 +1,561 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an XSD in a single forward pass with a StAX parser straight in to the
+ * entity model, without ever holding the whole schema in memory as a DOM.
+ *
+ * The values read for each entity and field follow the XPath queries the DOM
+ * reader in {@link RooScriptGenerator} makes: a field takes the first matching
+ * documentation, facet or base found anywhere beneath its element, so an open
+ * field is filled in by every descendant event until it has a value. Unique
+ * constraints are collected as they are passed and resolved once the whole
+ * schema is read.
+ *
+ */
+class StaxSchemaReader
+{
+	private final static XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static
+	{
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final static String DOCUMENTATION = "documentation";
+
+	private final RooScriptGenerator generator;
+
+	private final RunMetrics metrics;
+
+	/**
+	 * The namespace prefixes of the schema, resolved as the DOM reader does
+	 */
+	private String xsdNsPrefix = "";
+
+	private String targetNsPrefix = "";
+
+	/**
+	 * The namespace each prefix declared on the schema is bound to
+	 */
+	private Map<String, String> declaredNamespaces = new HashMap<String, String>();
+
+	/**
+	 * The prefixes of the namespaces the schema imports
+	 */
+	private Set<String> importedNsPrefixes = new HashSet<String>();
+
+	/**
+	 * The namespace of the schema including this one, or null
+	 */
+	private final String namespace;
+
+	/**
+	 * The type of each top level element declared with a type in the target
+	 * namespace
+	 */
+	private Map<String, String> elementTypes = new HashMap<String, String>();
+
+	/**
+	 * The name attribute of each element open at the current point in the
+	 * document, outermost first
+	 */
+	private List<String> openNames = new ArrayList<String>();
+
+	/**
+	 * Every unique constraint in the schema, in document order
+	 */
+	private List<UniqueState> uniques = new ArrayList<UniqueState>();
+
+	/**
+	 * The unique constraint being read, or null outside of one
+	 */
+	private UniqueState unique;
+
+	private RooModel model;
+
+	private List<RooEntity> complexTypeEntities = new ArrayList<RooEntity>();
+
+	private List<RooEntity> elementEntities = new ArrayList<RooEntity>();
+
+	/**
+	 * The top level entity being read, or null between entities
+	 */
+	private EntityState entity;
+
+	/**
+	 * The field elements that are open at the current point in the document,
+	 * innermost first
+	 */
+	private LinkedList<FieldState> openFields = new LinkedList<FieldState>();
+
+	private int depth;
+
+	/**
+	 * The XSD types found that have no roo field type
+	 */
+	private Set<String> unknownTypes = new TreeSet<String>();
+
+	StaxSchemaReader(RooScriptGenerator generator)
+	{
+		this(generator, new RunMetrics(null));
+	}
+
+	/**
+	 * @param generator
+	 * @param metrics
+	 *            measures the parse, which includes reading each entity, and
+	 *            the unique constraints
+	 */
+	StaxSchemaReader(RooScriptGenerator generator, RunMetrics metrics)
+	{
+		this(generator, metrics, null);
+	}
+
+	/**
+	 * @param generator
+	 * @param metrics
+	 * @param namespace
+	 *            the namespace of the schema including this one, which is
+	 *            taken on if this schema has no target namespace, or null
+	 */
+	StaxSchemaReader(RooScriptGenerator generator, RunMetrics metrics, String namespace)
+	{
+		this.generator = generator;
+		this.metrics = metrics;
+		this.namespace = namespace;
+	}
+
+	/**
+	 * Reads the entity model from an XSD file. The schemas it includes and
+	 * imports are recorded in the model but not read.
+	 *
+	 * @param xsdFile
+	 * @return
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	RooModel read(File xsdFile) throws IOException, XMLStreamException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(xsdFile));
+		try
+		{
+			return read(in, xsdFile.toURI().toString());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the entity model from an XSD stream
+	 *
+	 * @param in
+	 * @param systemId
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	RooModel read(InputStream in, String systemId) throws XMLStreamException
+	{
+		RunMetrics.Span parse = metrics.phase(RunMetrics.PARSE);
+		XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(systemId, in);
+		try
+		{
+			while (reader.hasNext())
+			{
+				switch (reader.next())
+				{
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					openNames.add(reader.getAttributeValue(null, "name"));
+					startElement(reader);
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					endElement();
+					openNames.remove(openNames.size() - 1);
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					characters(reader);
+					break;
+				default:
+					break;
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		parse.end();
+
+		if (model == null)
+		{
+			throw new XMLStreamException("No schema element found in " + systemId);
+		}
+
+		model.entities.addAll(complexTypeEntities);
+		model.entities.addAll(elementEntities);
+
+		RunMetrics.Span uniqueSpan = metrics.phase(RunMetrics.UNIQUES);
+		UniqueConstraintIndex uniqueIndex = new UniqueConstraintIndex(generator, targetNsPrefix, elementTypes);
+		for (UniqueState state : uniques)
+		{
+			uniqueIndex.add(state.declaringElement, state.selectorXpath, state.fieldXpaths);
+		}
+		generator.applyUniqueConstraints(model, uniqueIndex);
+		uniqueSpan.end();
+
+		model.unknownTypes.addAll(generator.warnUnknownTypes(systemId, unknownTypes, xsdNsPrefix, targetNsPrefix, importedNsPrefixes));
+
+		return model;
+	}
+
+	private void startElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		if (depth == 1)
+		{
+			startSchema(reader);
+			return;
+		}
+
+		boolean xsd = RooScriptGenerator.XSD_NAMESPACE.equals(reader.getNamespaceURI());
+		String localName = reader.getLocalName();
+		String qualifiedName = reader.getPrefix() == null || reader.getPrefix().length() == 0 ? localName : reader.getPrefix() + ":" + localName;
+		String name = reader.getAttributeValue(null, "name");
+
+		// A new entity
+		if (depth == 2)
+		{
+			if (xsd && (localName.equals("include") || localName.equals("import")))
+			{
+				reference(reader, localName.equals("include"));
+				return;
+			}
+
+			if (xsd && localName.equals("complexType") && name != null)
+			{
+				model.complexTypeNames.add(name);
+			}
+
+			if (xsd && (localName.equals("complexType") || localName.equals("element")) && name != null && name.length() > 0)
+			{
+				entity = new EntityState();
+				entity.entity.name = name;
+				entity.entity.packageName = model.entityPackageName;
+				entity.span = metrics.entity(RunMetrics.PARSE, name);
+				entity.depth = depth;
+				if (localName.equals("element"))
+				{
+					String type = RooScriptGenerator.targetLocalName(reader.getAttributeValue(null, "type"), targetNsPrefix);
+					if (type != null && !elementTypes.containsKey(name))
+					{
+						elementTypes.put(name, type);
+					}
+					elementEntities.add(entity.entity);
+				}
+				else
+				{
+					complexTypeEntities.add(entity.entity);
+				}
+				return;
+			}
+		}
+
+		// Unique constraints may be declared on any element
+		if (xsd && localName.equals("unique"))
+		{
+			unique = new UniqueState();
+			unique.declaringElement = openNames.get(openNames.size() - 2);
+			unique.depth = depth;
+			uniques.add(unique);
+		}
+		else if (xsd && unique != null && depth == unique.depth + 1)
+		{
+			String xpath = reader.getAttributeValue(null, "xpath");
+			if (localName.equals("selector") && unique.selectorXpath == null)
+			{
+				unique.selectorXpath = xpath;
+			}
+			else if (localName.equals("field") && xpath != null)
+			{
+				unique.fieldXpaths.add(xpath);
+			}
+		}
+
+		if (entity == null)
+			return;
+
+		if (xsd && localName.equals("extension") && !entity.extensionFound)
+		{
+			entity.extensionFound = true;
+			entity.entity.extendsEntity = reader.getAttributeValue(null, "base");
+		}
+
+		// Fill in any open fields, including the field itself if this is a
+		// new one
+		if (xsd && localName.equals("element"))
+		{
+			FieldState field = new FieldState();
+			field.depth = depth;
+			field.descriptor.name = name;
+			field.descriptor.type = reader.getAttributeValue(null, "type");
+			field.descriptor.minOccurs = reader.getAttributeValue(null, "minOccurs");
+			field.descriptor.maxOccurs = reader.getAttributeValue(null, "maxOccurs");
+			field.descriptor.defaultValue = reader.getAttributeValue(null, "default");
+			entity.fields.add(field);
+			openFields.addFirst(field);
+		}
+
+		String base = reader.getAttributeValue(null, "base");
+		boolean documentation = qualifiedName.equals(DOCUMENTATION);
+		boolean xsdDocumentation = xsd && localName.equals(DOCUMENTATION);
+
+		// Facets are matched on their unprefixed name only
+		String value = qualifiedName.equals(localName) ? reader.getAttributeValue(null, "value") : null;
+
+		for (FieldState field : openFields)
+		{
+			ElementDescriptor descriptor = field.descriptor;
+
+			if (base != null && descriptor.base == null)
+				descriptor.base = base;
+
+			if (documentation && descriptor.documentation == null && field.documentation == null)
+			{
+				field.documentation = new StringBuilder();
+				field.documentationDepth = depth;
+			}
+			if (xsdDocumentation && field.keyText == null)
+			{
+				field.keyText = new StringBuilder();
+				field.keyDepth = depth;
+			}
+
+			if (value != null)
+			{
+				if (localName.equals("pattern") && descriptor.pattern == null)
+					descriptor.pattern = value;
+				else if (localName.equals("minExclusive") && descriptor.minExclusive == null)
+					descriptor.minExclusive = value;
+				else if (localName.equals("minInclusive") && descriptor.minInclusive == null)
+					descriptor.minInclusive = value;
+				else if (localName.equals("maxExclusive") && descriptor.maxExclusive == null)
+					descriptor.maxExclusive = value;
+				else if (localName.equals("maxInclusive") && descriptor.maxInclusive == null)
+					descriptor.maxInclusive = value;
+				else if (localName.equals("minLength") && descriptor.minLength == null)
+					descriptor.minLength = value;
+				else if (localName.equals("maxLength") && descriptor.maxLength == null)
+					descriptor.maxLength = value;
+			}
+		}
+	}
+
+	private void startSchema(XMLStreamReader reader) throws XMLStreamException
+	{
+		String targetNamespace = reader.getAttributeValue(null, "targetNamespace");
+		if (targetNamespace == null)
+		{
+			targetNamespace = namespace;
+		}
+		if (targetNamespace == null)
+		{
+			throw new XMLStreamException("Schema does not define a targetNamespace", reader.getLocation());
+		}
+
+		// Resolve the prefixes in declaration order, with the xs prefix we
+		// always bind last, as the DOM reader does
+		for (int i = 0; i < reader.getNamespaceCount(); i++)
+		{
+			resolvePrefix(reader.getNamespacePrefix(i), reader.getNamespaceURI(i), targetNamespace);
+			if (reader.getNamespacePrefix(i) != null && reader.getNamespacePrefix(i).length() > 0)
+			{
+				declaredNamespaces.put(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+			}
+		}
+		resolvePrefix(RooScriptGenerator.XSD_PREFIX, RooScriptGenerator.XSD_NAMESPACE, targetNamespace);
+
+		model = new RooModel();
+		model.targetNamespace = targetNamespace;
+		model.entityPackageName = generator.extractPackageFromNamespace(targetNamespace);
+	}
+
+	/**
+	 * Notes a schema the schema includes or imports
+	 */
+	private void reference(XMLStreamReader reader, boolean include)
+	{
+		SchemaReference reference = new SchemaReference();
+		reference.include = include;
+		reference.namespace = reader.getAttributeValue(null, "namespace");
+		reference.schemaLocation = reader.getAttributeValue(null, "schemaLocation");
+		model.references.add(reference);
+
+		if (reference.namespace != null)
+		{
+			for (Map.Entry<String, String> declared : declaredNamespaces.entrySet())
+			{
+				if (declared.getValue().equals(reference.namespace) && !declared.getValue().equals(model.targetNamespace) && !declared.getValue().equals(RooScriptGenerator.XSD_NAMESPACE))
+				{
+					importedNsPrefixes.add(declared.getKey());
+				}
+			}
+		}
+	}
+
+	private void resolvePrefix(String prefix, String uri, String targetNamespace)
+	{
+		prefix = prefix == null ? "" : prefix;
+		if (uri.equals(targetNamespace))
+		{
+			targetNsPrefix = prefix;
+		}
+		else if (uri.equals(RooScriptGenerator.XSD_NAMESPACE))
+		{
+			xsdNsPrefix = prefix;
+		}
+	}
+
+	private void characters(XMLStreamReader reader)
+	{
+		if (openFields.isEmpty())
+			return;
+
+		String text = null;
+		for (FieldState field : openFields)
+		{
+			if (field.documentation != null || field.keyText != null)
+			{
+				text = text == null ? reader.getText() : text;
+				if (field.documentation != null)
+					field.documentation.append(text);
+				if (field.keyText != null && field.keyDepth == depth)
+					field.keyText.append(text);
+			}
+		}
+	}
+
+	private void endElement()
+	{
+		if (unique != null && depth == unique.depth)
+		{
+			unique = null;
+		}
+
+		if (entity == null)
+			return;
+
+		for (FieldState field : openFields)
+		{
+			if (field.documentation != null && field.documentationDepth == depth)
+			{
+				field.descriptor.documentation = field.documentation.toString().trim();
+				field.documentation = null;
+			}
+			if (field.keyText != null && field.keyDepth == depth)
+			{
+				field.descriptor.key = field.keyText.toString().toLowerCase().contains(RooScriptGenerator.HIBERNATE_KEY_ANOTATION.toLowerCase());
+				field.keyDepth = -1;
+			}
+		}
+
+		if (!openFields.isEmpty() && openFields.getFirst().depth == depth)
+		{
+			openFields.removeFirst();
+		}
+
+		if (depth == entity.depth)
+		{
+			endEntity();
+			entity = null;
+		}
+	}
+
+	/**
+	 * Adds the fields to the entity now they are all read
+	 */
+	private void endEntity()
+	{
+		for (FieldState field : entity.fields)
+		{
+			generator.addField(entity.entity, generator.descriptorToRooField(field.descriptor, xsdNsPrefix, unknownTypes), targetNsPrefix, importedNsPrefixes, model.entityPackageName);
+		}
+		entity.span.end();
+	}
+
+	/**
+	 * The state of the top level entity being read
+	 */
+	private static class EntityState
+	{
+		RooEntity entity = new RooEntity();
+
+		int depth;
+
+		boolean extensionFound;
+
+		RunMetrics.Span span;
+
+		List<FieldState> fields = new ArrayList<FieldState>();
+	}
+
+	/**
+	 * The declaring element, selector and fields of a unique constraint
+	 */
+	private static class UniqueState
+	{
+		String declaringElement;
+
+		int depth;
+
+		String selectorXpath;
+
+		List<String> fieldXpaths = new ArrayList<String>();
+	}
+
+	/**
+	 * The state of a field element being read
+	 */
+	private static class FieldState
+	{
+		ElementDescriptor descriptor = new ElementDescriptor();
+
+		int depth;
+
+		StringBuilder documentation;
+
+		int documentationDepth;
+
+		StringBuilder keyText;
+
+		int keyDepth = -1;
+	}
+}
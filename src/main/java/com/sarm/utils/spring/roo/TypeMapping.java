@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Maps the local names of XSD types to roo field types. The built in table is
+ * read once from {@link #DEFAULT_MAPPINGS} and a shop can override or add to
+ * it from a properties file in the same format, e.g. to map
+ * <code>dateTime</code> to a java.time type. Instances are immutable so may be
+ * shared between threads.
+ *
+ */
+public class TypeMapping
+{
+	/**
+	 * The resource holding the built in mappings
+	 */
+	public final static String DEFAULT_MAPPINGS = "xsd-types.properties";
+
+	private final static TypeMapping DEFAULTS = readDefaults();
+
+	private final Map<String, String> rooTypes;
+
+	/**
+	 * The overridden and added mappings
+	 */
+	private final Map<String, String> overrides;
+
+	private TypeMapping(Map<String, String> rooTypes, Map<String, String> overrides)
+	{
+		this.rooTypes = rooTypes;
+		this.overrides = overrides;
+	}
+
+	/**
+	 * @return the built in mappings
+	 */
+	public static TypeMapping defaults()
+	{
+		return DEFAULTS;
+	}
+
+	private static TypeMapping readDefaults()
+	{
+		try
+		{
+			InputStream in = TypeMapping.class.getResourceAsStream(DEFAULT_MAPPINGS);
+			if (in == null)
+			{
+				throw new IllegalStateException("The built in XSD type mappings " + DEFAULT_MAPPINGS + " are missing");
+			}
+			return new TypeMapping(read(in), new TreeMap<String, String>());
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Failed to read the built in XSD type mappings " + DEFAULT_MAPPINGS, e);
+		}
+	}
+
+	private static Map<String, String> read(InputStream in) throws IOException
+	{
+		Properties properties = new Properties();
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		Map<String, String> mappings = new HashMap<String, String>();
+		for (String type : properties.stringPropertyNames())
+		{
+			mappings.put(type, properties.getProperty(type).trim());
+		}
+		return mappings;
+	}
+
+	/**
+	 * Reads mappings from a properties file keyed by the local names of XSD
+	 * types
+	 *
+	 * @param propertiesFile
+	 * @return these mappings with the ones in the file replaced or added
+	 * @throws IOException
+	 */
+	public TypeMapping overriddenBy(File propertiesFile) throws IOException
+	{
+		Map<String, String> mappings = read(new FileInputStream(propertiesFile));
+
+		Map<String, String> overridden = new HashMap<String, String>(rooTypes);
+		overridden.putAll(mappings);
+		Map<String, String> overriddenText = new TreeMap<String, String>(overrides);
+		overriddenText.putAll(mappings);
+		return new TypeMapping(overridden, overriddenText);
+	}
+
+	/**
+	 * @return the overridden and added mappings, by XSD type
+	 */
+	public Map<String, String> getOverrides()
+	{
+		return Collections.unmodifiableMap(overrides);
+	}
+
+	/**
+	 * @param xsdType
+	 *            the local name of an XSD type
+	 * @return the roo field type, or null if the type is not mapped
+	 */
+	public String getRooType(String xsdType)
+	{
+		return rooTypes.get(xsdType);
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The unique constraints of a schema resolved once in to the names of the
+ * fields they make unique in each entity, so checking whether a field is
+ * unique is a single set lookup.
+ *
+ * A constraint applies to the entity its selector names, which may be the
+ * element it is declared on (<code>.</code>), another element in the target
+ * namespace (<code>tns:Person</code>, <code>.//tns:Person</code>, or the last
+ * step of a longer path) or the complex type such an element is declared as.
+ * Each field XPath names one field either as a path in an instance document
+ * (<code>tns:username</code>) or as a query on the schema itself
+ * (<code>//xs:element[@name='username']</code>). A constraint over more than
+ * one field is kept as a composite constraint and does not make any single
+ * field unique.
+ *
+ */
+class UniqueConstraintIndex
+{
+	private static Logger logger = LoggerFactory.getLogger(UniqueConstraintIndex.class);
+
+	/**
+	 * Matches a field XPath that queries the schema for an element by name
+	 */
+	private final static Pattern SCHEMA_FIELD_XPATH = Pattern.compile("^\\s*\\.?//(?:[\\w.-]+:)?element\\[(?:\\./)?@name\\s*=\\s*(['\"])(.*?)\\1\\]\\s*$");
+
+	private final RooScriptGenerator generator;
+
+	private final String targetNsPrefix;
+
+	/**
+	 * The complex type name of each top level element declared with a type in
+	 * the target namespace
+	 */
+	private final Map<String, String> elementTypes;
+
+	private final Map<String, Set<String>> uniqueFields = new HashMap<String, Set<String>>();
+
+	private final Map<String, List<List<String>>> compositeUniques = new HashMap<String, List<List<String>>>();
+
+	UniqueConstraintIndex(RooScriptGenerator generator, String targetNsPrefix, Map<String, String> elementTypes)
+	{
+		this.generator = generator;
+		this.targetNsPrefix = targetNsPrefix;
+		this.elementTypes = elementTypes;
+	}
+
+	/**
+	 * Resolves a unique constraint and adds it to the index
+	 *
+	 * @param declaringElement
+	 *            the name of the element the constraint is declared on
+	 * @param selectorXpath
+	 * @param fieldXpaths
+	 */
+	void add(String declaringElement, String selectorXpath, List<String> fieldXpaths)
+	{
+		if (selectorXpath == null || fieldXpaths.isEmpty())
+			return;
+
+		List<String> fields = new ArrayList<String>();
+		for (String fieldXpath : fieldXpaths)
+		{
+			String field = fieldName(fieldXpath);
+			if (field == null)
+			{
+				logger.warn("Ignoring unique constraint on " + declaringElement + " as its field '" + fieldXpath + "' does not name a field");
+				return;
+			}
+			fields.add(generator.convertReservedWords(field));
+		}
+
+		for (String entity : selectedEntities(declaringElement, selectorXpath))
+		{
+			if (fields.size() == 1)
+			{
+				Set<String> entityFields = uniqueFields.get(entity);
+				if (entityFields == null)
+				{
+					entityFields = new HashSet<String>();
+					uniqueFields.put(entity, entityFields);
+				}
+				entityFields.add(fields.get(0));
+			}
+			else
+			{
+				List<List<String>> entityUniques = compositeUniques.get(entity);
+				if (entityUniques == null)
+				{
+					entityUniques = new ArrayList<List<String>>();
+					compositeUniques.put(entity, entityUniques);
+				}
+				entityUniques.add(fields);
+			}
+		}
+	}
+
+	/**
+	 * @param entity
+	 * @param fieldName
+	 *            the field name after reserved word conversion
+	 * @return whether a single field unique constraint applies to the field
+	 */
+	boolean isUnique(String entity, String fieldName)
+	{
+		Set<String> entityFields = uniqueFields.get(entity);
+		return entityFields != null && entityFields.contains(fieldName);
+	}
+
+	/**
+	 * @param entity
+	 * @return the field names of each unique constraint over more than one
+	 *         field of the entity
+	 */
+	List<List<String>> getCompositeUniques(String entity)
+	{
+		List<List<String>> entityUniques = compositeUniques.get(entity);
+		return entityUniques == null ? Collections.<List<String>> emptyList() : entityUniques;
+	}
+
+	/**
+	 * Finds the names of the entities selected by each path of a selector
+	 */
+	private Set<String> selectedEntities(String declaringElement, String selectorXpath)
+	{
+		Set<String> entities = new HashSet<String>();
+		for (String path : selectorXpath.split("\\|"))
+		{
+			String step = lastStep(path);
+			String name = RooScriptGenerator.targetLocalName(step, targetNsPrefix);
+
+			if (step.equals("."))
+			{
+				name = declaringElement;
+			}
+			else if (name == null)
+			{
+				logger.warn("Ignoring unique constraint selector '" + path.trim() + "' as it does not select an element in the target namespace");
+				continue;
+			}
+
+			if (name == null)
+				continue;
+
+			entities.add(name);
+			if (elementTypes.containsKey(name))
+			{
+				entities.add(elementTypes.get(name));
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * Finds the name of the field a field XPath refers to, or null if it does
+	 * not name one
+	 */
+	private String fieldName(String fieldXpath)
+	{
+		Matcher matcher = SCHEMA_FIELD_XPATH.matcher(fieldXpath);
+		if (matcher.matches())
+		{
+			return matcher.group(2);
+		}
+
+		String step = lastStep(fieldXpath);
+		if (step.startsWith("@"))
+		{
+			step = step.substring(1);
+		}
+		if (step.contains(":"))
+		{
+			step = step.substring(step.lastIndexOf(":") + 1);
+		}
+		return step.equals("") || step.equals(".") || step.equals("*") ? null : step;
+	}
+
+	private String lastStep(String path)
+	{
+		path = path.trim();
+		return path.contains("/") ? path.substring(path.lastIndexOf("/") + 1).trim() : path;
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package com.sarm.utils.xml;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.dom4j.Document;
+import org.dom4j.Element;
+
+/**
+ * An index of the named top level components of an XSD (complex types, simple
+ * types, elements and groups) built in one pass over the schema element, so
+ * components can be looked up by name without searching the whole document.
+ * Where a name is defined twice the first definition is kept, as a
+ * <code>//xs:complexType[@name='...']</code> query would find.
+ *
+ */
+public class SchemaIndex
+{
+	private final Map<String, Element> complexTypes = new HashMap<String, Element>();
+
+	private final Map<String, Element> simpleTypes = new HashMap<String, Element>();
+
+	private final Map<String, Element> elements = new HashMap<String, Element>();
+
+	private final Map<String, Element> groups = new HashMap<String, Element>();
+
+	public SchemaIndex( Document schema )
+	{
+		this( schema.getRootElement() );
+	}
+
+	public SchemaIndex( Element schema )
+	{
+		for( Iterator<?> it = schema.elementIterator(); it.hasNext(); )
+		{
+			Element component = (Element) it.next();
+			String name = component.attributeValue("name");
+
+			if( name == null || !XMLDOMHelper.XSD_NAMESPACE.equals(component.getNamespaceURI()) )
+				continue;
+
+			Map<String, Element> components = componentsOfKind(component.getName());
+			if( components != null && !components.containsKey(name) )
+			{
+				components.put(name, component);
+			}
+		}
+	}
+
+	private Map<String, Element> componentsOfKind( String kind )
+	{
+		if( kind.equals("complexType") )
+			return complexTypes;
+		if( kind.equals("simpleType") )
+			return simpleTypes;
+		if( kind.equals("element") )
+			return elements;
+		if( kind.equals("group") )
+			return groups;
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return the top level complex type of the given name or null
+	 */
+	public Element getComplexType( String name )
+	{
+		return complexTypes.get(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the top level simple type of the given name or null
+	 */
+	public Element getSimpleType( String name )
+	{
+		return simpleTypes.get(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the top level element of the given name or null
+	 */
+	public Element getElement( String name )
+	{
+		return elements.get(name);
+	}
+
+	/**
+	 * @param name
+	 * @return the top level group of the given name or null
+	 */
+	public Element getGroup( String name )
+	{
+		return groups.get(name);
+	}
+
+	/**
+	 * @return the top level elements by name
+	 */
+	public Map<String, Element> getElements()
+	{
+		return Collections.unmodifiableMap(elements);
+	}
+
+	/**
+	 * @return the names of all top level complex types
+	 */
+	public Set<String> getComplexTypeNames()
+	{
+		return Collections.unmodifiableSet(complexTypes.keySet());
+	}
+}
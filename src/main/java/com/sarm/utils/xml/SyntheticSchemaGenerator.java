@@ -0,0 +1,491 @@
+/**
+ *
+ */
+package com.sarm.utils.xml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Writes valid XSDs of any size for scale testing the generator. The same
+ * seed and settings always write the same schema.
+ *
+ * Every entity has the given number of fields, a mix of simple types, some
+ * restricted by facets, and references to other entities with a weighted mix
+ * of cardinalities. Most entities are top level complex types, some of which
+ * extend an earlier complex type, and the rest are top level elements with an
+ * anonymous complex type, some of which declare unique constraints. Names are
+ * numbered so none is a java or SQL reserved word and no two entities share a
+ * field name, which keeps extensions valid.
+ *
+ */
+public class SyntheticSchemaGenerator
+{
+	public final static String TARGET_NAMESPACE = "http://www.example.org/synthetic";
+
+	public final static String SEED_OPTION = "seed";
+	public final static String ENTITIES_OPTION = "entities";
+	public final static String FIELDS_OPTION = "fields";
+	public final static String TARGET_FILE_OPTION = "targetFile";
+
+	private final static String[] SIMPLE_TYPES = new String[]
+	{ "xs:string", "xs:int", "xs:long", "xs:decimal", "xs:boolean", "xs:dateTime", "xs:date", "xs:double" };
+
+	private long seed = 1;
+
+	private int entities = 100;
+
+	private int fieldsPerEntity = 10;
+
+	// The relative weights of each cardinality of a reference field
+	private int optionalWeight = 4;
+	private int mandatoryWeight = 2;
+	private int oneOrMoreWeight = 1;
+	private int unboundedWeight = 2;
+
+	/**
+	 * The fraction of fields that refer to another entity
+	 */
+	private double referenceRatio = 0.2;
+
+	/**
+	 * The fraction of simple fields restricted by facets
+	 */
+	private double facetRatio = 0.3;
+
+	/**
+	 * The fraction of complex types, after the first, that extend an earlier
+	 * one
+	 */
+	private double inheritanceRatio = 0.2;
+
+	/**
+	 * The fraction of entities declared as top level elements rather than
+	 * complex types
+	 */
+	private double elementRatio = 0.1;
+
+	/**
+	 * The fraction of top level elements that declare a unique constraint
+	 */
+	private double uniqueRatio = 0.5;
+
+	/**
+	 * Writes the schema to a file, creating its directory if need be
+	 *
+	 * @param xsdFile
+	 * @throws IOException
+	 */
+	public void write(File xsdFile) throws IOException
+	{
+		File dir = xsdFile.getAbsoluteFile().getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+		{
+			throw new IOException("Failed to create all directories in the path [" + xsdFile + "].");
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xsdFile), "UTF-8"), 64 * 1024);
+		try
+		{
+			write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the schema
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void write(Writer writer) throws IOException
+	{
+		Random random = new Random(seed);
+		PrintWriter out = new PrintWriter(writer);
+
+		// Decide up front which entities are elements, so references only
+		// ever name complex types
+		boolean[] isElement = new boolean[entities];
+		int complexTypes = 0;
+		for (int e = 0; e < entities; e++)
+		{
+			isElement[e] = entities > 1 && random.nextDouble() < elementRatio;
+			complexTypes += isElement[e] ? 0 : 1;
+		}
+		int[] complexTypeIndexes = new int[complexTypes];
+		for (int e = 0, c = 0; e < entities; e++)
+		{
+			if (!isElement[e])
+				complexTypeIndexes[c++] = e;
+		}
+
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println("<xs:schema xmlns:xs=\"" + XMLDOMHelper.XSD_NAMESPACE + "\" targetNamespace=\"" + TARGET_NAMESPACE + "\" xmlns:tns=\"" + TARGET_NAMESPACE + "\" elementFormDefault=\"qualified\">");
+
+		for (int e = 0, c = 0; e < entities; e++)
+		{
+			String name = entityName(e);
+			if (isElement[e])
+			{
+				out.println("\t<xs:element name=\"" + name + "\">");
+				out.println("\t\t<xs:complexType>");
+				List<Integer> simpleFields = writeSequence(out, random, e, complexTypeIndexes, "\t\t\t");
+				out.println("\t\t</xs:complexType>");
+				if (!simpleFields.isEmpty() && random.nextDouble() < uniqueRatio)
+				{
+					writeUnique(out, random, e, simpleFields);
+				}
+				out.println("\t</xs:element>");
+			}
+			else
+			{
+				out.println("\t<xs:complexType name=\"" + name + "\">");
+				if (c > 0 && random.nextDouble() < inheritanceRatio)
+				{
+					out.println("\t\t<xs:complexContent>");
+					out.println("\t\t\t<xs:extension base=\"tns:" + entityName(complexTypeIndexes[random.nextInt(c)]) + "\">");
+					writeSequence(out, random, e, complexTypeIndexes, "\t\t\t\t");
+					out.println("\t\t\t</xs:extension>");
+					out.println("\t\t</xs:complexContent>");
+				}
+				else
+				{
+					writeSequence(out, random, e, complexTypeIndexes, "\t\t");
+				}
+				out.println("\t</xs:complexType>");
+				c++;
+			}
+		}
+
+		out.println("</xs:schema>");
+		out.flush();
+		if (out.checkError())
+		{
+			throw new IOException("Failed to write the synthetic schema");
+		}
+	}
+
+	/**
+	 * Writes the fields of an entity
+	 *
+	 * @return the indexes of the fields of a simple type
+	 */
+	private List<Integer> writeSequence(PrintWriter out, Random random, int entity, int[] complexTypeIndexes, String indent)
+	{
+		List<Integer> simpleFields = new ArrayList<Integer>();
+		out.println(indent + "<xs:sequence>");
+		for (int f = 0; f < fieldsPerEntity; f++)
+		{
+			String name = fieldName(entity, f);
+			if (complexTypeIndexes.length > 0 && random.nextDouble() < referenceRatio)
+			{
+				String type = entityName(complexTypeIndexes[random.nextInt(complexTypeIndexes.length)]);
+				out.println(indent + "\t<xs:element name=\"" + name + "\" type=\"tns:" + type + "\"" + occurs(random) + " />");
+			}
+			else if (random.nextDouble() < facetRatio)
+			{
+				writeRestrictedField(out, random, name, indent + "\t");
+				simpleFields.add(f);
+			}
+			else
+			{
+				out.println(indent + "\t<xs:element name=\"" + name + "\" type=\"" + SIMPLE_TYPES[random.nextInt(SIMPLE_TYPES.length)] + "\" />");
+				simpleFields.add(f);
+			}
+		}
+		out.println(indent + "</xs:sequence>");
+		return simpleFields;
+	}
+
+	private void writeRestrictedField(PrintWriter out, Random random, String name, String indent)
+	{
+		out.println(indent + "<xs:element name=\"" + name + "\">");
+		out.println(indent + "\t<xs:annotation>");
+		out.println(indent + "\t\t<xs:documentation>Synthetic field " + name + "</xs:documentation>");
+		out.println(indent + "\t</xs:annotation>");
+		out.println(indent + "\t<xs:simpleType>");
+		switch (random.nextInt(3))
+		{
+		case 0:
+			int minLength = random.nextInt(5);
+			out.println(indent + "\t\t<xs:restriction base=\"xs:string\">");
+			out.println(indent + "\t\t\t<xs:minLength value=\"" + minLength + "\" />");
+			out.println(indent + "\t\t\t<xs:maxLength value=\"" + (minLength + 1 + random.nextInt(60)) + "\" />");
+			break;
+		case 1:
+			int min = random.nextInt(100) - 50;
+			out.println(indent + "\t\t<xs:restriction base=\"xs:int\">");
+			out.println(indent + "\t\t\t<xs:minInclusive value=\"" + min + "\" />");
+			out.println(indent + "\t\t\t<xs:maxInclusive value=\"" + (min + 1 + random.nextInt(1000)) + "\" />");
+			break;
+		default:
+			out.println(indent + "\t\t<xs:restriction base=\"xs:string\">");
+			out.println(indent + "\t\t\t<xs:pattern value=\"[A-Z]{" + (1 + random.nextInt(3)) + "}[0-9]*\" />");
+			break;
+		}
+		out.println(indent + "\t\t</xs:restriction>");
+		out.println(indent + "\t</xs:simpleType>");
+		out.println(indent + "</xs:element>");
+	}
+
+	/**
+	 * Writes a unique constraint over one, or sometimes two, simple fields of
+	 * an element entity
+	 */
+	private void writeUnique(PrintWriter out, Random random, int entity, List<Integer> simpleFields)
+	{
+		out.println("\t\t<xs:unique name=\"unique" + entityName(entity) + "\">");
+		out.println("\t\t\t<xs:selector xpath=\".\" />");
+		int first = random.nextInt(simpleFields.size());
+		out.println("\t\t\t<xs:field xpath=\"tns:" + fieldName(entity, simpleFields.get(first)) + "\" />");
+		if (simpleFields.size() > 1 && random.nextInt(4) == 0)
+		{
+			out.println("\t\t\t<xs:field xpath=\"tns:" + fieldName(entity, simpleFields.get((first + 1) % simpleFields.size())) + "\" />");
+		}
+		out.println("\t\t</xs:unique>");
+	}
+
+	private String occurs(Random random)
+	{
+		int pick = random.nextInt(optionalWeight + mandatoryWeight + oneOrMoreWeight + unboundedWeight);
+		if (pick < optionalWeight)
+			return " minOccurs=\"0\" maxOccurs=\"1\"";
+		pick -= optionalWeight;
+		if (pick < mandatoryWeight)
+			return " minOccurs=\"1\" maxOccurs=\"1\"";
+		pick -= mandatoryWeight;
+		if (pick < oneOrMoreWeight)
+			return " minOccurs=\"1\" maxOccurs=\"unbounded\"";
+		return " minOccurs=\"0\" maxOccurs=\"unbounded\"";
+	}
+
+	/**
+	 * @param entity
+	 * @return the name of the entity of the given index
+	 */
+	public static String entityName(int entity)
+	{
+		return "Entity" + entity;
+	}
+
+	/**
+	 * @param entity
+	 * @param field
+	 * @return the name of the field of the given index in the entity of the
+	 *         given index
+	 */
+	public static String fieldName(int entity, int field)
+	{
+		return "e" + entity + "Field" + field;
+	}
+
+	/**
+	 * @return the seed
+	 */
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * @param seed the seed to set
+	 */
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the number of entities
+	 */
+	public int getEntities()
+	{
+		return entities;
+	}
+
+	/**
+	 * @param entities the number of entities to set
+	 */
+	public void setEntities(int entities)
+	{
+		this.entities = entities;
+	}
+
+	/**
+	 * @return the fieldsPerEntity
+	 */
+	public int getFieldsPerEntity()
+	{
+		return fieldsPerEntity;
+	}
+
+	/**
+	 * @param fieldsPerEntity the fieldsPerEntity to set
+	 */
+	public void setFieldsPerEntity(int fieldsPerEntity)
+	{
+		this.fieldsPerEntity = fieldsPerEntity;
+	}
+
+	/**
+	 * Sets the relative weights of each cardinality of a reference field
+	 *
+	 * @param optional
+	 *            minOccurs 0, maxOccurs 1
+	 * @param mandatory
+	 *            minOccurs 1, maxOccurs 1
+	 * @param oneOrMore
+	 *            minOccurs 1, maxOccurs unbounded
+	 * @param unbounded
+	 *            minOccurs 0, maxOccurs unbounded
+	 */
+	public void setCardinalityWeights(int optional, int mandatory, int oneOrMore, int unbounded)
+	{
+		if (optional < 0 || mandatory < 0 || oneOrMore < 0 || unbounded < 0 || optional + mandatory + oneOrMore + unbounded == 0)
+		{
+			throw new IllegalArgumentException("Cardinality weights must not be negative and at least one must be positive");
+		}
+		this.optionalWeight = optional;
+		this.mandatoryWeight = mandatory;
+		this.oneOrMoreWeight = oneOrMore;
+		this.unboundedWeight = unbounded;
+	}
+
+	/**
+	 * @return the referenceRatio
+	 */
+	public double getReferenceRatio()
+	{
+		return referenceRatio;
+	}
+
+	/**
+	 * @param referenceRatio the referenceRatio to set
+	 */
+	public void setReferenceRatio(double referenceRatio)
+	{
+		this.referenceRatio = referenceRatio;
+	}
+
+	/**
+	 * @return the facetRatio
+	 */
+	public double getFacetRatio()
+	{
+		return facetRatio;
+	}
+
+	/**
+	 * @param facetRatio the facetRatio to set
+	 */
+	public void setFacetRatio(double facetRatio)
+	{
+		this.facetRatio = facetRatio;
+	}
+
+	/**
+	 * @return the inheritanceRatio
+	 */
+	public double getInheritanceRatio()
+	{
+		return inheritanceRatio;
+	}
+
+	/**
+	 * @param inheritanceRatio the inheritanceRatio to set
+	 */
+	public void setInheritanceRatio(double inheritanceRatio)
+	{
+		this.inheritanceRatio = inheritanceRatio;
+	}
+
+	/**
+	 * @return the elementRatio
+	 */
+	public double getElementRatio()
+	{
+		return elementRatio;
+	}
+
+	/**
+	 * @param elementRatio the elementRatio to set
+	 */
+	public void setElementRatio(double elementRatio)
+	{
+		this.elementRatio = elementRatio;
+	}
+
+	/**
+	 * @return the uniqueRatio
+	 */
+	public double getUniqueRatio()
+	{
+		return uniqueRatio;
+	}
+
+	/**
+	 * @param uniqueRatio the uniqueRatio to set
+	 */
+	public void setUniqueRatio(double uniqueRatio)
+	{
+		this.uniqueRatio = uniqueRatio;
+	}
+
+	public final static void main(String[] args) throws Exception
+	{
+		Options options = new Options();
+		Option seedOption = new Option(SEED_OPTION, true, "The seed of the schema, the same seed always writes the same schema. Default is 1");
+		Option entitiesOption = new Option(ENTITIES_OPTION, true, "The number of entities to write. Default is 100");
+		Option fieldsOption = new Option(FIELDS_OPTION, true, "The number of fields of each entity. Default is 10");
+		Option targetFileOption = new Option(TARGET_FILE_OPTION, true, "The XSD file to write");
+		targetFileOption.setRequired(true);
+
+		options.addOption(seedOption);
+		options.addOption(entitiesOption);
+		options.addOption(fieldsOption);
+		options.addOption(targetFileOption);
+
+		try
+		{
+			CommandLine cl = new BasicParser().parse(options, args);
+
+			SyntheticSchemaGenerator generator = new SyntheticSchemaGenerator();
+			if (cl.hasOption(SEED_OPTION))
+			{
+				generator.setSeed(Long.parseLong(cl.getOptionValue(SEED_OPTION)));
+			}
+			if (cl.hasOption(ENTITIES_OPTION))
+			{
+				generator.setEntities(Integer.parseInt(cl.getOptionValue(ENTITIES_OPTION)));
+			}
+			if (cl.hasOption(FIELDS_OPTION))
+			{
+				generator.setFieldsPerEntity(Integer.parseInt(cl.getOptionValue(FIELDS_OPTION)));
+			}
+			generator.write(new File(cl.getOptionValue(TARGET_FILE_OPTION)));
+		}
+		catch (ParseException e)
+		{
+			new HelpFormatter().printHelp("Writes a synthetic XSD of any size for scale testing:", options);
+			System.exit(0);
+		}
+	}
+}
@@ -5,15 +5,21 @@ package com.sarm.utils.xml;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.dom4j.Attribute;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
 import org.dom4j.Node;
 import org.dom4j.QName;
+import org.dom4j.XPath;
 import org.dom4j.io.OutputFormat;
 import org.dom4j.io.SAXReader;
 import org.dom4j.io.XMLWriter;
@@ -29,6 +35,40 @@ public class XMLDOMHelper
 {
 	private static Logger logger = LoggerFactory.getLogger(XMLDOMHelper.class);
 	
+	public final static String XSD_NAMESPACE = "http://www.w3.org/2001/XMLSchema";
+
+	/**
+	 * The prefix the XSD namespace is bound to in compiled XPath expressions
+	 */
+	public final static String XSD_PREFIX = "xs";
+
+	/**
+	 * The maximum number of compiled XPath expressions held in the cache
+	 */
+	public final static int XPATH_CACHE_SIZE = 512;
+
+	private final static Map<String, String> XPATH_NAMESPACES = new HashMap<String, String>();
+
+	static
+	{
+		XPATH_NAMESPACES.put(XSD_PREFIX, XSD_NAMESPACE);
+	}
+
+	/**
+	 * Compiled XPath expressions by expression, evicting the least recently
+	 * used once full
+	 */
+	private final static Map<String, XPath> xpathCache = Collections.synchronizedMap(new LinkedHashMap<String, XPath>(64, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, XPath> eldest)
+		{
+			return size() > XPATH_CACHE_SIZE;
+		}
+	});
+	
 	public static Document readFile( String filename ) throws DocumentException, SAXException
 	{
 		Document doc = null;
@@ -43,6 +83,68 @@ public class XMLDOMHelper
 		return doc;
 	}
 	
+	/**
+	 * Returns the compiled form of an XPath expression, with the
+	 * {@link #XSD_PREFIX} prefix bound to the XSD namespace, compiling it on
+	 * first use. Compiled expressions hold no state between evaluations so the
+	 * same instance is shared by all threads.
+	 * 
+	 * @param expression
+	 * @return
+	 */
+	public static XPath compileXPath( String expression )
+	{
+		XPath xpath = xpathCache.get(expression);
+		if( xpath == null )
+		{
+			xpath = DocumentHelper.createXPath(expression);
+			xpath.setNamespaceURIs(XPATH_NAMESPACES);
+			xpathCache.put(expression, xpath);
+		}
+		return xpath;
+	}
+
+	/**
+	 * Evaluates a cached, compiled XPath expression relative to the context
+	 * node and returns the first node selected
+	 * 
+	 * @param context
+	 * @param expression
+	 * @return the first node or null if none are selected
+	 */
+	public static Node selectSingleNode( Node context, String expression )
+	{
+		return compileXPath(expression).selectSingleNode(context);
+	}
+
+	/**
+	 * Evaluates a cached, compiled XPath expression relative to the context
+	 * node and returns all the nodes selected
+	 * 
+	 * @param context
+	 * @param expression
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Node> selectNodes( Node context, String expression )
+	{
+		return compileXPath(expression).selectNodes(context);
+	}
+
+	/**
+	 * Evaluates a cached, compiled XPath expression relative to the context
+	 * node and returns the string value of the first node selected
+	 * 
+	 * @param context
+	 * @param expression
+	 * @return the string value or null if no node is selected
+	 */
+	public static String selectStringValue( Node context, String expression )
+	{
+		Node node = selectSingleNode(context, expression);
+		return node == null ? null : node.getStringValue();
+	}
+
 	public static Element addChildElementWithAttributes( Element parent, String childName, Attribute[] attributes )
 	{
 		Element childElement = parent.addElement(childName);
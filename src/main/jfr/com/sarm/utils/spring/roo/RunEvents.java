@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package com.sarm.utils.spring.roo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of a generator run. Only loaded, and called
+ * reflectively, by {@link RunMetrics} once it has found the flight recorder,
+ * so the generator still runs on JVMs without one. Kept out of the main
+ * sources, which are compiled against the Java 8 API where the flight
+ * recorder is missing. Record them with, for example:
+ *
+ * <code>
+ * java -XX:StartFlightRecording=filename=roo.jfr ...
+ * </code>
+ *
+ */
+class RunEvents
+{
+	private RunEvents()
+	{
+	}
+
+	/**
+	 * Begins the event of a run, phase or entity
+	 *
+	 * @param phase
+	 *            the phase, or null for the whole run
+	 * @param entity
+	 *            the entity, or null for a phase
+	 * @return the event, or null if the event is not being recorded
+	 */
+	static Object begin(String phase, String entity)
+	{
+		Event event = phase == null ? new RunEvent() : entity == null ? new PhaseEvent() : new EntityEvent();
+		if (!event.isEnabled())
+		{
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends and commits an event begun by {@link #begin(String, String)}
+	 *
+	 * @param begun
+	 * @param schema
+	 * @param phase
+	 * @param entity
+	 * @param allocatedBytes
+	 */
+	static void commit(Object begun, String schema, String phase, String entity, long allocatedBytes)
+	{
+		Event event = (Event) begun;
+		event.end();
+		if (!event.shouldCommit())
+		{
+			return;
+		}
+
+		if (event instanceof EntityEvent)
+		{
+			EntityEvent entityEvent = (EntityEvent) event;
+			entityEvent.schema = schema;
+			entityEvent.phase = phase;
+			entityEvent.entity = entity;
+			entityEvent.allocatedBytes = allocatedBytes;
+		}
+		else if (event instanceof PhaseEvent)
+		{
+			PhaseEvent phaseEvent = (PhaseEvent) event;
+			phaseEvent.schema = schema;
+			phaseEvent.phase = phase;
+			phaseEvent.allocatedBytes = allocatedBytes;
+		}
+		else
+		{
+			RunEvent runEvent = (RunEvent) event;
+			runEvent.schema = schema;
+			runEvent.allocatedBytes = allocatedBytes;
+		}
+		event.commit();
+	}
+
+	@Name("com.sarm.utils.spring.roo.Run")
+	@Label("Roo Script Generation")
+	@Description("A roo script generated from a schema")
+	@Category("Roo Script Generator")
+	@StackTrace(false)
+	static class RunEvent extends Event
+	{
+		@Label("Schema")
+		String schema;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	@Name("com.sarm.utils.spring.roo.Phase")
+	@Label("Roo Script Generation Phase")
+	@Description("A phase of generating a roo script")
+	@Category("Roo Script Generator")
+	@StackTrace(false)
+	static class PhaseEvent extends Event
+	{
+		@Label("Schema")
+		String schema;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	@Name("com.sarm.utils.spring.roo.Entity")
+	@Label("Roo Script Generation Entity")
+	@Description("An entity read or written in a phase of generating a roo script")
+	@Category("Roo Script Generator")
+	@StackTrace(false)
+	static class EntityEvent extends Event
+	{
+		@Label("Schema")
+		String schema;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Entity")
+		String entity;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocatedBytes;
+	}
+}
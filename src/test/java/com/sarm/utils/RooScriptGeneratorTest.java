@@ -1,8 +1,27 @@
 package com.sarm.utils;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.SchemaFactory;
 
 import junitx.framework.FileAssert;
 
@@ -11,8 +30,16 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sarm.utils.spring.roo.BatchResult;
+import com.sarm.utils.spring.roo.GenerationServer;
+import com.sarm.utils.spring.roo.ModelSnapshot;
 import com.sarm.utils.spring.roo.RooScriptGenerator;
+import com.sarm.utils.spring.roo.RunMetrics;
+import com.sarm.utils.spring.roo.SchemaCatalog;
+import com.sarm.utils.spring.roo.SchemaWatcher;
+import com.sarm.utils.spring.roo.ScriptCache;
 import com.sarm.utils.spring.roo.RooScriptGenerator.DATATBASE_TYPE;
+import com.sarm.utils.xml.SyntheticSchemaGenerator;
 
 /**
  * Runs tests against all available test schemas and compares the output to the
@@ -67,6 +94,838 @@ public class RooScriptGeneratorTest
 		generateScript("jsonOnly");
 	}
 
+	@Test
+	public void testDefaultGenerateScriptStreaming() throws Exception
+	{	
+		gen.setStreamingParser(true);
+
+		testDefaultGenerateScript();
+	}
+
+	@Test
+	public void testJsonOnlyGenerateScriptStreaming() throws Exception
+	{				
+		gen.setStreamingParser(true);
+
+		testJsonOnlyGenerateScript();
+	}
+
+	@Test
+	public void testStreamingMatchesDom() throws Exception
+	{
+		for( String name : new String[]{ "orders", "users" } )
+		{
+			File srcFile = new File("src/test/resources/" + name + ".xsd");
+			File domRooFile = new File("target/dom/" + name + ".roo");
+			File streamingRooFile = new File("target/streaming/" + name + ".roo");
+
+			gen.setStreamingParser(false);
+			gen.generateScript(srcFile, domRooFile);
+			gen.setStreamingParser(true);
+			gen.generateScript(srcFile, streamingRooFile);
+
+			FileAssert.assertEquals("Streaming roo file differs from DOM for " + name, domRooFile, streamingRooFile);
+			FileAssert.assertEquals("Streaming roo update file differs from DOM for " + name, new File("target/dom/" + name + "Update.roo"), new File("target/streaming/" + name + "Update.roo"));
+		}
+	}
+
+	@Test
+	public void testUniqueConstraintsOnOtherEntities() throws Exception
+	{
+		for( boolean streaming : new boolean[]{ false, true } )
+		{
+			File rooFile = new File("target/unique/orders" + (streaming ? "Streaming" : "") + ".roo");
+			gen.setStreamingParser(streaming);
+			gen.generateScript(new File("src/test/resources/orders.xsd"), rooFile);
+
+			String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+			assertTrue("Unique email not generated", script.matches("(?s).*--fieldName email [^\\n]*--unique.*"));
+			assertTrue("Unique sku not generated", script.matches("(?s).*--fieldName sku [^\\n]*--unique.*"));
+			assertFalse("Composite unique made a single field unique", script.matches("(?s).*--fieldName (date1|table1) [^\\n]*--unique.*"));
+		}
+	}
+
+	@Test
+	public void testRelationshipsResolvedAgainstTheirReverse() throws Exception
+	{
+		File rooFile = new File("target/relationships/orders.roo");
+		gen.generateScript(new File("src/test/resources/orders.xsd"), rooFile);
+
+		String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+		assertTrue("One to many not mapped by its reference back", script.contains("--fieldName orders --type org.example.orders.Order --class org.example.orders.Customer --cardinality ONE_TO_MANY --mappedBy customer"));
+		assertTrue("Many to one not generated", script.contains("--fieldName customer --type org.example.orders.Customer --class org.example.orders.Order --cardinality MANY_TO_ONE"));
+		assertTrue("One to many without a reference back was mapped", script.matches("(?s).*--fieldName lines [^\\n]*--cardinality ONE_TO_MANY\\s.*"));
+		assertTrue("Mandatory reference to an entity dropped", script.contains("field reference --fieldName product --type org.example.orders.Product --class org.example.orders.OrderLine"));
+	}
+
+	@Test
+	public void testEchoScript() throws Exception
+	{
+		File rooFile = new File("target/echo/users.roo");
+		ByteArrayOutputStream echoed = new ByteArrayOutputStream();
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(echoed, true));
+		try
+		{
+			gen.setEchoScript(true);
+			gen.generateScript(new File("src/test/resources/users.xsd"), rooFile);
+		}
+		finally
+		{
+			System.setOut(stdout);
+		}
+
+		String script = new String(Files.readAllBytes(rooFile.toPath()));
+		assertTrue("Script not echoed to standard out", echoed.toString().startsWith(script));
+		assertFalse("Script written with carriage returns", script.contains("\r"));
+	}
+
+	@Test
+	public void testFailedRunKeepsScripts() throws Exception
+	{
+		File rooFile = new File("target/failedRun/users.roo");
+		File updateFile = new File("target/failedRun/usersUpdate.roo");
+		gen.generateScript(new File("src/test/resources/users.xsd"), rooFile);
+		byte[] script = Files.readAllBytes(rooFile.toPath());
+		byte[] updateScript = Files.readAllBytes(updateFile.toPath());
+
+		// Echoing fails once the scripts have been written, before they are
+		// closed
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+				throw new IllegalStateException("Standard out is closed");
+			}
+		}));
+		try
+		{
+			gen.setEchoScript(true);
+			gen.generateScript(new File("src/test/resources/users.xsd"), rooFile);
+			fail("Failure to echo the script ignored");
+		}
+		catch (IllegalStateException e)
+		{
+			// Expected
+		}
+		finally
+		{
+			System.setOut(stdout);
+		}
+
+		assertTrue("Script of the last run replaced", Arrays.equals(script, Files.readAllBytes(rooFile.toPath())));
+		assertTrue("Update script of the last run replaced", Arrays.equals(updateScript, Files.readAllBytes(updateFile.toPath())));
+		assertEquals("Temporary scripts left behind", 2, rooFile.getParentFile().list().length);
+	}
+
+	@Test
+	public void testScriptCache() throws Exception
+	{
+		File cacheDir = new File("target/cache");
+		File rooFile = new File(cacheDir, "users.roo");
+		File srcFile = new File("src/test/resources/users.xsd");
+		new File(cacheDir, ScriptCache.CACHE_FILENAME).delete();
+		rooFile.delete();
+
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertTrue("Roo file not generated", rooFile.exists());
+		rooFile.setLastModified(0);
+
+		// Unchanged schema and settings, read from a fresh cache as a new run would
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertEquals("Up to date roo file was regenerated", 0, rooFile.lastModified());
+		assertEquals(1, gen.getScriptCache().getHits().size());
+
+		// A changed setting misses
+		gen.setJsonOnly(!gen.isJsonOnly());
+		gen.generateScript(srcFile, rooFile);
+		assertTrue("Roo file not regenerated for changed settings", rooFile.lastModified() != 0);
+		assertEquals(1, gen.getScriptCache().getMisses().size());
+
+		// As does switching to delta updates, which snapshots the model
+		File snapshotFile = new File(cacheDir, "users" + ModelSnapshot.EXTENSION);
+		snapshotFile.delete();
+		gen.setDeltaUpdate(true);
+		gen.generateScript(srcFile, rooFile);
+		assertEquals(2, gen.getScriptCache().getMisses().size());
+		assertTrue("Model snapshot not written for delta updates", snapshotFile.exists());
+	}
+
+	@Test
+	public void testScriptCacheTimestamps() throws Exception
+	{
+		File cacheDir = new File("target/cache/stamp");
+		cacheDir.mkdirs();
+		File rooFile = new File(cacheDir, "users.roo");
+		File srcFile = new File(cacheDir, "users.xsd");
+		byte[] xsd = Files.readAllBytes(new File("src/test/resources/users.xsd").toPath());
+		Files.write(srcFile.toPath(), xsd);
+		new File(cacheDir, ScriptCache.CACHE_FILENAME).delete();
+		rooFile.delete();
+
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		long generated = rooFile.lastModified();
+
+		// A touched but unchanged schema is hashed and found up to date
+		long touched = (srcFile.lastModified() / 1000 + 10) * 1000;
+		srcFile.setLastModified(touched);
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertEquals("Touched roo file was regenerated", generated, rooFile.lastModified());
+		assertEquals(1, gen.getScriptCache().getHits().size());
+
+		// Then stamped afresh, so an untouched schema is not read at all
+		byte[] unreadable = new byte[xsd.length];
+		Arrays.fill(unreadable, (byte) ' ');
+		Files.write(srcFile.toPath(), unreadable);
+		srcFile.setLastModified(touched);
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertEquals("Untouched roo file was regenerated", generated, rooFile.lastModified());
+		assertEquals(1, gen.getScriptCache().getHits().size());
+
+		// A touched but unchanged script is found up to date by its hash
+		Files.write(srcFile.toPath(), xsd);
+		srcFile.setLastModified(touched);
+		rooFile.setLastModified(0);
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertEquals(0, rooFile.lastModified());
+		assertEquals(1, gen.getScriptCache().getHits().size());
+
+		// An edited script is generated again
+		byte[] script = Files.readAllBytes(rooFile.toPath());
+		Files.write(rooFile.toPath(), Arrays.copyOf(script, script.length / 2));
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScript(srcFile, rooFile);
+		assertEquals(1, gen.getScriptCache().getMisses().size());
+		assertTrue("Edited roo file not regenerated", Arrays.equals(script, Files.readAllBytes(rooFile.toPath())));
+	}
+
+	@Test
+	public void testDeltaUpdateScript() throws Exception
+	{
+		File srcFile = new File("target/delta/users.xsd");
+		File rooFile = new File("target/delta/users.roo");
+		File updateFile = new File("target/delta/usersUpdate.roo");
+		srcFile.getParentFile().mkdirs();
+		new File("target/delta/users.model").delete();
+		String users = new String(Files.readAllBytes(new File("src/test/resources/users.xsd").toPath()), "UTF-8");
+		gen.setDeltaUpdate(true);
+
+		// Without a snapshot everything is updated
+		Files.write(srcFile.toPath(), users.getBytes("UTF-8"));
+		gen.generateScript(srcFile, rooFile);
+		String update = new String(Files.readAllBytes(updateFile.toPath()), "UTF-8");
+		assertTrue("Entity missing from first update script", update.contains("entity jpa --class org.example.users.Person "));
+		assertTrue("Field missing from first update script", update.contains("--fieldName firstName"));
+
+		// Add a field and an entity
+		Files.write(srcFile.toPath(), users.replace("</sequence>", "<element name=\"email\" type=\"string\"></element></sequence>")
+				.replace("</schema>", "<complexType name=\"Address\"><sequence><element name=\"street\" type=\"string\"></element></sequence></complexType></schema>").getBytes("UTF-8"));
+		gen.generateScript(srcFile, rooFile);
+		update = new String(Files.readAllBytes(updateFile.toPath()), "UTF-8");
+		String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+		assertTrue("Added field missing from update script", update.contains("--fieldName email"));
+		assertTrue("Added entity missing from update script", update.contains("entity jpa --class org.example.users.Address "));
+		assertTrue("Added entity field missing from update script", update.contains("--fieldName street"));
+		assertFalse("Unchanged entity in update script", update.contains("entity jpa --class org.example.users.Person "));
+		assertFalse("Unchanged field in update script", update.contains("--fieldName firstName"));
+		assertTrue("Unchanged field missing from full script", script.contains("--fieldName firstName"));
+	}
+
+	@Test
+	public void testGenerateScriptFromSnapshot() throws Exception
+	{
+		File rooFile = new File("target/snapshot/orders.roo");
+		File snapshotRooFile = new File("target/snapshot/fromSnapshot/orders.roo");
+		gen.setDeltaUpdate(true);
+		gen.generateScript(new File("src/test/resources/orders.xsd"), rooFile);
+
+		File snapshotFile = new File("target/snapshot/orders" + ModelSnapshot.EXTENSION);
+		assertTrue("Model snapshot not written", snapshotFile.exists());
+
+		gen.setDeltaUpdate(false);
+		gen.generateScript(snapshotFile, snapshotRooFile);
+		FileAssert.assertEquals("Roo file from snapshot differs from XSD", rooFile, snapshotRooFile);
+	}
+
+	@Test
+	public void testMetricsReport() throws Exception
+	{
+		File rooFile = new File("target/metrics/users.roo");
+		File reportFile = new File("target/metrics/users" + RunMetrics.EXTENSION);
+		reportFile.delete();
+		gen.setMetricsReport(true);
+		gen.generateScript(new File("src/test/resources/users.xsd"), rooFile);
+
+		String report = new String(Files.readAllBytes(reportFile.toPath()), "UTF-8");
+		for (String phase : new String[] { RunMetrics.PARSE, RunMetrics.EXTRACT, RunMetrics.UNIQUES, RunMetrics.WRITE, RunMetrics.RELATIONSHIPS, RunMetrics.SCAFFOLD })
+		{
+			assertTrue("Phase " + phase + " missing from report", report.contains("{ \"phase\": \"" + phase + "\", \"nanos\": "));
+		}
+		assertTrue("Entity missing from report", report.contains("{ \"entity\": \"Person\", \"phase\": \"" + RunMetrics.WRITE + "\", \"nanos\": "));
+		assertTrue("Total missing from report", report.matches("(?s).*\"nanos\": [0-9]+,.*\"allocatedBytes\": -?[0-9]+,.*"));
+	}
+
+	@Test
+	public void testWatchRegeneratesOnChange() throws Exception
+	{
+		File srcFile = new File("target/watch/users.xsd");
+		File rooFile = new File("target/watch/users.roo");
+		srcFile.getParentFile().mkdirs();
+		String users = new String(Files.readAllBytes(new File("src/test/resources/users.xsd").toPath()), "UTF-8");
+		Files.write(srcFile.toPath(), users.getBytes("UTF-8"));
+
+		final SchemaWatcher watcher = new SchemaWatcher(gen, srcFile, rooFile);
+		watcher.setDebounceMillis(50);
+		Thread watching = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					watcher.run();
+				}
+				catch (InterruptedException e)
+				{
+					// Stopped
+				}
+			}
+		};
+		watching.start();
+		try
+		{
+			long deadline = System.currentTimeMillis() + 10000;
+			while (watcher.getGenerations() < 1 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			assertEquals("Script not generated on start", 1, watcher.getGenerations());
+
+			// A burst of saves
+			for (int i = 0; i < 3; i++)
+			{
+				Files.write(srcFile.toPath(), users.replace("</sequence>", "<element name=\"email" + i + "\" type=\"string\"></element></sequence>").getBytes("UTF-8"));
+			}
+
+			String script = "";
+			while (!script.contains("--fieldName email2") && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+				script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+			}
+			assertTrue("Script not regenerated on change", script.contains("--fieldName email2"));
+		}
+		finally
+		{
+			watcher.close();
+			watching.join(5000);
+		}
+		assertFalse("Watcher did not stop when closed", watching.isAlive());
+	}
+
+	@Test
+	public void testGenerationServer() throws Exception
+	{
+		GenerationServer server = new GenerationServer(0, 2);
+		server.start();
+		try
+		{
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + GenerationServer.GENERATE_PATH + "?databaseType=MYSQL").openConnection();
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			Files.copy(new File("src/test/resources/users.xsd").toPath(), connection.getOutputStream());
+			assertEquals(200, connection.getResponseCode());
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = connection.getInputStream();
+			byte[] buffer = new byte[8192];
+			for (int read; (read = in.read(buffer)) != -1;)
+			{
+				response.write(buffer, 0, read);
+			}
+			in.close();
+			String json = response.toString("UTF-8");
+			assertTrue("Options not applied", json.contains("jpa setup --provider HIBERNATE --database MYSQL"));
+			assertTrue("Update script missing", json.contains("\"updateScript\": \"####"));
+
+			connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + GenerationServer.GENERATE_PATH + "?targetFile=/tmp/x.roo").openConnection();
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.getOutputStream().close();
+			assertEquals("Option outside the script options accepted", 400, connection.getResponseCode());
+
+			// Requests share the server's schema cache, so a schema imported by
+			// every posted XSD is read once
+			String importing = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"http://www.example.org/crm\" xmlns:party=\"http://www.example.org/party\">\n"
+					+ "\t<xs:import namespace=\"http://www.example.org/party\" schemaLocation=\"" + new File("src/test/resources/include/schemas/party.xsd").getAbsolutePath() + "\" />\n"
+					+ "\t<xs:complexType name=\"Account\"><xs:sequence><xs:element name=\"holder\" type=\"party:Party\" /></xs:sequence></xs:complexType>\n"
+					+ "</xs:schema>\n";
+			for (int i = 0; i < 2; i++)
+			{
+				connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + GenerationServer.GENERATE_PATH).openConnection();
+				connection.setDoOutput(true);
+				connection.setRequestMethod("POST");
+				connection.getOutputStream().write(importing.getBytes("UTF-8"));
+				assertEquals(200, connection.getResponseCode());
+				connection.getInputStream().close();
+			}
+			assertEquals("Imported schema read per request", 1, server.getSchemaCache().getReads());
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	@Test
+	public void testGenerationServerBackpressure() throws Exception
+	{
+		GenerationServer server = new GenerationServer(0, 1);
+		server.setQueueTimeoutMillis(30000);
+		server.start();
+		Socket[] stalled = new Socket[2];
+		try
+		{
+			// One request is generated and one waits for it, neither sending
+			// its XSD
+			for (int i = 0; i < stalled.length; i++)
+			{
+				stalled[i] = new Socket("localhost", server.getPort());
+				stalled[i].getOutputStream().write(("POST " + GenerationServer.GENERATE_PATH + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 1000\r\n\r\n").getBytes("US-ASCII"));
+				stalled[i].getOutputStream().flush();
+			}
+			Thread.sleep(500);
+
+			long start = System.currentTimeMillis();
+			HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + GenerationServer.GENERATE_PATH).openConnection();
+			connection.setReadTimeout(15000);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.getOutputStream().close();
+			assertEquals("Request beyond those waiting not turned away", 503, connection.getResponseCode());
+			assertEquals("1", connection.getHeaderField("Retry-After"));
+			assertTrue("Request turned away only after the queue timeout", System.currentTimeMillis() - start < 10000);
+		}
+		finally
+		{
+			for (Socket socket : stalled)
+			{
+				if (socket != null)
+				{
+					socket.close();
+				}
+			}
+			server.close();
+		}
+	}
+
+	@Test
+	public void testCommandTemplateOverrides() throws Exception
+	{
+		File templatesFile = new File("target/templates/templates.properties");
+		File rooFile = new File("target/templates/users.roo");
+		templatesFile.getParentFile().mkdirs();
+		Files.write(templatesFile.toPath(), "entity=entity jpa --class %%PACKAGE%%%%ENTITY%% --activeRecord %%ACTIVE_RECORD%% --serializable\n".getBytes("UTF-8"));
+
+		gen.setCommandTemplates(gen.getCommandTemplates().overriddenBy(templatesFile));
+		gen.generateScript(new File("src/test/resources/users.xsd"), rooFile);
+		String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+		assertTrue("Overridden template not used", script.contains("entity jpa --class org.example.users.Person --activeRecord false --serializable"));
+		assertTrue("Default template not used", script.contains("selenium test --controller org.example.users.PersonController"));
+
+		Files.write(templatesFile.toPath(), "entity=entity jpa --class %%PACKAGE%%%%ENTITY%% --table %%FIELD_NAME%%\n".getBytes("UTF-8"));
+		try
+		{
+			gen.getCommandTemplates().overriddenBy(templatesFile);
+			fail("Template with a tag it has no value for accepted");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("%%FIELD_NAME%%"));
+		}
+	}
+
+	@Test
+	public void testIncludesAndImports() throws Exception
+	{
+		gen.setSchemaCatalog(SchemaCatalog.read(new File("src/test/resources/include/catalog.properties")));
+		for( boolean streaming : new boolean[]{ false, true } )
+		{
+			File rooFile = new File("target/include/shop" + (streaming ? "Streaming" : "") + ".roo");
+			gen.setStreamingParser(streaming);
+			gen.generateScript(new File("src/test/resources/include/schemas/shop.xsd"), rooFile);
+
+			String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+			assertTrue("Included entity not generated", script.contains("entity jpa --class org.example.shop.Product "));
+			assertTrue("Imported entity not generated in its own package", script.contains("entity jpa --class org.example.party.Party "));
+			assertTrue("Imported entity not generated before it is extended", script.indexOf("--class org.example.party.Party ") < script.indexOf("--class org.example.shop.Supplier "));
+			assertTrue("Imported base not qualified", script.contains("--class org.example.shop.Supplier --activeRecord false --testAutomatically --extends org.example.party.Party"));
+			assertTrue("Reference to an imported entity not generated", script.contains("field reference --fieldName customer --type org.example.party.Party --class org.example.shop.Order"));
+			assertTrue("Relationship within an imported schema not generated", script.contains("field reference --fieldName address --type org.example.party.Address --class org.example.party.Party"));
+			assertTrue("Relationship to an included entity not generated", script.contains("--fieldName lines --type org.example.shop.Product --class org.example.shop.Order --cardinality ONE_TO_MANY"));
+		}
+
+		// Both runs shared the schemas read by the first
+		assertEquals(2, gen.getSchemaCache().getReads());
+	}
+
+	@Test
+	public void testModules() throws Exception
+	{
+		gen.setSchemaCatalog(SchemaCatalog.read(new File("src/test/resources/include/catalog.properties")));
+		gen.setModuleSplit(RooScriptGenerator.MODULE_SPLIT.NAMESPACE);
+		File rooFile = new File("target/modules/shop.roo");
+		gen.generateScript(new File("src/test/resources/include/schemas/shop.xsd"), rooFile);
+
+		String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+		assertTrue("Parent project not created", script.contains("project --topLevelPackage org.example.shop --packaging POM"));
+		assertTrue("Module of the imported namespace not created", script.contains("module create --moduleName party --topLevelPackage org.example.party --packaging JAR"));
+		assertTrue("Module not created after the module it depends on", script.indexOf("--moduleName party ") < script.indexOf("--moduleName shop "));
+		assertTrue("Dependency on the imported module not added", script.indexOf("dependency add --groupId org.example.shop --artifactId party ") > script.indexOf("--moduleName shop "));
+		assertTrue("Entity not created in its module", script.indexOf("--class org.example.party.Address ") < script.indexOf("--moduleName shop "));
+		assertTrue("Relationship not created in the module of its entity", script.indexOf("--fieldName customer --type org.example.party.Party --class org.example.shop.Order") > script.indexOf("--moduleName shop "));
+
+		// Every entity is related, so a component within the module size is a
+		// single project
+		gen.setModuleSplit(RooScriptGenerator.MODULE_SPLIT.COMPONENTS);
+		File componentsFile = new File("target/modules/shopComponents.roo");
+		gen.generateScript(new File("src/test/resources/include/schemas/shop.xsd"), componentsFile);
+		gen.setModuleSplit(RooScriptGenerator.MODULE_SPLIT.NONE);
+		File singleFile = new File("target/modules/shopSingle.roo");
+		gen.generateScript(new File("src/test/resources/include/schemas/shop.xsd"), singleFile);
+		assertEquals(new String(Files.readAllBytes(singleFile.toPath()), "UTF-8"), new String(Files.readAllBytes(componentsFile.toPath()), "UTF-8"));
+
+		// A larger component is cut in to modules that only depend on earlier
+		// modules
+		gen.setModuleSplit(RooScriptGenerator.MODULE_SPLIT.COMPONENTS);
+		gen.setModuleSize(2);
+		gen.generateScript(new File("src/test/resources/include/schemas/shop.xsd"), componentsFile);
+		script = new String(Files.readAllBytes(componentsFile.toPath()), "UTF-8");
+		String[] modules = script.split("\nmodule create ");
+		assertTrue("Component larger than the module size not cut", modules.length > 2);
+		for (int i = 1; i < modules.length; i++)
+		{
+			assertTrue("Module larger than the module size", count(modules[i], "\nentity jpa ") <= 2);
+		}
+		assertTrue("Base entity not created in an earlier module", script.indexOf("--class org.example.party.Party ") < script.indexOf("--class org.example.shop.Supplier "));
+		assertTrue("Referenced entity not created before the relationships to it", script.indexOf("--class org.example.shop.Product ") < script.indexOf("--type org.example.shop.Product --class org.example.shop.Order "));
+
+		// A chain of references as long as a very large model is split
+		// without running out of stack
+		StringBuilder chain = new StringBuilder("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"http://www.example.org/chain\" xmlns:tns=\"http://www.example.org/chain\">");
+		int length = 10000;
+		for (int i = 0; i < length; i++)
+		{
+			chain.append("<xs:complexType name=\"Link").append(i).append("\"><xs:sequence>");
+			if (i + 1 < length)
+			{
+				chain.append("<xs:element name=\"next\" type=\"tns:Link").append(i + 1).append("\" />");
+			}
+			chain.append("<xs:element name=\"name\" type=\"xs:string\" /></xs:sequence></xs:complexType>");
+		}
+		chain.append("</xs:schema>");
+		File chainFile = new File("target/modules/chain.xsd");
+		Files.write(chainFile.toPath(), chain.toString().getBytes("UTF-8"));
+		gen.setModuleSize(100);
+		File chainRooFile = new File("target/modules/chain.roo");
+		gen.generateScript(chainFile, chainRooFile);
+		script = new String(Files.readAllBytes(chainRooFile.toPath()), "UTF-8");
+		assertEquals("Chain not cut in to modules of the module size", length / 100 + 1, count(script, "\nmodule create "));
+		assertTrue("Module created before the module it depends on", script.indexOf("--class org.example.chain.Link9999 ") < script.indexOf("--class org.example.chain.Link0 "));
+	}
+
+	@Test
+	public void testMinimiseCommands() throws Exception
+	{
+		File schema = new File("src/test/resources/minimise/schemas/people.xsd");
+		File fullFile = new File("target/minimise/peopleFull.roo");
+		gen.setMinimiseCommands(false);
+		gen.generateScript(schema, fullFile);
+		String full = new String(Files.readAllBytes(fullFile.toPath()), "UTF-8");
+
+		File rooFile = new File("target/minimise/people.roo");
+		gen.setMinimiseCommands(true);
+		gen.generateScript(schema, rooFile);
+		String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+
+		assertEquals("Duplicate field not in the unminimised script", 2, count(full, "--fieldName phone "));
+		assertEquals("Duplicate field not removed", 1, count(script, "--fieldName phone "));
+		assertTrue("First of two fields with the same name not kept", script.contains("field string --fieldName e_mail --class org.example.people.Person"));
+		assertFalse("Field subsumed by a field of the same name not removed", script.contains("field number --type int --fieldName e_mail"));
+		assertTrue("Owning side of a one to one removed", script.contains("field reference --fieldName passport --type org.example.people.Passport --class org.example.people.Person --cardinality ONE_TO_ONE"));
+		assertTrue("Second side of a one to one removed", script.contains("field reference --fieldName holder --type org.example.people.Person --class org.example.people.Passport --cardinality ONE_TO_ONE"));
+		assertEquals("Commands other than duplicates and subsumed ones removed", count(full, "\nfield ") - 2, count(script, "\nfield "));
+
+		gen.setGenerateWebTier(false);
+		gen.generateScript(schema, rooFile);
+		assertFalse("Selenium tests generated without a web tier", new String(Files.readAllBytes(rooFile.toPath()), "UTF-8").contains("selenium test"));
+	}
+
+	@Test
+	public void testJpaSources() throws Exception
+	{
+		File sourceDir = new File("target/jpa/src");
+		gen.setOutput(RooScriptGenerator.OUTPUT.JPA_SOURCE);
+		gen.generateScript(new File("src/test/resources/orders.xsd"), sourceDir);
+
+		File packageDir = new File(sourceDir, "org/example/orders");
+		String customer = new String(Files.readAllBytes(new File(packageDir, "Customer.java").toPath()), "UTF-8");
+		assertTrue("Entity not annotated", customer.contains("@Entity\npublic class Customer extends Party\n"));
+		assertFalse("Subclass given its own id", customer.contains("@Id"));
+		assertTrue("One to many not mapped by its reference back", customer.contains("\t@OneToMany(mappedBy = \"customer\")\n\tprivate Set<Order1> orders = new HashSet<Order1>();"));
+		assertTrue("Single field unique not mapped", customer.contains("\t@Column(unique = true)\n\tprivate String email;"));
+
+		String party = new String(Files.readAllBytes(new File(packageDir, "Party.java").toPath()), "UTF-8");
+		assertTrue("Base entity has no id", party.contains("\t@Id\n\t@GeneratedValue(strategy = GenerationType.AUTO)\n\tprivate Long id;"));
+		assertTrue("Constraints of a key field not written", party.contains("\t@Column(unique = true)\n\t@NotNull\n\tprivate long partyId;"));
+
+		String order = new String(Files.readAllBytes(new File(packageDir, "Order1.java").toPath()), "UTF-8");
+		assertTrue("Many to one not mapped", order.contains("\t@ManyToOne\n\t@NotNull\n\tprivate Customer customer;"));
+		assertTrue("Composite unique not mapped", order.contains("@Table(uniqueConstraints = { @UniqueConstraint(columnNames = { "));
+
+		gen.generateScript(new File("src/test/resources/default/default.xsd"), sourceDir);
+		String person = new String(Files.readAllBytes(new File(sourceDir, "org/example/test/Person.java").toPath()), "UTF-8");
+		assertTrue("Size constraint or comment not written", person.contains("\t/**\n\t * This is the first name of the person\n\t */\n\t@Size(min = 2, max = 50)\n\tprivate String name;"));
+		assertTrue("Range constraints not written", person.contains("\t@NotNull\n\t@Min(0L)\n\t@Max(200L)\n\tprivate Integer age;"));
+		assertTrue("Pattern not written", person.contains("\t@Pattern(regexp = \"[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\\\.[a-z0-9"));
+
+		String repository = new String(Files.readAllBytes(new File(packageDir, "Order1Repository.java").toPath()), "UTF-8");
+		assertTrue("Repository not written", repository.contains("public interface Order1Repository extends JpaRepository<Order1, Long>"));
+
+		// Sources are named after the class of the entity, whatever its type
+		// is called
+		File namesFile = new File("target/jpa/names/names.xsd");
+		namesFile.getParentFile().mkdirs();
+		Files.write(namesFile.toPath(), ("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"http://www.example.org/names\" xmlns:tns=\"http://www.example.org/names\">"
+				+ "<xs:complexType name=\"line-item\"><xs:sequence><xs:element name=\"quantity\" type=\"xs:int\" /></xs:sequence></xs:complexType>"
+				+ "<xs:complexType name=\"Entity\"><xs:sequence><xs:element name=\"name\" type=\"xs:string\" /></xs:sequence></xs:complexType>"
+				+ "</xs:schema>").getBytes("UTF-8"));
+		File namesDir = new File("target/jpa/names/src");
+		gen.generateScript(namesFile, namesDir);
+		File namesPackageDir = new File(namesDir, "org/example/names");
+		String lineItemRepository = new String(Files.readAllBytes(new File(namesPackageDir, "line_itemRepository.java").toPath()), "UTF-8");
+		assertTrue("Repository not named after the class", lineItemRepository.contains("public interface line_itemRepository extends JpaRepository<line_item, Long>"));
+		String entityClass = new String(Files.readAllBytes(new File(namesPackageDir, "Entity.java").toPath()), "UTF-8");
+		assertTrue("Entity annotation clashes with the class", entityClass.contains("@javax.persistence.Entity\npublic class Entity\n"));
+
+		// Unchanged sources are left alone
+		File customerFile = new File(packageDir, "Customer.java");
+		customerFile.setLastModified(0);
+		gen.generateScript(new File("src/test/resources/orders.xsd"), sourceDir);
+		assertEquals("Unchanged source rewritten", 0, customerFile.lastModified());
+
+		// The sources of an entity removed from the schema are deleted
+		File removedDir = new File("target/jpa/removed/src");
+		File xsdFile = new File("target/jpa/removed/orders.xsd");
+		String xsd = new String(Files.readAllBytes(new File("src/test/resources/orders.xsd").toPath()), "UTF-8");
+		String withoutAddress = xsd.replaceAll("(?s)<xs:complexType name=\"Address\">.*?</xs:complexType>|<xs:element name=\"address\"[^>]*>", "");
+		deleteRecursively(removedDir);
+		removedDir.mkdirs();
+		Files.write(xsdFile.toPath(), xsd.getBytes("UTF-8"));
+		gen.generateScript(xsdFile, removedDir);
+		File addressFile = new File(removedDir, "org/example/orders/Address.java");
+		assertTrue("Source not written", addressFile.exists());
+
+		Files.write(xsdFile.toPath(), withoutAddress.getBytes("UTF-8"));
+		gen.generateScript(xsdFile, removedDir);
+		assertFalse("Source of a removed entity not deleted", addressFile.exists());
+		assertFalse("Repository of a removed entity not deleted", new File(removedDir, "org/example/orders/AddressRepository.java").exists());
+		assertTrue("Source of a kept entity deleted", new File(removedDir, "org/example/orders/Customer.java").exists());
+
+		// But not while another schema writing to the tree still generates them
+		gen.generateScript(new File("src/test/resources/orders.xsd"), removedDir);
+		Files.write(xsdFile.toPath(), xsd.getBytes("UTF-8"));
+		gen.generateScript(xsdFile, removedDir);
+		Files.write(xsdFile.toPath(), withoutAddress.getBytes("UTF-8"));
+		gen.generateScript(xsdFile, removedDir);
+		assertTrue("Source another schema generates deleted", addressFile.exists());
+	}
+
+	private static void deleteRecursively(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static int count(String script, String text)
+	{
+		int count = 0;
+		for (int i = script.indexOf(text); i >= 0; i = script.indexOf(text, i + 1))
+		{
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testUnknownTypes() throws Exception
+	{
+		assertTrue("Entity types reported as unknown", gen.readModel(new File("src/test/resources/orders.xsd")).getUnknownTypes().isEmpty());
+
+		File xsdFile = new File("target/unknownTypes/unknown.xsd");
+		xsdFile.getParentFile().mkdirs();
+		Files.write(xsdFile.toPath(), ("<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"urn:unknown\" xmlns:tns=\"urn:unknown\" xmlns:other=\"urn:other\">"
+				+ "<xs:complexType name=\"Thing\"><xs:sequence>"
+				+ "<xs:element name=\"part\" type=\"tns:Part\" /><xs:element name=\"colour\" type=\"xs:colour\" /><xs:element name=\"other\" type=\"other:Other\" />"
+				+ "</xs:sequence></xs:complexType>"
+				+ "<xs:complexType name=\"Part\"><xs:sequence><xs:element name=\"name\" type=\"xs:string\" /></xs:sequence></xs:complexType>"
+				+ "</xs:schema>").getBytes("UTF-8"));
+		assertEquals("[other:Other, xs:colour]", gen.readModel(xsdFile).getUnknownTypes().toString());
+	}
+
+	@Test
+	public void testTypeMappingOverrides() throws Exception
+	{
+		File mappingsFile = new File("target/typeMappings/types.properties");
+		mappingsFile.getParentFile().mkdirs();
+		Files.write(mappingsFile.toPath(), "dateTime=date --type java.time.LocalDateTime\nsku=string\n".getBytes("UTF-8"));
+
+		assertEquals("date --type java.util.Calendar", gen.mapXsdTypeToRooType("xs:dateTime"));
+		assertEquals("number --type int", gen.mapXsdTypeToRooType("int"));
+		assertEquals("Unknown type not mapped to string", "string", gen.mapXsdTypeToRooType("xs:unknownType"));
+
+		gen.setTypeMapping(gen.getTypeMapping().overriddenBy(mappingsFile));
+		assertEquals("date --type java.time.LocalDateTime", gen.mapXsdTypeToRooType("xs:dateTime"));
+		assertEquals("Built in mapping lost", "number --type int", gen.mapXsdTypeToRooType("int"));
+
+		for( boolean streaming : new boolean[]{ false, true } )
+		{
+			File rooFile = new File("target/typeMappings/orders" + (streaming ? "Streaming" : "") + ".roo");
+			gen.setStreamingParser(streaming);
+			gen.generateScript(new File("src/test/resources/orders.xsd"), rooFile);
+
+			String script = new String(Files.readAllBytes(rooFile.toPath()), "UTF-8");
+			assertTrue("Overridden mapping not used", script.contains("field date --type java.time.LocalDateTime --fieldName date1 "));
+		}
+	}
+
+	@Test
+	public void testNameNormalisation() throws Exception
+	{
+		assertEquals("Select1", gen.convertReservedWords("Select"));
+		assertEquals("Select1", gen.convertReservedWords("Select"));
+		assertEquals("class1", gen.convertReservedWords("class"));
+		assertEquals("order_date", gen.convertReservedWords("order-date"));
+		assertEquals("firstName", gen.convertReservedWords("firstName"));
+		assertEquals("FIRST_NAME_2", RooScriptGenerator.camelToUnderScores("firstName2"));
+		assertEquals("XML_HTTP_REQUEST", RooScriptGenerator.camelToUnderScores("XMLHttpRequest"));
+	}
+
+	@Test
+	public void testSyntheticSchema() throws Exception
+	{
+		File srcFile = new File("target/synthetic/synthetic.xsd");
+		SyntheticSchemaGenerator schemaGenerator = new SyntheticSchemaGenerator();
+		schemaGenerator.setSeed(42);
+		schemaGenerator.setEntities(300);
+		schemaGenerator.write(srcFile);
+
+		// Valid and deterministic
+		SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(srcFile);
+		StringWriter again = new StringWriter();
+		schemaGenerator.write(again);
+		assertEquals("Same seed wrote a different schema", new String(Files.readAllBytes(srcFile.toPath()), "UTF-8"), again.toString());
+
+		File domRooFile = new File("target/synthetic/dom/synthetic.roo");
+		File streamingRooFile = new File("target/synthetic/streaming/synthetic.roo");
+		gen.setStreamingParser(false);
+		gen.generateScript(srcFile, domRooFile);
+		gen.setStreamingParser(true);
+		gen.generateScript(srcFile, streamingRooFile);
+		FileAssert.assertEquals("Streaming roo file differs from DOM for synthetic schema", domRooFile, streamingRooFile);
+
+		// The same script whatever the number of threads extracting entities
+		File sequentialRooFile = new File("target/synthetic/sequential/synthetic.roo");
+		gen.setStreamingParser(false);
+		gen.setExtractThreads(1);
+		gen.generateScript(srcFile, sequentialRooFile);
+		FileAssert.assertEquals("Parallel extraction differs from sequential for synthetic schema", sequentialRooFile, domRooFile);
+		gen.setExtractThreads(7);
+		gen.setMetricsReport(true);
+		gen.generateScript(srcFile, domRooFile);
+		FileAssert.assertEquals("Parallel extraction differs from sequential for synthetic schema", sequentialRooFile, domRooFile);
+		FileAssert.assertEquals("Parallel extraction differs from sequential for synthetic schema", new File("target/synthetic/sequential/syntheticUpdate.roo"), new File("target/synthetic/dom/syntheticUpdate.roo"));
+
+		// The extract phase counts what its entities allocated on every thread
+		String report = new String(Files.readAllBytes(new File("target/synthetic/dom/synthetic" + RunMetrics.EXTENSION).toPath()), "UTF-8");
+		Matcher phase = Pattern.compile("\\{ \"phase\": \"" + RunMetrics.EXTRACT + "\", \"nanos\": [0-9]+, \"allocatedBytes\": (-?[0-9]+) \\}").matcher(report);
+		assertTrue("Extract phase missing from report", phase.find());
+		long entityBytes = 0;
+		Matcher entity = Pattern.compile("\"entity\": \"[^\"]*\", \"phase\": \"" + RunMetrics.EXTRACT + "\", \"nanos\": [0-9]+, \"allocatedBytes\": ([0-9]+) \\}").matcher(report);
+		while (entity.find())
+		{
+			entityBytes += Long.parseLong(entity.group(1));
+		}
+		assertTrue("Extract phase allocated less than its entities", Long.parseLong(phase.group(1)) < 0 || Long.parseLong(phase.group(1)) >= entityBytes);
+	}
+
+	@Test
+	public void testBatchGenerateScripts() throws Exception
+	{
+		gen.setActiveRecordStyle(false);
+		gen.setDatabaseType(DATATBASE_TYPE.HYPERSONIC_PERSISTENT);
+		gen.setGenerateSeleniumTests(false);
+		gen.setGenerateWebTier(false);
+		gen.setJsonOnly(true);
+
+		File targetDir = new File("target/batch");
+		BatchResult result = gen.generateScripts("src/test/resources/*/*.xsd", targetDir, 2);
+
+		assertTrue("Batch failed " + result.getFailures(), result.isSuccessful());
+		assertEquals(2, result.getGenerated().size());
+		assertTrue("Batch summary not generated", new File(targetDir, RooScriptGenerator.BATCH_SUMMARY_FILENAME).exists());
+
+		FileAssert.assertEquals("Roo file not as expected", new File("src/test/resources/default/default.roo"), new File(targetDir, "default/default.roo"));
+		FileAssert.assertEquals("Roo update file not as expected", new File("src/test/resources/default/defaultUpdate.roo"), new File(targetDir, "default/defaultUpdate.roo"));
+
+		// The cache is saved once the batch is done, so the next batch finds
+		// every script up to date
+		File cacheDir = new File("target/batch/cache");
+		new File(cacheDir, ScriptCache.CACHE_FILENAME).delete();
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScripts("src/test/resources/*/*.xsd", targetDir, 2);
+		assertTrue("Cache not saved at the end of the batch", new File(cacheDir, ScriptCache.CACHE_FILENAME).exists());
+		assertEquals("Temporary cache file left behind", 1, cacheDir.list().length);
+		gen.setScriptCache(new ScriptCache(cacheDir));
+		gen.generateScripts("src/test/resources/*/*.xsd", targetDir, 2);
+		assertEquals(2, gen.getScriptCache().getHits().size());
+	}
+
+	@Test
+	public void testBatchCollectsFailures() throws Exception
+	{
+		File srcDir = new File("target/batchFailures/src");
+		srcDir.mkdirs();
+		PrintStream broken = new PrintStream(new File(srcDir, "broken.xsd"));
+		broken.println("<schema xmlns=\"http://www.w3.org/2001/XMLSchema\">");
+		broken.close();
+		PrintStream valid = new PrintStream(new File(srcDir, "users.xsd"));
+		valid.print(new String(Files.readAllBytes(new File("src/test/resources/users.xsd").toPath()), "UTF-8"));
+		valid.close();
+
+		BatchResult result = gen.generateScripts(srcDir.getPath(), new File("target/batchFailures/out"), 2);
+
+		assertFalse(result.isSuccessful());
+		assertEquals(1, result.getGenerated().size());
+		assertTrue(result.getFailures().containsKey(new File(srcDir, "broken.xsd")));
+		assertTrue(new File("target/batchFailures/out/users.roo").exists());
+	}
 	
 	private void generateScript(String name) throws Exception
 	{